@@ -151,6 +151,9 @@ public class LLog
 	            || event == SERVER_EVENT.CURSOR_MOVE
                 || event == SERVER_EVENT.CURSOR_GONE
                 || (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE && ((Integer)args[0]) != -1)
+                || event == SERVER_EVENT.SCREEN_RECT_UPDATE
+                || event == SERVER_EVENT.SCREEN_RECT_COPY
+                || event == SERVER_EVENT.SCREEN_SEGMENT_CACHED
                 || event == SERVER_EVENT.READ_INPUT_EVENTS
                 || event == SERVER_EVENT.END_OF_FRAME)
 	    {
@@ -2,6 +2,7 @@ package com.jcope.ui;
 
 import static com.jcope.debug.Debug.assert_;
 
+import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
@@ -19,6 +20,9 @@ import javax.swing.SwingUtilities;
 
 import com.jcope.debug.LLog;
 import com.jcope.util.DimensionF;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelHash;
 import com.jcope.util.SegmentationInfo;
 import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
 
@@ -144,6 +148,7 @@ public class ImagePanel extends JPanel
     {
         int solidPixelColor = 0;
         int[] pixels = null;
+        byte[] encoded = null;
         
         assert_(segmentID >= -1);
         assert_(args.length == 1);
@@ -151,11 +156,27 @@ public class ImagePanel extends JPanel
         switch (alg)
         {
             case PIXELS:
-                pixels = (int[]) args[0];
+            case FILTERED:
+            case DOWNSAMPLED:
+                if (args[0] instanceof byte[])
+                {
+                    encoded = (byte[]) args[0];
+                }
+                else
+                {
+                    pixels = (int[]) args[0];
+                }
                 if (segmentID == -1)
                 {
                     clearFrameBuffer();
-                    loadScreenPixels(pixels);
+                    if (encoded == null)
+                    {
+                        loadScreenPixels(pixels);
+                    }
+                    else
+                    {
+                        setEncodedRGB(image, new Rectangle(0, 0, image.getWidth(), image.getHeight()), encoded);
+                    }
                     repaintBuffers();
                     return;
                 }
@@ -171,37 +192,54 @@ public class ImagePanel extends JPanel
                 	return;
                 }
                 break;
+            case PALETTE:
+            case JPEG:
+                assert_(segmentID >= 0);
+                encoded = (byte[]) args[0];
+                break;
+            case XOR_DELTA:
+            case PATCH:
+                // see setSegmentDelta(...)
+                assert_(false);
+                break;
         }
         
-        int[] tmp = new int[2];
-        int startX, startY;
-        segInfo.getPos(segmentID, tmp);
-        startX = tmp[0];
-        startY = tmp[1];
-        segInfo.getDim(segmentID, tmp);
-        // assert_(tmp[0] * tmp[1] == pixels.length);
+        // segmentID may be the ID of a region of segments
+        Rectangle bounds = new Rectangle();
+        segInfo.getRegionBounds(segmentID, bounds);
+        // assert_(bounds.width * bounds.height == pixels.length);
         
+        if (encoded != null)
+        {
+            setEncodedRGB(image, bounds, encoded);
+            addToFrameBuffer(bounds.x, bounds.y, bounds.width, bounds.height);
+            return;
+        }
+        
+        setBounds(bounds, alg, pixels, solidPixelColor);
+    }
         
+    private void setBounds(Rectangle bounds, SEGMENT_ALGORITHM alg, int[] pixels, int solidPixelColor)
+    {
         switch (alg)
         {
             case PIXELS:
-                setRGB(image, startX, startY, pixels, 0, 0, tmp[0], tmp[1], tmp[0], tmp[1]);
+                setRGB(image, bounds.x, bounds.y, pixels, 0, 0, bounds.width, bounds.height, bounds.width, bounds.height);
                 break;
             case SOLID_COLOR:
-                int endX = startX + tmp[0];
-                int endY = startY + tmp[1];
-                
-                for (int x=startX; x<endX; x++)
-                {
-                    for (int y=startY; y<endY; y++)
-                    {
-                        image.setRGB(x, y, solidPixelColor);
-                    }
-                }
+                fillRGB(image, bounds, solidPixelColor);
+                break;
+            case PALETTE:
+            case JPEG:
+            case XOR_DELTA:
+            case FILTERED:
+            case PATCH:
+            case DOWNSAMPLED:
+                assert_(false);
                 break;
         }
         
-        addToFrameBuffer(startX, startY, tmp[0], tmp[1]);
+        addToFrameBuffer(bounds.x, bounds.y, bounds.width, bounds.height);
     }
     
     public void addToFrameBuffer(int x, int y, int w, int h)
@@ -284,6 +322,19 @@ public class ImagePanel extends JPanel
         clearFrameBuffer();
     }
     
+    public int getSegmentCount()
+    {
+        return segInfo.numSegments;
+    }
+    
+    /**
+     * @param dim set to the width and height of the segment
+     */
+    public void getSegmentDim(int segmentID, int[] dim)
+    {
+        segInfo.getDim(segmentID, dim);
+    }
+    
     public void setSegmentPixels(int segmentID, int[] pixels)
     {
         setSegment(segmentID, SEGMENT_ALGORITHM.PIXELS, pixels);
@@ -294,6 +345,112 @@ public class ImagePanel extends JPanel
         setSegment(segmentID, SEGMENT_ALGORITHM.SOLID_COLOR, solidPixelColor);
     }
     
+    /**
+     * @param encoded a PixelCodec encoding, decoded straight into the image
+     */
+    public void setSegmentEncoded(int segmentID, byte[] encoded)
+    {
+        setSegment(segmentID, PixelCodec.getAlgorithm(encoded), encoded);
+    }
+    
+    /**
+     * Apply a difference (see PixelCodec.encodeDelta and encodePatch) to the pixels of a segment
+     * 
+     * @return false if the segment holds other pixels than the delta applies to, which are left as they are
+     */
+    public boolean setSegmentDelta(int segmentID, byte[] delta)
+    {
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth();
+        int[] pos = new int[2];
+        int[] dim = new int[2];
+        segInfo.getPos(segmentID, pos);
+        segInfo.getDim(segmentID, dim);
+        int offset = pos[1] * width + pos[0];
+        
+        if (PixelHash.hash(pixels, offset, dim[0], dim[1], width) != PixelCodec.getDeltaBaseHash(delta) || !PixelCodec.decode(delta, pixels, offset, dim[0], width))
+        {
+            return false;
+        }
+        addToFrameBuffer(pos[0], pos[1], dim[0], dim[1]);
+        
+        return true;
+    }
+    
+    /**
+     * @param segmentID the top left segment of the rectangle
+     * @param numHorizontal width of the rectangle in segments
+     * @param numVertical height of the rectangle in segments
+     * @param pixels the whole rectangle in one contiguous block
+     */
+    public void setRectPixels(int segmentID, int numHorizontal, int numVertical, int[] pixels)
+    {
+        Rectangle bounds = new Rectangle();
+        segInfo.getBounds(segmentID, numHorizontal, numVertical, bounds);
+        assert_(bounds.width * bounds.height == pixels.length);
+        setBounds(bounds, SEGMENT_ALGORITHM.PIXELS, pixels, 0);
+    }
+    
+    /**
+     * @param encoded the whole rectangle as a PixelCodec encoding, decoded straight into the image
+     */
+    public void setRectEncoded(int segmentID, int numHorizontal, int numVertical, byte[] encoded)
+    {
+        Rectangle bounds = new Rectangle();
+        segInfo.getBounds(segmentID, numHorizontal, numVertical, bounds);
+        setEncodedRGB(image, bounds, encoded);
+        addToFrameBuffer(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+    
+    public void setRectSolidColor(int segmentID, int numHorizontal, int numVertical, int solidPixelColor)
+    {
+        Rectangle bounds = new Rectangle();
+        segInfo.getBounds(segmentID, numHorizontal, numVertical, bounds);
+        setBounds(bounds, SEGMENT_ALGORITHM.SOLID_COLOR, null, solidPixelColor);
+    }
+    
+    /**
+     * Move a rectangle of the image by (dx, dy) and check the segments that
+     * the move is meant to bring up to date against their expected hashes
+     * 
+     * @return the segments that did not come out as expected, null if all of them did
+     */
+    public FixedLengthBitSet copyRect(Rectangle src, int dx, int dy, int[] segmentIDs, long[] segmentHashes)
+    {
+        Graphics2D g = image.createGraphics();
+        try
+        {
+            // straight copy, the alpha of the pixels means nothing here
+            g.setComposite(AlphaComposite.Src);
+            g.copyArea(src.x, src.y, src.width, src.height, dx, dy);
+        }
+        finally {
+            g.dispose();
+        }
+        repaint(src.x + dx, src.y + dy, src.width, src.height);
+        
+        FixedLengthBitSet rval = null;
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int width = image.getWidth();
+        int[] pos = new int[2];
+        int[] dim = new int[2];
+        for (int i=0; i<segmentIDs.length; i++)
+        {
+            segInfo.getPos(segmentIDs[i], pos);
+            segInfo.getDim(segmentIDs[i], dim);
+            if (PixelHash.hash(pixels, pos[1] * width + pos[0], dim[0], dim[1], width) != segmentHashes[i])
+            {
+                if (rval == null)
+                {
+                    rval = new FixedLengthBitSet(segInfo.numSegments);
+                }
+                rval.set(segmentIDs[i], Boolean.TRUE);
+            }
+        }
+        
+        return rval;
+    }
+    
     private boolean _repaint()
     {
         return _repaint(false, null);
@@ -389,10 +546,21 @@ public class ImagePanel extends JPanel
     }
 
     public void setSegmentSize(int segmentWidth, int segmentHeight)
+    {
+        setSegmentSize(segmentWidth, segmentHeight, 0);
+    }
+    
+    /**
+     * @param segmentWidth
+     * @param segmentHeight
+     * @param maxRegionLevel highest level of the regions of segments that updates may address (see SegmentationInfo)
+     */
+    public void setSegmentSize(int segmentWidth, int segmentHeight, int maxRegionLevel)
     {
         int screenWidth = image.getWidth();
         int screenHeight = image.getHeight();
         segInfo.loadConfig(screenWidth, screenHeight, segmentWidth, segmentHeight);
+        segInfo.setMaxRegionLevel(maxRegionLevel);
         int numSegmentInfoValues = segInfo.numSegments * 4;
         flushFrameBuffer();
         try {
@@ -441,12 +609,41 @@ public class ImagePanel extends JPanel
         }
     }
     
+    private static void setEncodedRGB(BufferedImage dstimg, Rectangle dstRect, byte[] encoded)
+    {
+        int dstw = dstimg.getWidth();
+        assert_(dstRect.x + dstRect.width <= dstw);
+        assert_(dstRect.y + dstRect.height <= dstimg.getHeight());
+        assert_(dstRect.width * dstRect.height == PixelCodec.getNumPixels(encoded));
+        
+        int[] dstPixels = ((DataBufferInt) dstimg.getRaster().getDataBuffer()).getData();
+        
+        if (!PixelCodec.decode(encoded, dstPixels, dstRect.y * dstw + dstRect.x, dstRect.width, dstw))
+        {
+            LLog.w(String.format("Unable to decode %dx%d pixels at %d,%d", dstRect.width, dstRect.height, dstRect.x, dstRect.y));
+        }
+    }
+    
     private static void fillRGB(BufferedImage dstimg, int pixelColor)
     {
     	int[] dstPixels = ((DataBufferInt) dstimg.getRaster().getDataBuffer()).getData();
     	Arrays.fill(dstPixels, pixelColor);
     }
     
+    private static void fillRGB(BufferedImage dstimg, Rectangle dstRect, int pixelColor)
+    {
+        int dstw = dstimg.getWidth();
+        assert_(dstRect.x + dstRect.width <= dstw);
+        assert_(dstRect.y + dstRect.height <= dstimg.getHeight());
+        
+        int[] dstPixels = ((DataBufferInt) dstimg.getRaster().getDataBuffer()).getData();
+        
+        for (int y=0, dst=dstRect.y * dstw + dstRect.x; y<dstRect.height; y++, dst+=dstw)
+        {
+            Arrays.fill(dstPixels, dst, dst + dstRect.width, pixelColor);
+        }
+    }
+    
     public void hideCursor()
     {
         if (cursorVisible)
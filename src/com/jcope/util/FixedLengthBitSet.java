@@ -78,6 +78,11 @@ public class FixedLengthBitSet implements Serializable
     {
         return bset.nextSetBit(fromIndex);
     }
+    
+    public int nextClearBit(int fromIndex)
+    {
+        return bset.nextClearBit(fromIndex);
+    }
 
     public void or(FixedLengthBitSet flbs)
     {
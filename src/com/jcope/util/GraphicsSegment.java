@@ -3,9 +3,22 @@ package com.jcope.util;
 import java.util.concurrent.Semaphore;
 
 import com.jcope.debug.LLog;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
 import com.jcope.vnc.server.JitCompressedEvent;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
+/**
+ * A rectangle of pixels that is either an array of its own or a view of
+ * a frame shared with other segments (offset and scanSize into the frame).
+ *
+ * synchronously(...) always hands out a contiguous copy of the rectangle,
+ * which for a view is only refreshed when the view was marked stale.
+ * synchronouslyInPlace(...) hands out the backing frame itself.
+ *
+ * A segment also remembers when it last changed and whether it looks
+ * photographic (see PixelKernels.isPhotographic), which is what decides
+ * whether it may be sent lossy (see PixelCodec.encodeLossy).
+ */
 public class GraphicsSegment
 {
     public static interface Synchronously {
@@ -14,8 +27,15 @@ public class GraphicsSegment
     
     private Semaphore sema = new Semaphore(1, true);
     private Integer[] solidColorPtr = new Integer[]{null};
+    private final int[] frame;
+    private final int offset, width, height, scanSize;
     private int[] pixels;
-    private volatile JitCompressedEvent jce = null;
+    private boolean isPixelsStale;
+    // one per PIXEL_FORMAT and then one per PIXEL_FORMAT filtered, shared by every client of that format
+    private final JitCompressedEvent[] jces = new JitCompressedEvent[PIXEL_FORMAT.values().length << 1];
+    private int[] palette = null;
+    private boolean isPhotographic = false;
+    private volatile long changedAtNS = System.nanoTime();
     
     public GraphicsSegment(int size)
     {
@@ -24,7 +44,158 @@ public class GraphicsSegment
     
     public GraphicsSegment(int[] pixels)
     {
+        frame = pixels;
+        offset = 0;
+        width = pixels.length;
+        height = 1;
+        scanSize = width;
         this.pixels = pixels;
+        isPixelsStale = false;
+    }
+    
+    /**
+     * @param pixels contiguous pixels of the segment
+     * @param solidColor the color of every pixel, null if the pixels are not all the same
+     */
+    public GraphicsSegment(int[] pixels, Integer solidColor)
+    {
+        this(pixels);
+        solidColorPtr[0] = solidColor;
+    }
+    
+    /**
+     * @param pixels contiguous rows of width pixels
+     * @param solidColor the color of every pixel, null if the pixels are not all the same
+     */
+    public GraphicsSegment(int[] pixels, int width, Integer solidColor)
+    {
+        frame = pixels;
+        offset = 0;
+        this.width = width;
+        height = pixels.length / width;
+        scanSize = width;
+        this.pixels = pixels;
+        isPixelsStale = false;
+        solidColorPtr[0] = solidColor;
+    }
+    
+    /**
+     * @param frame backing store of the view
+     * @param offset index of the top left pixel of the segment in frame
+     * @param width
+     * @param height
+     * @param scanSize distance between rows of the segment in frame
+     */
+    public GraphicsSegment(int[] frame, int offset, int width, int height, int scanSize)
+    {
+        this.frame = frame;
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.scanSize = scanSize;
+        pixels = null;
+        isPixelsStale = true;
+    }
+    
+    public int getOffset()
+    {
+        return offset;
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public int getScanSize()
+    {
+        return scanSize;
+    }
+    
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     * 
+     * @return every color of the segment if it has few enough for PALETTE encoding, otherwise null
+     */
+    public int[] getPalette()
+    {
+        return palette;
+    }
+    
+    /**
+     * Must be called from within synchronouslyInPlace(...)
+     * along with markPixelsStale()
+     */
+    public void setPalette(int[] palette)
+    {
+        this.palette = palette;
+    }
+    
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     */
+    public boolean isPhotographic()
+    {
+        return isPhotographic;
+    }
+    
+    /**
+     * Must be called from within synchronouslyInPlace(...)
+     * along with markPixelsStale()
+     */
+    public void setPhotographic(boolean isPhotographic)
+    {
+        this.isPhotographic = isPhotographic;
+    }
+    
+    /**
+     * May be called without holding the lock
+     * 
+     * @return the System.nanoTime() of the last markPixelsStale()
+     */
+    public long getChangedAtNS()
+    {
+        return changedAtNS;
+    }
+    
+    /**
+     * Must be called from within synchronouslyInPlace(...)
+     * after the region of the backing frame was modified
+     */
+    public void markPixelsStale()
+    {
+        changedAtNS = System.nanoTime();
+        if (pixels != frame)
+        {
+            isPixelsStale = true;
+        }
+    }
+    
+    private int[] getPixels()
+    {
+        if (isPixelsStale)
+        {
+            if (pixels == null)
+            {
+                pixels = new int[width * height];
+            }
+            int srcPos = offset;
+            int dstPos = 0;
+            for (int i=0; i<height; i++)
+            {
+                System.arraycopy(frame, srcPos, pixels, dstPos, width);
+                srcPos += scanSize;
+                dstPos += width;
+            }
+            isPixelsStale = false;
+        }
+        
+        return pixels;
     }
     
     public Object synchronously(Synchronously runnable)
@@ -39,36 +210,106 @@ public class GraphicsSegment
         }
         try
         {
-            synchronized(pixels){synchronized(solidColorPtr){
-                return runnable.run(this, pixels, solidColorPtr);
-            }}
+            synchronized(solidColorPtr)
+            {
+                return runnable.run(this, getPixels(), solidColorPtr);
+            }
+        }
+        finally {
+            sema.release();
+        }
+    }
+    
+    /**
+     * Like synchronously(...), but runnable is given the backing frame and
+     * must address the segment through getOffset() and getScanSize()
+     */
+    public Object synchronouslyInPlace(Synchronously runnable)
+    {
+        try
+        {
+            sema.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            LLog.e(e);
+        }
+        try
+        {
+            synchronized(solidColorPtr)
+            {
+                return runnable.run(this, frame, solidColorPtr);
+            }
         }
         finally {
             sema.release();
         }
     }
     
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     */
     public void releaseJitCompressedEvent()
     {
-    	JitCompressedEvent my_jce = jce;
-    	if (my_jce != null)
-    	{
-    		jce = null;
-            my_jce.release();
-    	}
+        for (int i=0; i<jces.length; i++)
+        {
+        	JitCompressedEvent my_jce = jces[i];
+        	if (my_jce != null)
+        	{
+        		jces[i] = null;
+                my_jce.release();
+        	}
+        }
     }
     
     public JitCompressedEvent acquireJitCompressedEvent(Object id, Object serialized)
     {
-    	JitCompressedEvent rval = jce;
+        return acquireJitCompressedEvent(PIXEL_FORMAT.ARGB8888, id, serialized);
+    }
+    
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     * 
+     * @param serialized the pixels in the given format, only used if there is no event for the format yet
+     */
+    public JitCompressedEvent acquireJitCompressedEvent(PIXEL_FORMAT format, Object id, Object serialized)
+    {
+        return acquireJitCompressedEvent(format, false, id, serialized);
+    }
+    
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     * 
+     * @return true iff. acquireJitCompressedEvent(format, isFiltered, ...) would not use what it is given
+     */
+    public boolean hasJitCompressedEvent(PIXEL_FORMAT format, boolean isFiltered)
+    {
+        return jces[getJitCompressedEventIdx(format, isFiltered)] != null;
+    }
+    
+    /**
+     * Must be called from within synchronously(...) or synchronouslyInPlace(...)
+     * 
+     * @param isFiltered whether serialized is filtered, see PixelCodec.encodeFiltered(...)
+     * @param serialized the pixels in the given format, only used if there is no event for the format yet
+     */
+    public JitCompressedEvent acquireJitCompressedEvent(PIXEL_FORMAT format, boolean isFiltered, Object id, Object serialized)
+    {
+        int idx = getJitCompressedEventIdx(format, isFiltered);
+    	JitCompressedEvent rval = jces[idx];
     	
     	if (rval == null)
     	{
     		rval = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{id, serialized});
-    		jce = rval;
+    		jces[idx] = rval;
     	}
     	rval.acquire();
     	
     	return rval;
     }
+    
+    private static int getJitCompressedEventIdx(PIXEL_FORMAT format, boolean isFiltered)
+    {
+        return isFiltered ? PIXEL_FORMAT.values().length + format.ordinal() : format.ordinal();
+    }
 }
@@ -0,0 +1,1026 @@
+package com.jcope.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.jcope.debug.LLog;
+import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Self contained compressed form of a run of pixels, as sent in place of
+ * an int[] when the encoding is meant to be shared between messages.
+ *
+ * Layout: the SEGMENT_ALGORITHM (1 byte), the PIXEL_FORMAT (1 byte), the
+ * number of pixels (4 bytes, big endian) and the deflated body, which is
+ *
+ * PIXELS:
+ *     every pixel in the PIXEL_FORMAT, big endian
+ * PALETTE:
+ *     the number of colors (1 byte), every color in the PIXEL_FORMAT (big endian) and then
+ *     the index into the colors of every pixel packed into 1, 2 or 4 bits
+ *     (for up to 2, 4 or 16 colors), the first pixel in the high bits.
+ *     Runs of the same index are left to the deflater.
+ * XOR_DELTA:
+ *     every pixel in the PIXEL_FORMAT XOR the same pixel of a version the
+ *     receiver already holds (see encodeDelta), big endian. Pixels that did
+ *     not change are zero, which leaves little for the deflater to keep.
+ *     The PixelHash of that version (8 bytes, big endian) goes between the
+ *     header and the body.
+ * PATCH:
+ *     the pixels of the smallest rectangle that holds every pixel that
+ *     changed since a version the receiver already holds (see encodePatch)
+ *     in the PIXEL_FORMAT, big endian. The PixelHash of that version (8
+ *     bytes, big endian) and then the x, y, width and height of the
+ *     rectangle within the pixels (2 bytes each, big endian) go between
+ *     the header and the body, and the number of pixels in the header is
+ *     that of the rectangle.
+ * FILTERED:
+ *     the FILTER (1 byte), the width of the rows (4 bytes, big endian) and
+ *     then every byte of the pixels in the PIXEL_FORMAT split into planes,
+ *     the most significant byte of every pixel first, each byte less its
+ *     FILTER prediction from its neighbours in the same plane (as PNG does
+ *     with a byte per pixel). Smooth color and repeated rows come out as
+ *     runs of small values that deflate far better than the pixels.
+ * DOWNSAMPLED:
+ *     the average of every square of 2^shift by 2^shift of the pixels
+ *     (clipped at the right and at the bottom) in the PIXEL_FORMAT, big
+ *     endian, the squares left to right, top down (see encodeDownsampled).
+ *     The shift (1 byte) and the width of the rows of the pixels (4 bytes,
+ *     big endian) go between the header and the body, and the number of
+ *     pixels in the header is that of the pixels, which decode(...) fills
+ *     every square of with its average.
+ *
+ * except for JPEG, which is lossy and not deflated: the header is followed
+ * by a JPEG (javax.imageio) of the pixels as RGB888, one row of width pixels
+ * after the other.
+ *
+ */
+
+public class PixelCodec
+{
+    /**
+     * How many bits of each pixel a client is sent, the rest is made up on
+     * receipt. Every format but ARGB8888 drops the alpha channel (screens
+     * are opaque).
+     *
+     * reduce(...) gives the bits that are sent, expand(...) the pixel a
+     * client makes of them and quantize(...) the two in one, which is what
+     * both sides hash to agree on what a client holds.
+     */
+    public static enum PIXEL_FORMAT
+    {
+        ARGB8888(4)
+        {
+            @Override
+            public int reduce(int pixel)
+            {
+                return pixel;
+            }
+        
+            @Override
+            public int expand(int bits)
+            {
+                return bits;
+            }
+        },
+        RGB888(3)
+        {
+            @Override
+            public int reduce(int pixel)
+            {
+                return pixel & 0xffffff;
+            }
+            
+            @Override
+            public int expand(int bits)
+            {
+                return 0xff000000 | bits;
+            }
+        },
+        RGB565(2)
+        {
+            @Override
+            public int reduce(int pixel)
+            {
+                return ((pixel >> 8) & 0xf800) | ((pixel >> 5) & 0x07e0) | ((pixel >> 3) & 0x001f);
+            }
+            
+            @Override
+            public int expand(int bits)
+            {
+                int r = (bits >> 11) & 0x1f;
+                int g = (bits >> 5) & 0x3f;
+                int b = bits & 0x1f;
+                
+                return 0xff000000 | (((r << 3) | (r >> 2)) << 16) | (((g << 2) | (g >> 4)) << 8) | ((b << 3) | (b >> 2));
+            }
+        },
+        RGB332(1)
+        {
+            @Override
+            public int reduce(int pixel)
+            {
+                return ((pixel >> 16) & 0xe0) | ((pixel >> 11) & 0x1c) | ((pixel >> 6) & 0x03);
+            }
+            
+            @Override
+            public int expand(int bits)
+            {
+                int r = (bits >> 5) & 0x07;
+                int g = (bits >> 2) & 0x07;
+                int b = bits & 0x03;
+                
+                return 0xff000000 | (((r << 5) | (r << 2) | (r >> 1)) << 16) | (((g << 5) | (g << 2) | (g >> 1)) << 8) | (b * 0x55);
+            }
+        },
+        GRAY8(1)
+        {
+            @Override
+            public int reduce(int pixel)
+            {
+                // ITU-R BT.601 luma
+                return (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+            }
+            
+            @Override
+            public int expand(int bits)
+            {
+                return 0xff000000 | (bits << 16) | (bits << 8) | bits;
+            }
+        }
+        
+        ;
+        
+        public final int bytesPerPixel;
+        
+        PIXEL_FORMAT(int bytesPerPixel)
+        {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+        
+        public abstract int reduce(int pixel);
+        
+        public abstract int expand(int bits);
+        
+        public int quantize(int pixel)
+        {
+            return expand(reduce(pixel));
+        }
+        
+        private void put(byte[] dst, int idx, int pixel)
+        {
+            int bits = reduce(pixel);
+            for (int i=bytesPerPixel-1; i>=0; i--, bits>>>=8)
+            {
+                dst[idx+i] = (byte) bits;
+            }
+        }
+        
+        private int get(byte[] src, int idx)
+        {
+            return expand(getBits(src, idx));
+        }
+        
+        private int getBits(byte[] src, int idx)
+        {
+            int bits = 0;
+            for (int i=0; i<bytesPerPixel; i++)
+            {
+                bits = (bits << 8) | (src[idx+i] & 0xff);
+            }
+            
+            return bits;
+        }
+        
+        /**
+         * @return a copy of the pixels as a client of this format holds them
+         */
+        public int[] quantize(int[] pixels)
+        {
+            int[] rval = new int[pixels.length];
+            for (int i=0; i<pixels.length; i++)
+            {
+                rval[i] = quantize(pixels[i]);
+            }
+            
+            return rval;
+        }
+    };
+    
+    /**
+     * How FILTERED predicts each byte of a plane from the byte to its left
+     * (a), above it (b) and above to its left (c), 0 past the edges.
+     * One is picked per segment, see encodeFiltered(...).
+     */
+    private static enum FILTER
+    {
+        NONE
+        {
+            @Override
+            int predict(int a, int b, int c)
+            {
+                return 0;
+            }
+        },
+        SUB
+        {
+            @Override
+            int predict(int a, int b, int c)
+            {
+                return a;
+            }
+        },
+        UP
+        {
+            @Override
+            int predict(int a, int b, int c)
+            {
+                return b;
+            }
+        },
+        PAETH
+        {
+            @Override
+            int predict(int a, int b, int c)
+            {
+                return paeth(a, b, c);
+            }
+        }
+        
+        ;
+        
+        abstract int predict(int a, int b, int c);
+    };
+    
+    public static final int MAX_PALETTE_SIZE = 16;
+    private static final int HEADER_LENGTH = 6;
+    private static final int DELTA_HEADER_LENGTH = HEADER_LENGTH + 8;
+    private static final int PATCH_HEADER_LENGTH = DELTA_HEADER_LENGTH + 8;
+    private static final int FILTER_HEADER_LENGTH = 5;
+    private static final int DOWNSAMPLE_HEADER_LENGTH = HEADER_LENGTH + 5;
+    public static final int MAX_DOWNSAMPLE_SHIFT = 7;
+    
+    public static byte[] encode(int[] pixels, PIXEL_FORMAT format)
+    {
+        int bytesPerPixel = format.bytesPerPixel;
+        byte[] raw = new byte[pixels.length * bytesPerPixel];
+        
+        for (int i=0, j=0; i<pixels.length; i++, j+=bytesPerPixel)
+        {
+            format.put(raw, j, pixels[i]);
+        }
+        
+        return deflate(SEGMENT_ALGORITHM.PIXELS, format, pixels.length, raw);
+    }
+    
+    /**
+     * @param palette every color of the pixels (see PixelKernels.collectPalette), at most MAX_PALETTE_SIZE
+     */
+    public static byte[] encode(int[] pixels, int[] palette, PIXEL_FORMAT format)
+    {
+        int bytesPerPixel = format.bytesPerPixel;
+        int bitsPerIndex = getBitsPerIndex(palette.length);
+        int pixelsPerByte = 8 / bitsPerIndex;
+        int start = 1 + palette.length * bytesPerPixel;
+        byte[] raw = new byte[start + (pixels.length + pixelsPerByte - 1) / pixelsPerByte];
+        
+        raw[0] = (byte) palette.length;
+        for (int i=0, j=1; i<palette.length; i++, j+=bytesPerPixel)
+        {
+            format.put(raw, j, palette[i]);
+        }
+        
+        int last = palette[0];
+        int lastIdx = 0;
+        for (int i=0; i<pixels.length; i++)
+        {
+            int pixel = pixels[i];
+            if (pixel != last)
+            {
+                lastIdx = 0;
+                while (palette[lastIdx] != pixel)
+                {
+                    lastIdx++;
+                }
+                last = pixel;
+            }
+            int shift = 8 - bitsPerIndex * (1 + i % pixelsPerByte);
+            raw[start + i / pixelsPerByte] |= lastIdx << shift;
+        }
+        
+        return deflate(SEGMENT_ALGORITHM.PALETTE, format, pixels.length, raw);
+    }
+    
+    /**
+     * @param base the pixels the receiver holds in place of pixels, quantized to the format (see PIXEL_FORMAT.quantize)
+     * @param width the pixels are rows of width pixels
+     * @return the difference of the pixels to base, which decode(...) applies to base in place
+     */
+    public static byte[] encodeDelta(int[] pixels, int[] base, int width, PIXEL_FORMAT format)
+    {
+        int bytesPerPixel = format.bytesPerPixel;
+        byte[] raw = new byte[pixels.length * bytesPerPixel];
+        
+        for (int i=0, j=0; i<pixels.length; i++, j+=bytesPerPixel)
+        {
+            int delta = format.reduce(pixels[i]) ^ format.reduce(base[i]);
+            if (delta != 0)
+            {
+                for (int k=bytesPerPixel-1; k>=0; k--, delta>>>=8)
+                {
+                    raw[j+k] = (byte) delta;
+                }
+            }
+        }
+        
+        byte[] rval = deflate(SEGMENT_ALGORITHM.XOR_DELTA, format, pixels.length, raw);
+        putBaseHash(rval, PixelHash.hash(base, 0, width, pixels.length / width, width));
+        
+        return rval;
+    }
+    
+    /**
+     * @param base the pixels the receiver holds in place of pixels, quantized to the format (see PIXEL_FORMAT.quantize)
+     * @param width the pixels are rows of width pixels
+     * @param bounds if not null, set to the smallest rectangle that holds every pixel that differs
+     * @return the number of pixels that differ from base in the format
+     */
+    public static int findChanges(int[] pixels, int[] base, int width, PIXEL_FORMAT format, Rectangle bounds)
+    {
+        int rval = 0;
+        int left = width, right = -1, top = -1, bottom = -1;
+        
+        for (int rowOffset=0, y=0; rowOffset<pixels.length; rowOffset+=width, y++)
+        {
+            int rowChanged = 0;
+            for (int i=rowOffset, x=0; x<width; i++, x++)
+            {
+                if (format.quantize(pixels[i]) != base[i])
+                {
+                    rowChanged++;
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                }
+            }
+            if (rowChanged > 0)
+            {
+                rval += rowChanged;
+                if (top < 0)
+                {
+                    top = y;
+                }
+                bottom = y;
+            }
+        }
+        
+        if (bounds != null)
+        {
+            if (rval == 0)
+            {
+                bounds.setBounds(0, 0, 0, 0);
+            }
+            else
+            {
+                bounds.setBounds(left, top, right - left + 1, bottom - top + 1);
+            }
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @param base the pixels the receiver holds in place of pixels, quantized to the format (see PIXEL_FORMAT.quantize)
+     * @param width the pixels are rows of width pixels
+     * @param bounds the pixels that changed, see findChanges(...)
+     * @return the pixels within bounds, which decode(...) writes over base in place
+     */
+    public static byte[] encodePatch(int[] pixels, int[] base, int width, Rectangle bounds, PIXEL_FORMAT format)
+    {
+        int bytesPerPixel = format.bytesPerPixel;
+        byte[] raw = new byte[bounds.width * bounds.height * bytesPerPixel];
+        
+        for (int y=0, j=0, rowOffset=bounds.y*width+bounds.x; y<bounds.height; y++, rowOffset+=width)
+        {
+            for (int i=rowOffset, sentinel=rowOffset+bounds.width; i<sentinel; i++, j+=bytesPerPixel)
+            {
+                format.put(raw, j, pixels[i]);
+            }
+        }
+        
+        byte[] rval = deflate(SEGMENT_ALGORITHM.PATCH, format, bounds.width * bounds.height, raw);
+        putBaseHash(rval, PixelHash.hash(base, 0, width, pixels.length / width, width));
+        int[] rect = new int[]{bounds.x, bounds.y, bounds.width, bounds.height};
+        for (int i=0, j=DELTA_HEADER_LENGTH; i<rect.length; i++, j+=2)
+        {
+            rval[j] = (byte) (rect[i] >>> 8);
+            rval[j+1] = (byte) rect[i];
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * Encode the pixels as FILTERED with whichever FILTER leaves the least
+     * to deflate, judged by the sum of the magnitudes of what is left (the
+     * heuristic PNG encoders use). Opaque ARGB8888 pixels are sent as
+     * RGB888, which decodes to the same pixels.
+     *
+     * @param width the pixels are rows of width pixels
+     */
+    public static byte[] encodeFiltered(int[] pixels, int width, PIXEL_FORMAT format)
+    {
+        if (format == PIXEL_FORMAT.ARGB8888 && isOpaque(pixels))
+        {
+            format = PIXEL_FORMAT.RGB888;
+        }
+        int bytesPerPixel = format.bytesPerPixel;
+        int numPixels = pixels.length;
+        byte[] planes = new byte[numPixels * bytesPerPixel];
+        
+        for (int i=0; i<numPixels; i++)
+        {
+            int bits = format.reduce(pixels[i]);
+            for (int j=(bytesPerPixel-1)*numPixels+i; j>=0; j-=numPixels, bits>>>=8)
+            {
+                planes[j] = (byte) bits;
+            }
+        }
+        
+        FILTER filter = chooseFilter(planes, numPixels, width);
+        byte[] raw = new byte[FILTER_HEADER_LENGTH + planes.length];
+        
+        raw[0] = (byte) filter.ordinal();
+        raw[1] = (byte) (width >>> 24);
+        raw[2] = (byte) (width >>> 16);
+        raw[3] = (byte) (width >>> 8);
+        raw[4] = (byte) width;
+        for (int rowOffset=0; rowOffset<planes.length; rowOffset+=width)
+        {
+            // the first row of every plane has nothing above it
+            boolean isTop = (rowOffset % numPixels == 0);
+            int a = 0, c = 0;
+            for (int i=rowOffset, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                int v = planes[i] & 0xff;
+                int b = isTop ? 0 : (planes[i-width] & 0xff);
+                raw[FILTER_HEADER_LENGTH+i] = (byte) (v - filter.predict(a, b, c));
+                a = v;
+                c = b;
+            }
+        }
+        
+        return deflate(SEGMENT_ALGORITHM.FILTERED, format, numPixels, raw);
+    }
+    
+    /**
+     * Encode the pixels as DOWNSAMPLED, a rough but small stand in for
+     * pixels that are sent in full soon after
+     *
+     * @param width the pixels are rows of width pixels
+     * @param shift 1 to MAX_DOWNSAMPLE_SHIFT, every 2^shift by 2^shift pixels are sent as one
+     */
+    public static byte[] encodeDownsampled(int[] pixels, int width, int shift, PIXEL_FORMAT format)
+    {
+        int height = pixels.length / width;
+        int side = 1 << shift;
+        int sampledWidth = (width + side - 1) >> shift;
+        int sampledHeight = (height + side - 1) >> shift;
+        int bytesPerPixel = format.bytesPerPixel;
+        byte[] raw = new byte[sampledWidth * sampledHeight * bytesPerPixel];
+        
+        for (int y=0, j=0; y<height; y+=side)
+        {
+            int bottom = Math.min(y + side, height);
+            for (int x=0; x<width; x+=side, j+=bytesPerPixel)
+            {
+                int right = Math.min(x + side, width);
+                // at most 2^14 pixels of at most 255 per channel
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int rowOffset=y*width; rowOffset<bottom*width; rowOffset+=width)
+                {
+                    for (int i=rowOffset+x, sentinel=rowOffset+right; i<sentinel; i++)
+                    {
+                        int pixel = pixels[i];
+                        a += pixel >>> 24;
+                        r += (pixel >> 16) & 0xff;
+                        g += (pixel >> 8) & 0xff;
+                        b += pixel & 0xff;
+                    }
+                }
+                int n = (bottom - y) * (right - x);
+                format.put(raw, j, ((a / n) << 24) | ((r / n) << 16) | ((g / n) << 8) | (b / n));
+            }
+        }
+        
+        byte[] rval = deflate(SEGMENT_ALGORITHM.DOWNSAMPLED, format, pixels.length, raw);
+        rval[HEADER_LENGTH] = (byte) shift;
+        rval[HEADER_LENGTH+1] = (byte) (width >>> 24);
+        rval[HEADER_LENGTH+2] = (byte) (width >>> 16);
+        rval[HEADER_LENGTH+3] = (byte) (width >>> 8);
+        rval[HEADER_LENGTH+4] = (byte) width;
+        
+        return rval;
+    }
+    
+    /**
+     * @param width the pixels are rows of width pixels
+     * @param quality 1 (smallest) to 100 (best)
+     * @return the pixels as a JPEG, or null if there is no JPEG writer
+     */
+    public static byte[] encodeLossy(int[] pixels, int width, int quality)
+    {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext())
+        {
+            LLog.w("No JPEG writer available");
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        int height = pixels.length / width;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_LENGTH + (pixels.length >> 2));
+        
+        bos.write(SEGMENT_ALGORITHM.JPEG.ordinal());
+        bos.write(PIXEL_FORMAT.RGB888.ordinal());
+        bos.write(pixels.length >>> 24);
+        bos.write(pixels.length >>> 16);
+        bos.write(pixels.length >>> 8);
+        bos.write(pixels.length);
+        
+        try
+        {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+            ImageOutputStream ios = ImageIO.createImageOutputStream(bos);
+            try
+            {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            finally {
+                ios.close();
+            }
+        }
+        catch (IOException e)
+        {
+            LLog.e(e, false);
+            return null;
+        }
+        finally {
+            writer.dispose();
+        }
+        
+        return bos.toByteArray();
+    }
+    
+    public static SEGMENT_ALGORITHM getAlgorithm(byte[] encoded)
+    {
+        return SEGMENT_ALGORITHM.values()[encoded[0]];
+    }
+    
+    public static PIXEL_FORMAT getFormat(byte[] encoded)
+    {
+        return PIXEL_FORMAT.values()[encoded[1]];
+    }
+    
+    public static int getNumPixels(byte[] encoded)
+    {
+        return ((encoded[2] & 0xff) << 24) | ((encoded[3] & 0xff) << 16) | ((encoded[4] & 0xff) << 8) | (encoded[5] & 0xff);
+    }
+    
+    /**
+     * @return true iff. the encoding applies to pixels the receiver holds (see getDeltaBaseHash(...))
+     */
+    public static boolean isDelta(byte[] encoded)
+    {
+        SEGMENT_ALGORITHM alg = getAlgorithm(encoded);
+        
+        return (alg == SEGMENT_ALGORITHM.XOR_DELTA || alg == SEGMENT_ALGORITHM.PATCH);
+    }
+    
+    /**
+     * @return the PixelHash of the pixels an XOR_DELTA or a PATCH applies to
+     */
+    public static long getDeltaBaseHash(byte[] encoded)
+    {
+        long rval = 0;
+        for (int i=HEADER_LENGTH; i<DELTA_HEADER_LENGTH; i++)
+        {
+            rval = (rval << 8) | (encoded[i] & 0xff);
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @return the pixels encoded by encode(...), or null if the data is corrupt
+     */
+    public static int[] decode(byte[] encoded)
+    {
+        int numPixels = getNumPixels(encoded);
+        int[] rval = new int[numPixels];
+        
+        return decode(encoded, rval, 0, numPixels, numPixels) ? rval : null;
+    }
+    
+    /**
+     * Decode the pixels as rows of width pixels into dst, rows scanSize apart.
+     * An XOR_DELTA or a PATCH is applied to the pixels in dst instead.
+     *
+     * @return false if the data is corrupt
+     */
+    public static boolean decode(byte[] encoded, int[] dst, int dstOffset, int width, int scanSize)
+    {
+        int numPixels = getNumPixels(encoded);
+        PIXEL_FORMAT format = getFormat(encoded);
+        int bytesPerPixel = format.bytesPerPixel;
+        byte[] raw;
+        
+        switch (getAlgorithm(encoded))
+        {
+            case PIXELS:
+                raw = inflate(encoded, numPixels * bytesPerPixel);
+                if (raw == null)
+                {
+                    return false;
+                }
+                for (int i=0, j=0, rowOffset=dstOffset; i<numPixels; rowOffset+=scanSize)
+                {
+                    for (int k=rowOffset, sentinel=rowOffset+width; k<sentinel; k++, i++, j+=bytesPerPixel)
+                    {
+                        dst[k] = format.get(raw, j);
+                    }
+                }
+                break;
+            case PALETTE:
+                raw = inflate(encoded, 1 + MAX_PALETTE_SIZE * bytesPerPixel + ((numPixels + 1) >> 1));
+                if (raw == null)
+                {
+                    return false;
+                }
+                int numColors = raw[0];
+                int[] palette = new int[numColors];
+                for (int i=0, j=1; i<numColors; i++, j+=bytesPerPixel)
+                {
+                    palette[i] = format.get(raw, j);
+                }
+                int bitsPerIndex = getBitsPerIndex(numColors);
+                int pixelsPerByte = 8 / bitsPerIndex;
+                int mask = (1 << bitsPerIndex) - 1;
+                int start = 1 + numColors * bytesPerPixel;
+                for (int i=0, rowOffset=dstOffset; i<numPixels; rowOffset+=scanSize)
+                {
+                    for (int k=rowOffset, sentinel=rowOffset+width; k<sentinel; k++, i++)
+                    {
+                        int shift = 8 - bitsPerIndex * (1 + i % pixelsPerByte);
+                        dst[k] = palette[(raw[start + i / pixelsPerByte] >> shift) & mask];
+                    }
+                }
+                break;
+            case XOR_DELTA:
+                raw = inflate(encoded, numPixels * bytesPerPixel);
+                if (raw == null)
+                {
+                    return false;
+                }
+                for (int i=0, j=0, rowOffset=dstOffset; i<numPixels; rowOffset+=scanSize)
+                {
+                    for (int k=rowOffset, sentinel=rowOffset+width; k<sentinel; k++, i++, j+=bytesPerPixel)
+                    {
+                        int delta = format.getBits(raw, j);
+                        if (delta != 0)
+                        {
+                            dst[k] = format.expand(format.reduce(dst[k]) ^ delta);
+                        }
+                    }
+                }
+                break;
+            case PATCH:
+                raw = inflate(encoded, numPixels * bytesPerPixel);
+                if (raw == null)
+                {
+                    return false;
+                }
+                int[] rect = new int[4];
+                for (int i=0, j=DELTA_HEADER_LENGTH; i<rect.length; i++, j+=2)
+                {
+                    rect[i] = ((encoded[j] & 0xff) << 8) | (encoded[j+1] & 0xff);
+                }
+                if (rect[2] * rect[3] != numPixels || rect[0] + rect[2] > width || dstOffset + (rect[1] + rect[3] - 1) * scanSize + rect[0] + rect[2] > dst.length)
+                {
+                    LLog.w(String.format("Patch of %d pixels at %d,%d of %dx%d does not fit rows of %d", numPixels, rect[0], rect[1], rect[2], rect[3], width));
+                    return false;
+                }
+                for (int i=0, j=0, rowOffset=dstOffset+rect[1]*scanSize+rect[0]; i<numPixels; rowOffset+=scanSize)
+                {
+                    for (int k=rowOffset, sentinel=rowOffset+rect[2]; k<sentinel; k++, i++, j+=bytesPerPixel)
+                    {
+                        dst[k] = format.get(raw, j);
+                    }
+                }
+                break;
+            case FILTERED:
+                raw = inflate(encoded, FILTER_HEADER_LENGTH + numPixels * bytesPerPixel);
+                if (raw == null)
+                {
+                    return false;
+                }
+                int filterWidth = ((raw[1] & 0xff) << 24) | ((raw[2] & 0xff) << 16) | ((raw[3] & 0xff) << 8) | (raw[4] & 0xff);
+                if (width == numPixels && scanSize == numPixels)
+                {
+                    // one contiguous run as decode(encoded) asks for, which is rows of the width filtered
+                    width = scanSize = filterWidth;
+                }
+                if (raw[0] < 0 || raw[0] >= FILTER.values().length || filterWidth != width || width <= 0 || numPixels % width != 0)
+                {
+                    LLog.w(String.format("Filtered pixels of %d in rows of %d do not decode in rows of %d", numPixels, filterWidth, width));
+                    return false;
+                }
+                unfilter(FILTER.values()[raw[0]], raw, FILTER_HEADER_LENGTH, numPixels * bytesPerPixel, numPixels, width);
+                for (int i=0, rowOffset=dstOffset; i<numPixels; rowOffset+=scanSize)
+                {
+                    for (int k=rowOffset, sentinel=rowOffset+width; k<sentinel; k++, i++)
+                    {
+                        int bits = 0;
+                        for (int j=FILTER_HEADER_LENGTH+i, end=j+bytesPerPixel*numPixels; j<end; j+=numPixels)
+                        {
+                            bits = (bits << 8) | (raw[j] & 0xff);
+                        }
+                        dst[k] = format.expand(bits);
+                    }
+                }
+                break;
+            case DOWNSAMPLED:
+                int shift = encoded[HEADER_LENGTH];
+                int sampledWidth = ((encoded[HEADER_LENGTH+1] & 0xff) << 24) | ((encoded[HEADER_LENGTH+2] & 0xff) << 16) | ((encoded[HEADER_LENGTH+3] & 0xff) << 8) | (encoded[HEADER_LENGTH+4] & 0xff);
+                if (width == numPixels && scanSize == numPixels)
+                {
+                    // one contiguous run as decode(encoded) asks for, which is rows of the width sampled
+                    width = scanSize = sampledWidth;
+                }
+                if (shift < 0 || shift > MAX_DOWNSAMPLE_SHIFT || sampledWidth != width || width <= 0 || numPixels % width != 0)
+                {
+                    LLog.w(String.format("Downsampled pixels of %d in rows of %d do not decode in rows of %d", numPixels, sampledWidth, width));
+                    return false;
+                }
+                int height = numPixels / width;
+                int side = 1 << shift;
+                int samplesPerRow = (width + side - 1) >> shift;
+                raw = inflate(encoded, samplesPerRow * ((height + side - 1) >> shift) * bytesPerPixel);
+                if (raw == null)
+                {
+                    return false;
+                }
+                int[] samples = new int[samplesPerRow];
+                for (int y=0, rowOffset=dstOffset; y<height; y++, rowOffset+=scanSize)
+                {
+                    if ((y & (side - 1)) == 0)
+                    {
+                        for (int i=0, j=(y >> shift)*samplesPerRow*bytesPerPixel; i<samplesPerRow; i++, j+=bytesPerPixel)
+                        {
+                            samples[i] = format.get(raw, j);
+                        }
+                    }
+                    for (int x=0; x<width; x++)
+                    {
+                        dst[rowOffset+x] = samples[x >> shift];
+                    }
+                }
+                break;
+            case JPEG:
+                BufferedImage image;
+                try
+                {
+                    image = ImageIO.read(new ByteArrayInputStream(encoded, HEADER_LENGTH, encoded.length - HEADER_LENGTH));
+                }
+                catch (IOException e)
+                {
+                    LLog.e(e, false);
+                    return false;
+                }
+                if (image != null && width == numPixels && scanSize == numPixels)
+                {
+                    // one contiguous run as decode(encoded) asks for, which is rows of the width of the JPEG
+                    width = scanSize = image.getWidth();
+                }
+                if (image == null || image.getWidth() != width || image.getWidth() * image.getHeight() != numPixels)
+                {
+                    LLog.w(String.format("JPEG of %d pixels in rows of %d does not decode as such", numPixels, width));
+                    return false;
+                }
+                image.getRGB(0, 0, width, image.getHeight(), dst, dstOffset, scanSize);
+                break;
+            default:
+                LLog.w(String.format("Encoded pixels of unknown algorithm %d", encoded[0]));
+                return false;
+        }
+        
+        return true;
+    }
+    
+    private static int getBitsPerIndex(int numColors)
+    {
+        return (numColors <= 2) ? 1 : ((numColors <= 4) ? 2 : 4);
+    }
+    
+    private static boolean isOpaque(int[] pixels)
+    {
+        for (int i=0; i<pixels.length; i++)
+        {
+            if ((pixels[i] >>> 24) != 0xff)
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        
+        return (pa <= pb && pa <= pc) ? a : ((pb <= pc) ? b : c);
+    }
+    
+    /**
+     * @param planes planes of numPixels bytes in rows of width bytes
+     * @return the FILTER whose residuals have the least sum of magnitudes
+     */
+    private static FILTER chooseFilter(byte[] planes, int numPixels, int width)
+    {
+        long none = 0, sub = 0, up = 0, paeth = 0;
+        
+        for (int rowOffset=0; rowOffset<planes.length; rowOffset+=width)
+        {
+            boolean isTop = (rowOffset % numPixels == 0);
+            int a = 0, c = 0;
+            for (int i=rowOffset, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                int v = planes[i] & 0xff;
+                int b = isTop ? 0 : (planes[i-width] & 0xff);
+                none += Math.abs((byte) v);
+                sub += Math.abs((byte) (v - a));
+                up += Math.abs((byte) (v - b));
+                paeth += Math.abs((byte) (v - paeth(a, b, c)));
+                a = v;
+                c = b;
+            }
+        }
+        
+        // the first of the smallest sums in the order of FILTER
+        FILTER rval = FILTER.NONE;
+        long min = none;
+        if (sub < min)
+        {
+            rval = FILTER.SUB;
+            min = sub;
+        }
+        if (up < min)
+        {
+            rval = FILTER.UP;
+            min = up;
+        }
+        if (paeth < min)
+        {
+            rval = FILTER.PAETH;
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * Add the predictions back to length bytes of planes of numPixels bytes in rows of width bytes, in place
+     */
+    private static void unfilter(FILTER filter, byte[] raw, int offset, int length, int numPixels, int width)
+    {
+        for (int rowOffset=0; rowOffset<length; rowOffset+=width)
+        {
+            boolean isTop = (rowOffset % numPixels == 0);
+            int a = 0, c = 0;
+            for (int j=offset+rowOffset, sentinel=j+width; j<sentinel; j++)
+            {
+                int b = isTop ? 0 : (raw[j-width] & 0xff);
+                a = (raw[j] + filter.predict(a, b, c)) & 0xff;
+                raw[j] = (byte) a;
+                c = b;
+            }
+        }
+    }
+    
+    private static int getBodyOffset(SEGMENT_ALGORITHM alg)
+    {
+        switch (alg)
+        {
+            case XOR_DELTA:
+                return DELTA_HEADER_LENGTH;
+            case PATCH:
+                return PATCH_HEADER_LENGTH;
+            case DOWNSAMPLED:
+                return DOWNSAMPLE_HEADER_LENGTH;
+            default:
+                return HEADER_LENGTH;
+        }
+    }
+    
+    private static void putBaseHash(byte[] encoded, long baseHash)
+    {
+        for (int i=DELTA_HEADER_LENGTH-1; i>=HEADER_LENGTH; i--, baseHash>>>=8)
+        {
+            encoded[i] = (byte) baseHash;
+        }
+    }
+    
+    private static byte[] deflate(SEGMENT_ALGORITHM alg, PIXEL_FORMAT format, int numPixels, byte[] raw)
+    {
+        Deflater deflater = new Deflater();
+        byte[] rval;
+        int length = getBodyOffset(alg);
+        
+        try
+        {
+            deflater.setInput(raw);
+            deflater.finish();
+            rval = new byte[length + Math.max(64, raw.length >> 3)];
+            while (!deflater.finished())
+            {
+                if (length == rval.length)
+                {
+                    rval = Arrays.copyOf(rval, rval.length << 1);
+                }
+                length += deflater.deflate(rval, length, rval.length - length);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+        
+        rval[0] = (byte) alg.ordinal();
+        rval[1] = (byte) format.ordinal();
+        rval[2] = (byte) (numPixels >>> 24);
+        rval[3] = (byte) (numPixels >>> 16);
+        rval[4] = (byte) (numPixels >>> 8);
+        rval[5] = (byte) numPixels;
+        
+        return (length == rval.length) ? rval : Arrays.copyOf(rval, length);
+    }
+    
+    /**
+     * @return the body of an encoding, which is at most maxLength bytes, or null if the data is corrupt
+     */
+    private static byte[] inflate(byte[] encoded, int maxLength)
+    {
+        // one to spare so that a body that is too long shows
+        byte[] raw = new byte[maxLength + 1];
+        Inflater inflater = new Inflater();
+        
+        try
+        {
+            int bodyOffset = getBodyOffset(getAlgorithm(encoded));
+            inflater.setInput(encoded, bodyOffset, encoded.length - bodyOffset);
+            int length = 0;
+            while (!inflater.finished())
+            {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.needsInput() || length == raw.length))
+                {
+                    LLog.w(String.format("Encoded pixels ended after %d of at most %d bytes", length, raw.length));
+                    return null;
+                }
+                length += n;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            LLog.e(e, false);
+            return null;
+        }
+        finally {
+            inflater.end();
+        }
+        
+        return raw;
+    }
+}
@@ -0,0 +1,92 @@
+package com.jcope.util;
+
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * 64 bit hashes of pixels that the server and the client compute alike,
+ * so that one side can tell the other what a region is supposed to look
+ * like without sending it.
+ *
+ * Not cryptographic: each pixel is mixed in with a multiply and the
+ * result is finalized with the MurmurHash3 avalanche, which is plenty
+ * to tell screen content apart.
+ *
+ */
+
+public class PixelHash
+{
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L * 0x9e3779b1L;
+    
+    /**
+     * @return the hash of a rectangle of pixels, its rows scanSize apart
+     */
+    public static long hash(int[] pixels, int offset, int width, int height, int scanSize)
+    {
+        long h = SEED;
+        
+        for (int row=0, rowOffset=offset; row<height; row++, rowOffset+=scanSize)
+        {
+            for (int i=rowOffset, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                h = (h ^ pixels[i]) * PRIME;
+            }
+        }
+        
+        // the shape too, so that a w x h and a h x w rectangle of the same pixels differ
+        return finish(h, (((long) width) << 32) | height);
+    }
+    
+    /**
+     * @return the hash of a rectangle of pixels as a client of the given format holds them (see PIXEL_FORMAT.quantize)
+     */
+    public static long hash(int[] pixels, int offset, int width, int height, int scanSize, PIXEL_FORMAT format)
+    {
+        if (format == PIXEL_FORMAT.ARGB8888)
+        {
+            return hash(pixels, offset, width, height, scanSize);
+        }
+        
+        long h = SEED;
+        
+        for (int row=0, rowOffset=offset; row<height; row++, rowOffset+=scanSize)
+        {
+            for (int i=rowOffset, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                h = (h ^ format.quantize(pixels[i])) * PRIME;
+            }
+        }
+        
+        return finish(h, (((long) width) << 32) | height);
+    }
+    
+    /**
+     * @return the hash of length pixels, each step apart (1 for part of a row, the scan size for part of a column)
+     */
+    public static long hashStrip(int[] pixels, int offset, int length, int step)
+    {
+        long h = SEED;
+        
+        for (int i=0, idx=offset; i<length; i++, idx+=step)
+        {
+            h = (h ^ pixels[idx]) * PRIME;
+        }
+        
+        return finish(h, length);
+    }
+    
+    private static long finish(long h, long length)
+    {
+        h ^= length;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        
+        return h;
+    }
+}
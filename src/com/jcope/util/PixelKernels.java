@@ -0,0 +1,358 @@
+package com.jcope.util;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import com.jcope.debug.LLog;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Inner loops of screen change detection: mismatch search, solid color
+ * detection and copy-on-diff over regions of frames that are addressed
+ * by offset, width, height and scan size.
+ *
+ * None of the kernels write to anything but the destination of a copy,
+ * so a capture buffer can be compared without being modified.
+ *
+ * SCALAR:
+ *     Element by element with an early exit
+ * OR_REDUCTION:
+ *     ORs the XOR of every pair of a row together, with no early exit
+ *     the JIT can unroll and vectorize the loop
+ * ARRAYS_MISMATCH:
+ *     Arrays.mismatch (Java 9+), which is an intrinsic vectorized by the
+ *     JVM. It is looked up reflectively since the build targets Java 6
+ *     and so it only pays off for long rows; shorter ones use OR_REDUCTION.
+ *
+ */
+
+public abstract class PixelKernels
+{
+    public static enum KERNEL
+    {
+        SCALAR,
+        OR_REDUCTION,
+        ARRAYS_MISMATCH
+    };
+    
+    // below this many pixels the reflective call costs more than it saves
+    public static final int MISMATCH_MIN_LENGTH = 256;
+    
+    // see isPhotographic(...)
+    public static final int MAX_PHOTOGRAPHIC_RUN_LENGTH = 2;
+    
+    private static PixelKernels defaultKernels = null;
+    
+    public final KERNEL type;
+    
+    protected PixelKernels(KERNEL type)
+    {
+        this.type = type;
+    }
+    
+    /**
+     * @return the kernels or null if the runtime does not support them
+     */
+    public static PixelKernels get(KERNEL type)
+    {
+        PixelKernels rval;
+        
+        switch (type)
+        {
+            case SCALAR:
+                rval = new Scalar();
+                break;
+            case OR_REDUCTION:
+                rval = new OrReduction();
+                break;
+            case ARRAYS_MISMATCH:
+                rval = ArraysMismatch.create();
+                break;
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @return the fastest kernels this runtime supports
+     */
+    public static synchronized PixelKernels getDefault()
+    {
+        if (defaultKernels == null)
+        {
+            defaultKernels = get(KERNEL.ARRAYS_MISMATCH);
+            if (defaultKernels == null)
+            {
+                defaultKernels = get(KERNEL.OR_REDUCTION);
+            }
+        }
+        
+        return defaultKernels;
+    }
+    
+    /**
+     * @return the index (relative to the offsets) of the first of length ints
+     *         that differ between a and b, -1 if they are all the same
+     */
+    public abstract int mismatch(int[] a, int aOffset, int[] b, int bOffset, int length);
+    
+    /**
+     * @return the first row of the region that differs between a and b, -1 if none does
+     */
+    public int findChangedRow(int[] a, int[] b, int offset, int width, int height, int scanSize)
+    {
+        for (int row=0; row<height; row++, offset+=scanSize)
+        {
+            if (mismatch(a, offset, b, offset, width) >= 0)
+            {
+                return row;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return true iff. every pixel of the region is the same color
+     */
+    public boolean isOneColor(int[] ints, int offset, int width, int height, int scanSize)
+    {
+        // a row is one color iff. it equals itself shifted by one pixel
+        if (width > 1 && mismatch(ints, offset, ints, offset + 1, width - 1) >= 0)
+        {
+            return false;
+        }
+        for (int row=1, rowOffset=offset+scanSize; row<height; row++, rowOffset+=scanSize)
+        {
+            if (mismatch(ints, offset, ints, rowOffset, width) >= 0)
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Collect the distinct colors of a region into palette in the order
+     * they first appear in, giving up once there are more than palette can hold
+     *
+     * @return the number of colors, -1 if there are more than palette.length
+     */
+    public static int collectPalette(int[] ints, int offset, int width, int height, int scanSize, int[] palette)
+    {
+        int numColors = 0;
+        int last = ints[offset];
+        palette[numColors++] = last;
+        
+        for (int row=0, rowOffset=offset; row<height; row++, rowOffset+=scanSize)
+        {
+            for (int i=rowOffset, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                int pixel = ints[i];
+                if (pixel == last)
+                {
+                    continue;
+                }
+                int j = 0;
+                while (j < numColors && palette[j] != pixel)
+                {
+                    j++;
+                }
+                if (j == numColors)
+                {
+                    if (numColors == palette.length)
+                    {
+                        return -1;
+                    }
+                    palette[numColors++] = pixel;
+                }
+                last = pixel;
+            }
+        }
+        
+        return numColors;
+    }
+    
+    /**
+     * Tell a photo or video from drawn content by how often a pixel differs
+     * from the one to its left: drawn content (text, widgets, gradients of
+     * few steps) has long runs of the same color, photographic content
+     * averages runs no longer than MAX_PHOTOGRAPHIC_RUN_LENGTH.
+     *
+     * @return true iff. the region of the given size looks photographic
+     */
+    public static boolean isPhotographic(int[] ints, int offset, int width, int height, int scanSize)
+    {
+        // more runs than this make the runs short enough
+        int minRuns = width * height / MAX_PHOTOGRAPHIC_RUN_LENGTH;
+        int numRuns = 0;
+        
+        for (int row=0, rowOffset=offset; row<height; row++, rowOffset+=scanSize)
+        {
+            int last = ints[rowOffset];
+            numRuns++;
+            for (int i=rowOffset+1, sentinel=rowOffset+width; i<sentinel; i++)
+            {
+                int pixel = ints[i];
+                if (pixel != last)
+                {
+                    last = pixel;
+                    numRuns++;
+                }
+            }
+            if (numRuns >= minRuns)
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Copy the rows of a region from fromRow onwards from src into dst
+     * (same offset and scan size in both)
+     */
+    public static void copyRows(int[] dst, int[] src, int offset, int width, int height, int scanSize, int fromRow)
+    {
+        for (int row=fromRow, rowOffset=offset+fromRow*scanSize; row<height; row++, rowOffset+=scanSize)
+        {
+            System.arraycopy(src, rowOffset, dst, rowOffset, width);
+        }
+    }
+    
+    /**
+     * Copy a region from src into dst from the first row that differs onwards
+     *
+     * @return the first row that differed, -1 if none did (and nothing was copied)
+     */
+    public int copyOnDiff(int[] dst, int[] src, int offset, int width, int height, int scanSize)
+    {
+        int rval = findChangedRow(dst, src, offset, width, height, scanSize);
+        
+        if (rval >= 0)
+        {
+            copyRows(dst, src, offset, width, height, scanSize, rval);
+        }
+        
+        return rval;
+    }
+    
+    private static class Scalar extends PixelKernels
+    {
+        Scalar()
+        {
+            super(KERNEL.SCALAR);
+        }
+        
+        @Override
+        public int mismatch(int[] a, int aOffset, int[] b, int bOffset, int length)
+        {
+            for (int i=0; i<length; i++)
+            {
+                if (a[aOffset + i] != b[bOffset + i])
+                {
+                    return i;
+                }
+            }
+            
+            return -1;
+        }
+    }
+    
+    private static class OrReduction extends PixelKernels
+    {
+        OrReduction()
+        {
+            super(KERNEL.OR_REDUCTION);
+        }
+        
+        protected OrReduction(KERNEL type)
+        {
+            super(type);
+        }
+        
+        @Override
+        public int mismatch(int[] a, int aOffset, int[] b, int bOffset, int length)
+        {
+            int diff = 0;
+            for (int i=0; i<length; i++)
+            {
+                diff |= a[aOffset + i] ^ b[bOffset + i];
+            }
+            if (diff == 0)
+            {
+                return -1;
+            }
+            // rare, find out where
+            for (int i=0; ; i++)
+            {
+                if (a[aOffset + i] != b[bOffset + i])
+                {
+                    return i;
+                }
+            }
+        }
+    }
+    
+    private static class ArraysMismatch extends OrReduction
+    {
+        private final Method method;
+        
+        private ArraysMismatch(Method method)
+        {
+            super(KERNEL.ARRAYS_MISMATCH);
+            this.method = method;
+        }
+        
+        static ArraysMismatch create()
+        {
+            ArraysMismatch rval = null;
+            
+            try
+            {
+                Method method = Arrays.class.getMethod("mismatch", int[].class, Integer.TYPE, Integer.TYPE, int[].class, Integer.TYPE, Integer.TYPE);
+                // make sure that it actually works before relying on it
+                int[] a = new int[]{0, 1, 2};
+                int[] b = new int[]{0, 1, 3};
+                if (((Integer) method.invoke(null, a, 0, a.length, b, 0, b.length)) == 2)
+                {
+                    rval = new ArraysMismatch(method);
+                }
+            }
+            catch (NoSuchMethodException e)
+            {
+                // Java 8 or older
+            }
+            catch (Exception e)
+            {
+                LLog.e(e, false);
+            }
+            
+            return rval;
+        }
+        
+        @Override
+        public int mismatch(int[] a, int aOffset, int[] b, int bOffset, int length)
+        {
+            if (length < MISMATCH_MIN_LENGTH)
+            {
+                return super.mismatch(a, aOffset, b, bOffset, length);
+            }
+            try
+            {
+                return (Integer) method.invoke(null, a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+            }
+            catch (Exception e)
+            {
+                LLog.e(e, false);
+                return super.mismatch(a, aOffset, b, bOffset, length);
+            }
+        }
+    }
+}
@@ -4,14 +4,34 @@ import static com.jcope.debug.Debug.assert_;
 
 import java.awt.Rectangle;
 import java.util.Arrays;
+import java.util.List;
 
+/**
+ * A uniform grid of segmentWidth by segmentHeight segments over a screen.
+ * 
+ * On top of the grid lies a quadtree of regions: a region of level L is
+ * the 2^L by 2^L block of segments whose top left segment lies on a
+ * multiple of 2^L in both directions (clipped to the screen). The ID of a
+ * region is its level shifted by REGION_LEVEL_SHIFT ORed with the ID of
+ * its top left segment, so the ID of a level 0 region is a segment ID.
+ */
 public class SegmentationInfo
 {
     
+    public static final int REGION_LEVEL_SHIFT = 24;
+    public static final int MAX_REGION_LEVEL = 7;
+    private static final int REGION_SEGMENT_ID_MASK = (1 << REGION_LEVEL_SHIFT) - 1;
+    
     public enum SEGMENT_ALGORITHM
     {
         PIXELS,
-        SOLID_COLOR
+        SOLID_COLOR,
+        PALETTE,
+        JPEG,
+        XOR_DELTA,
+        FILTERED,
+        PATCH,
+        DOWNSAMPLED
     };
     
     public int
@@ -30,7 +50,8 @@ public class SegmentationInfo
         screenHeight,
         segmentWidth,
         segmentHeight,
-        maxSegmentNumPixels;
+        maxSegmentNumPixels,
+        maxRegionLevel;
     
     public void loadConfig(int screenWidth, int screenHeight, int segmentWidth, int segmentHeight)
     {
@@ -133,6 +154,211 @@ public class SegmentationInfo
         return rval;
     }
 
+    /**
+     * Set the bit of every segment that the given rectangle (in screen coordinates) touches
+     */
+    public void markSegments(int x, int y, int width, int height, FixedLengthBitSet dst)
+    {
+        int right = Math.min(x + width, screenWidth);
+        int bottom = Math.min(y + height, screenHeight);
+        x = Math.max(x, 0);
+        y = Math.max(y, 0);
+        
+        if (x >= right || y >= bottom)
+        {
+            return;
+        }
+        
+        int leftIdx = x/segmentWidth;
+        int rightIdx = (right-1)/segmentWidth;
+        int topIdx = y/segmentHeight;
+        int bottomIdx = (bottom-1)/segmentHeight;
+        
+        for (int j=topIdx; j<=bottomIdx; j++)
+        {
+            for (int i=leftIdx; i<=rightIdx; i++)
+            {
+                dst.set(getSegmentID(i, j), Boolean.TRUE);
+            }
+        }
+    }
+    
+    public void setMaxRegionLevel(int maxRegionLevel)
+    {
+        assert_(maxRegionLevel >= 0);
+        assert_(maxRegionLevel <= MAX_REGION_LEVEL);
+        
+        this.maxRegionLevel = maxRegionLevel;
+    }
+    
+    public static int getRegionID(int level, int segmentID)
+    {
+        assert_(level >= 0);
+        assert_(level <= MAX_REGION_LEVEL);
+        assert_(segmentID >= 0);
+        assert_(segmentID <= REGION_SEGMENT_ID_MASK);
+        
+        return (level << REGION_LEVEL_SHIFT) | segmentID;
+    }
+    
+    public static int getRegionLevel(int regionID)
+    {
+        return regionID >>> REGION_LEVEL_SHIFT;
+    }
+    
+    /**
+     * @return the ID of the top left segment of the region
+     */
+    public static int getRegionSegmentID(int regionID)
+    {
+        return regionID & REGION_SEGMENT_ID_MASK;
+    }
+    
+    /**
+     * @param regionID
+     * @param bounds set to the area of the screen covered by the region
+     */
+    public void getRegionBounds(int regionID, Rectangle bounds)
+    {
+        int level = getRegionLevel(regionID);
+        
+        assert_(level <= maxRegionLevel);
+        
+        getBounds(getRegionSegmentID(regionID), 1 << level, 1 << level, bounds);
+    }
+    
+    /**
+     * @param segmentID the top left segment
+     * @param numHorizontal width of the block in segments
+     * @param numVertical height of the block in segments
+     * @param bounds set to the area of the screen covered by the block of segments
+     */
+    public void getBounds(int segmentID, int numHorizontal, int numVertical, Rectangle bounds)
+    {
+        int[] pos = new int[2];
+        
+        getPos(segmentID, pos);
+        bounds.x = pos[0];
+        bounds.y = pos[1];
+        bounds.width = Math.min(segmentWidth * numHorizontal, screenWidth - pos[0]);
+        bounds.height = Math.min(segmentHeight * numVertical, screenHeight - pos[1]);
+    }
+    
+    /**
+     * Cover the set segments with disjoint rectangles of segments: rows are
+     * walked top down, left to right, and every segment not yet covered
+     * starts a rectangle that grows as far right as the segments are set and
+     * then as far down as whole rows of that width are set.
+     * 
+     * @param segments
+     * @param dst receives the rectangles in segment units (x, y, width, height are segment indices and counts)
+     */
+    public void collectRectangles(FixedLengthBitSet segments, List<Rectangle> dst)
+    {
+        FixedLengthBitSet remaining = segments.clone();
+        
+        for (int segmentID=remaining.nextSetBit(0); segmentID>=0; segmentID=remaining.nextSetBit(segmentID+1))
+        {
+            int x = segmentID % numHorizontalSegments;
+            int y = segmentID / numHorizontalSegments;
+            int width = 1;
+            int height = 1;
+            
+            while (x + width < numHorizontalSegments && remaining.get(segmentID + width))
+            {
+                width++;
+            }
+            GROW_DOWN:
+            while (y + height < numVerticalSegments)
+            {
+                int rowID = segmentID + height * numHorizontalSegments;
+                for (int i=0; i<width; i++)
+                {
+                    if (!remaining.get(rowID + i))
+                    {
+                        break GROW_DOWN;
+                    }
+                }
+                height++;
+            }
+            for (int j=0, rowID=segmentID; j<height; j++, rowID+=numHorizontalSegments)
+            {
+                for (int i=0; i<width; i++)
+                {
+                    remaining.set(rowID + i, Boolean.FALSE);
+                }
+            }
+            dst.add(new Rectangle(x, y, width, height));
+        }
+    }
+    
+    /**
+     * Cover the set segments with as few regions as the quadtree allows:
+     * a block of segments that is set as a whole becomes a single region
+     * of up to maxRegionLevel, anything else is split into its quadrants.
+     * 
+     * @param segments
+     * @param dst receives the IDs of the regions
+     */
+    public void collectRegions(FixedLengthBitSet segments, List<Integer> dst)
+    {
+        int side = 1 << maxRegionLevel;
+        
+        for (int j=0; j<numVerticalSegments; j+=side)
+        {
+            for (int i=0; i<numHorizontalSegments; i+=side)
+            {
+                if (collectRegions(segments, maxRegionLevel, i, j, dst))
+                {
+                    dst.add(getRegionID(maxRegionLevel, getSegmentID(i, j)));
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return true iff. every segment of the block is set, in which case
+     *         the caller is responsible for adding the block to dst
+     */
+    private boolean collectRegions(FixedLengthBitSet segments, int level, int x, int y, List<Integer> dst)
+    {
+        if (level == 0)
+        {
+            return segments.get(getSegmentID(x, y));
+        }
+        
+        int half = 1 << (level - 1);
+        int fullQuadrants = 0;
+        
+        for (int q=0; q<4; q++)
+        {
+            int qx = x + (q & 1) * half;
+            int qy = y + (q >> 1) * half;
+            // quadrants off the screen count as set
+            if (qx >= numHorizontalSegments || qy >= numVerticalSegments || collectRegions(segments, level - 1, qx, qy, dst))
+            {
+                fullQuadrants |= 1 << q;
+            }
+        }
+        
+        if (fullQuadrants == 0xf)
+        {
+            return true;
+        }
+        
+        for (int q=0; q<4; q++)
+        {
+            int qx = x + (q & 1) * half;
+            int qy = y + (q >> 1) * half;
+            if ((fullQuadrants & (1 << q)) != 0 && qx < numHorizontalSegments && qy < numVerticalSegments)
+            {
+                dst.add(getRegionID(level - 1, getSegmentID(qx, qy)));
+            }
+        }
+        
+        return false;
+    }
+    
     public static boolean updateIntersection(SEGMENT_ALGORITHM alg, int[] dst, Rectangle dstRect, int srcx, int srcy, int srcw, int srch, Object... args)
     {
         boolean rval = Boolean.FALSE;
@@ -149,6 +375,12 @@ public class SegmentationInfo
             case SOLID_COLOR:
                 solidPixelColor = (Integer) args[0];
                 break;
+            case PALETTE:
+            case JPEG:
+            case FILTERED:
+            case DOWNSAMPLED:
+                src = PixelCodec.decode((byte[]) args[0]);
+                break;
         }
         
         int top = Math.max(dstRect.y, srcy);
@@ -171,6 +403,10 @@ public class SegmentationInfo
                 switch (alg)
                 {
                     case PIXELS:
+                    case PALETTE:
+                    case JPEG:
+                    case FILTERED:
+                    case DOWNSAMPLED:
                         srcIdx = left-srcx + (top-srcy)*srcw;
                         break;
                     case SOLID_COLOR:
@@ -182,6 +418,10 @@ public class SegmentationInfo
                     switch (alg)
                     {
                         case PIXELS:
+                        case PALETTE:
+                        case JPEG:
+                        case FILTERED:
+                        case DOWNSAMPLED:
                             System.arraycopy(src, srcIdx, dst, dstIdx, scanSize);
                             
                             srcIdx += srcw;
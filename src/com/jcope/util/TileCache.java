@@ -0,0 +1,121 @@
+package com.jcope.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * A bounded least recently used cache of tiles keyed by their PixelHash.
+ *
+ * A client keeps the pixels of the segments it was sent in one, and the
+ * server keeps a mirror of every client's cache (keys only) so that it can
+ * tell a client to draw a tile it already holds instead of sending it
+ * again. The mirror stays true as long as both sides get(...) and put(...)
+ * the same keys in the same order, which they do in the order of the
+ * updates on the wire. LRU keeps every key of a smaller cache in a larger
+ * one fed the same way, so the server may mirror fewer tiles than the
+ * client keeps but never more.
+ *
+ */
+
+public class TileCache<V>
+{
+    private final int capacity;
+    private final LinkedHashMap<Long, V> tiles;
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numStored = 0;
+    
+    /**
+     * @param capacity maximum number of tiles kept
+     */
+    public TileCache(final int capacity)
+    {
+        this.capacity = capacity;
+        tiles = new LinkedHashMap<Long, V>(16, 0.75f, Boolean.TRUE) {
+            
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, V> eldest)
+            {
+                return size() > capacity;
+            }
+            
+        };
+    }
+    
+    /**
+     * @return the key of a segment's pixels, rows scanSize apart
+     */
+    public static long key(int[] pixels, int offset, int width, int height, int scanSize)
+    {
+        return PixelHash.hash(pixels, offset, width, height, scanSize);
+    }
+    
+    /**
+     * @return the key of a segment's pixels as a client of the given format holds them
+     */
+    public static long key(int[] pixels, int offset, int width, int height, int scanSize, PIXEL_FORMAT format)
+    {
+        return PixelHash.hash(pixels, offset, width, height, scanSize, format);
+    }
+    
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Look up a tile and make it the most recently used one
+     *
+     * @return the tile or null if it is not cached
+     */
+    public synchronized V get(long key)
+    {
+        V rval = tiles.get(key);
+        
+        if (rval == null)
+        {
+            numMisses++;
+        }
+        else
+        {
+            numHits++;
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @return true iff. the tile is cached, without making it the most recently used one
+     */
+    public synchronized boolean contains(long key)
+    {
+        return tiles.containsKey(key);
+    }
+    
+    /**
+     * Add (or refresh) a tile as the most recently used one, evicting the least recently used one when full
+     */
+    public synchronized void put(long key, V tile)
+    {
+        tiles.put(key, tile);
+        numStored++;
+    }
+    
+    public synchronized void clear()
+    {
+        tiles.clear();
+    }
+    
+    public synchronized void report(StringBuilder sb)
+    {
+        long numLookups = numHits + numMisses;
+        sb.append(String.format("%d of %d tiles held, %d stored\nlookups: %d hits, %d misses (%.1f%% hit rate)", tiles.size(), capacity, numStored, numHits, numMisses, (numLookups == 0) ? 0.0 : numHits * 100.0 / numLookups));
+    }
+}
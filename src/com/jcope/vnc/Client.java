@@ -11,6 +11,7 @@ import java.net.UnknownHostException;
 import java.util.GregorianCalendar;
 import java.util.Properties;
 
+import com.jcope.util.PixelCodec;
 import com.jcope.util.TypeSafeEnumPropertyPattern;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.client.VIEW_MODE;
@@ -38,7 +39,14 @@ public class Client
         REMOTE_PORT(1987),
         REMOTE_DISPLAY_NUM(null),
         SYNCHRONIZE_CLIPBOARD(Boolean.FALSE),
-        MONITOR_SCANNING_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime)))
+        MONITOR_SCANNING_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime))),
+        TILE_CACHE_SIZE(Integer.valueOf(4096)),
+        PIXEL_FORMAT(PixelCodec.PIXEL_FORMAT.ARGB8888),
+        JPEG_QUALITY(Integer.valueOf(0)),
+        DELTA_ENCODING(Boolean.TRUE),
+        TILE_FILTERING(Boolean.TRUE),
+        PREVIEW_SCALE(Integer.valueOf(0)),
+        SERVER_SCALING(Boolean.TRUE)
         
         ;
         
@@ -58,12 +66,18 @@ public class Client
                     assert_(obj instanceof String);
                     break;
                 case REMOTE_PORT:
+                case TILE_CACHE_SIZE:
+                case JPEG_QUALITY:
+                case PREVIEW_SCALE:
                     assert_(obj instanceof Integer);
                     break;
                 case REMOTE_DISPLAY_NUM:
                     assert_(obj == null || obj instanceof Integer);
                     break;
                 case SYNCHRONIZE_CLIPBOARD:
+                case DELTA_ENCODING:
+                case TILE_FILTERING:
+                case SERVER_SCALING:
                     assert_(obj instanceof Boolean);
                     break;
                 case MONITOR_SCANNING_PERIOD:
@@ -75,6 +89,9 @@ public class Client
                 case DEFAULT_ACCESS_MODE:
                 	assert_(obj instanceof ACCESS_MODE);
                 	break;
+                case PIXEL_FORMAT:
+                    assert_(obj instanceof PixelCodec.PIXEL_FORMAT);
+                    break;
             }
         }
         
@@ -91,12 +108,18 @@ public class Client
                     break;
                 case REMOTE_PORT:
                 case REMOTE_DISPLAY_NUM:
+                case TILE_CACHE_SIZE:
+                case JPEG_QUALITY:
+                case PREVIEW_SCALE:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
                     }
                     break;
                 case SYNCHRONIZE_CLIPBOARD:
+                case DELTA_ENCODING:
+                case TILE_FILTERING:
+                case SERVER_SCALING:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
@@ -142,6 +165,21 @@ public class Client
                 		}
                 	}
                 	break;
+                case PIXEL_FORMAT:
+                    if (value instanceof String)
+                    {
+                        String strValue = ((String) value).trim();
+                        for (PixelCodec.PIXEL_FORMAT pixelFormat : PixelCodec.PIXEL_FORMAT.values())
+                        {
+                            if (!strValue.equals(pixelFormat.name()))
+                            {
+                                continue;
+                            }
+                            value = pixelFormat;
+                            break;
+                        }
+                    }
+                    break;
             }
             assertType(value);
             this.value = value;
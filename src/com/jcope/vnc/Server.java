@@ -26,7 +26,9 @@ import org.xml.sax.SAXException;
 import com.jcope.debug.LLog;
 import com.jcope.util.CurrentProcessInfo;
 import com.jcope.util.TypeSafeEnumPropertyPattern;
+import com.jcope.vnc.server.DirectRobot;
 import com.jcope.vnc.server.VncServer;
+import com.jcope.vnc.server.screen.source.FrameSource.FRAME_SOURCE;
 
 /**
  * 
@@ -51,7 +53,25 @@ public class Server
         SERVER_BIND_ADDRESS_SPEC(null),
         SERVER_BIND_ADDRESS_MASK(null),
         MIN_MONITOR_SCANNING_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime))),
-        OBEY_SPEED_LIMITS(Boolean.TRUE)
+        OBEY_SPEED_LIMITS(Boolean.TRUE),
+        SERVER_FRAME_SOURCE(FRAME_SOURCE.ROBOT),
+        SERVER_FRAME_SOURCE_PATH(""),
+        SERVER_X11_DAMAGE(Boolean.FALSE),
+        SERVER_X11_DISPLAY(""),
+        MONITOR_FULL_SCAN_INTERVAL(Integer.valueOf(10)),
+        MONITOR_SCAN_THREADS(Integer.valueOf(1)),
+        MONITOR_COLD_SCAN_INTERVAL(Integer.valueOf(4)),
+        MONITOR_PROBE_STRIDE(Integer.valueOf(1)),
+        MONITOR_PROBE_VERIFY_INTERVAL(Integer.valueOf(10)),
+        MONITOR_MAX_REGION_LEVEL(Integer.valueOf(3)),
+        MONITOR_SEND_RECTANGLES(Boolean.TRUE),
+        MONITOR_DETECT_MOTION(Boolean.TRUE),
+        MAX_TILE_CACHE_SIZE(Integer.valueOf(4096)),
+        ENCODED_TILE_CACHE_SIZE(Integer.valueOf(16 << 20)),
+        DELTA_BASE_CACHE_SIZE(Integer.valueOf(4 << 20)),
+        MONITOR_MAX_IDLE_PERIOD(Long.valueOf(mustParseISO8601DurationRP("T2S", startTime))),
+        LOSSY_REFINE_DELAY(Long.valueOf(mustParseISO8601DurationRP("T1S", startTime))),
+        VIDEO_MAX_FRAME_RATE(Integer.valueOf(10))
         
         ;
         
@@ -73,19 +93,39 @@ public class Server
                     break;
                 case SERVER_BIND_ADDRESS:
                 case SERVER_SECURITY_POLICY:
+                case SERVER_FRAME_SOURCE_PATH:
+                case SERVER_X11_DISPLAY:
                     assert_(obj instanceof String);
                     break;
                 case SERVER_LISTEN_BACKLOG:
                 case SERVER_PORT:
+                case MONITOR_FULL_SCAN_INTERVAL:
+                case MONITOR_SCAN_THREADS:
+                case MONITOR_COLD_SCAN_INTERVAL:
+                case MONITOR_PROBE_STRIDE:
+                case MONITOR_PROBE_VERIFY_INTERVAL:
+                case MONITOR_MAX_REGION_LEVEL:
+                case MAX_TILE_CACHE_SIZE:
+                case ENCODED_TILE_CACHE_SIZE:
+                case DELTA_BASE_CACHE_SIZE:
+                case VIDEO_MAX_FRAME_RATE:
                     assert_(obj instanceof Integer);
                     break;
                 case OBEY_SPEED_LIMITS:
                 case SUPPORT_CLIPBOARD_SYNCHRONIZATION:
+                case SERVER_X11_DAMAGE:
+                case MONITOR_SEND_RECTANGLES:
+                case MONITOR_DETECT_MOTION:
                     assert_(obj instanceof Boolean);
                     break;
                 case MIN_MONITOR_SCANNING_PERIOD:
+                case MONITOR_MAX_IDLE_PERIOD:
+                case LOSSY_REFINE_DELAY:
                     assert_(obj instanceof Long);
                     break;
+                case SERVER_FRAME_SOURCE:
+                    assert_(obj instanceof FRAME_SOURCE);
+                    break;
             }
         }
         
@@ -112,9 +152,21 @@ public class Server
                     break;
                 case SERVER_BIND_ADDRESS:
                 case SERVER_SECURITY_POLICY:
+                case SERVER_FRAME_SOURCE_PATH:
+                case SERVER_X11_DISPLAY:
                     break;
                 case SERVER_LISTEN_BACKLOG:
                 case SERVER_PORT:
+                case MONITOR_FULL_SCAN_INTERVAL:
+                case MONITOR_SCAN_THREADS:
+                case MONITOR_COLD_SCAN_INTERVAL:
+                case MONITOR_PROBE_STRIDE:
+                case MONITOR_PROBE_VERIFY_INTERVAL:
+                case MONITOR_MAX_REGION_LEVEL:
+                case MAX_TILE_CACHE_SIZE:
+                case ENCODED_TILE_CACHE_SIZE:
+                case DELTA_BASE_CACHE_SIZE:
+                case VIDEO_MAX_FRAME_RATE:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
@@ -122,6 +174,9 @@ public class Server
                     break;
                 case OBEY_SPEED_LIMITS:
                 case SUPPORT_CLIPBOARD_SYNCHRONIZATION:
+                case SERVER_X11_DAMAGE:
+                case MONITOR_SEND_RECTANGLES:
+                case MONITOR_DETECT_MOTION:
                     if (value instanceof String)
                     {
                         value = Integer.parseInt((String) value);
@@ -132,8 +187,16 @@ public class Server
                     }
                     break;
                 case MIN_MONITOR_SCANNING_PERIOD:
+                case MONITOR_MAX_IDLE_PERIOD:
+                case LOSSY_REFINE_DELAY:
                     value = Long.valueOf(mustParseISO8601DurationRP((String) value, startTime));
                     break;
+                case SERVER_FRAME_SOURCE:
+                    if (value instanceof String)
+                    {
+                        value = FRAME_SOURCE.valueOf(((String) value).trim());
+                    }
+                    break;
             }
             assertType(value);
             this.value = value;
@@ -243,11 +306,62 @@ public class Server
 	            prop = SERVER_PROPERTIES.MIN_MONITOR_SCANNING_PERIOD;
 	            System.out.println(String.format("%s=%d (ms)", prop.name(), prop.getValue()));
 	            
+	            prop = SERVER_PROPERTIES.MONITOR_MAX_IDLE_PERIOD;
+	            System.out.println(String.format("%s=%d (ms)", prop.name(), prop.getValue()));
+	            
 	            prop = SERVER_PROPERTIES.OBEY_SPEED_LIMITS;
 	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
 	            
 	            prop = SERVER_PROPERTIES.SUPPORT_CLIPBOARD_SYNCHRONIZATION;
 	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
+	            
+	            prop = SERVER_PROPERTIES.SERVER_FRAME_SOURCE;
+	            System.out.println(String.format("%s=%s", prop.name(), ((FRAME_SOURCE)prop.getValue()).name()));
+	            
+	            prop = SERVER_PROPERTIES.SERVER_X11_DAMAGE;
+	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_SCAN_THREADS;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_COLD_SCAN_INTERVAL;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_PROBE_STRIDE;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_PROBE_VERIFY_INTERVAL;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_MAX_REGION_LEVEL;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_SEND_RECTANGLES;
+	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
+	            
+	            prop = SERVER_PROPERTIES.MONITOR_DETECT_MOTION;
+	            System.out.println(String.format("%s=%d", prop.name(), ((Boolean)prop.getValue()) ? 1 : 0));
+	            
+	            prop = SERVER_PROPERTIES.MAX_TILE_CACHE_SIZE;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.ENCODED_TILE_CACHE_SIZE;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.DELTA_BASE_CACHE_SIZE;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.LOSSY_REFINE_DELAY;
+	            System.out.println(String.format("%s=%d (ms)", prop.name(), prop.getValue()));
+	            
+	            prop = SERVER_PROPERTIES.VIDEO_MAX_FRAME_RATE;
+	            System.out.println(String.format("%s=%d", prop.name(), prop.getValue()));
+            }
+            
+            if (SERVER_PROPERTIES.SERVER_FRAME_SOURCE.getValue() == FRAME_SOURCE.ROBOT)
+            {
+                // time the capture methods up front instead of when the first client selects a screen
+                DirectRobot.selectCaptureMethods();
             }
             
             vncServer.run();
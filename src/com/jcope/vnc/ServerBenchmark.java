@@ -0,0 +1,1375 @@
+package com.jcope.vnc;
+
+import static com.jcope.vnc.shared.ScreenSelector.getScreenDevices;
+
+import java.awt.AWTException;
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.GraphicsSegment;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+import com.jcope.util.PixelKernels;
+import com.jcope.util.PixelKernels.KERNEL;
+import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
+import com.jcope.util.TileCache;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.DeltaBaseCache;
+import com.jcope.vnc.server.DirectRobot;
+import com.jcope.vnc.server.EncodedTileCache;
+import com.jcope.vnc.server.JitCompressedEvent;
+import com.jcope.vnc.server.screen.Manager;
+import com.jcope.vnc.server.screen.Monitor;
+import com.jcope.vnc.server.screen.source.FrameSource;
+import com.jcope.vnc.server.screen.source.FrameSource.FRAME_SOURCE;
+import com.jcope.vnc.server.screen.source.FrameSourceFactory;
+import com.jcope.vnc.server.screen.source.ReplayFrameSource;
+import com.jcope.vnc.shared.Msg;
+import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Drives the screen scanning pipeline without any clients attached so that
+ * capture, compare and encode throughput can be measured in isolation.
+ *
+ * Synthetic and replay frame sources need no display, so this runs headless.
+ * 
+ * scale repeats the scan with 1 to maxThreads scan threads (default: one
+ * per available processor) and reports the speedup over a single thread.
+ * 
+ * kernels repeats the scan with each of the change detection kernels
+ * (see PixelKernels) that the running JVM supports.
+ * 
+ * heatmap repeats the scan with every segment scanned every time and
+ * with cold segments only scanned every coldScanInterval scans (see
+ * SegmentHeatmap).
+ * 
+ * probe repeats the scan comparing every scanline and comparing every
+ * stride-th scanline with a full comparison every verifyInterval scans.
+ *
+ * motion repeats the scan without and with motion detection (see
+ * MotionDetector), only segments that no move explains are encoded.
+ * 
+ * Every scan mode passes the segments it would send through a TileCache
+ * of MAX_TILE_CACHE_SIZE tiles as a client's would be, segments found in
+ * it are not encoded.
+ * 
+ * dedupe repeats the scan without and with an EncodedTileCache of
+ * ENCODED_TILE_CACHE_SIZE bytes, segments that look like one encoded
+ * before are not encoded again.
+ * 
+ * formats repeats the scan sending pixels in each PIXEL_FORMAT (see
+ * PixelCodec) and reports the encoded bytes per scan of each.
+ *
+ * lossy repeats the scan sending photographic segments as JPEG of a few
+ * qualities (see JPEG_QUALITY) and reports the encoded bytes per scan of
+ * each, not counting the lossless refinements of segments that settle.
+ *
+ * deltas repeats the scan without and with a DeltaBaseCache of
+ * DELTA_BASE_CACHE_SIZE bytes, segments of which at most half of the
+ * pixels changed since they were last sent are sent as a delta or as
+ * the rectangle of them that changed.
+ *
+ * filters collects up to maxTiles segments that change while scanning,
+ * but for solid ones (palettes aside), then sends each as
+ * an int[] as Msg compresses it, as PIXELS and as FILTERED (see
+ * PixelCodec.encodeFiltered) and reports the compressed bytes and the
+ * time to encode and decode a tile, messaging included.
+ *
+ * video repeats the scan sending photographic segments as JPEG (see
+ * JPEG_QUALITY) without and with video regions (see Monitor), each of
+ * which is sent as a single JPEG at most VIDEO_MAX_FRAME_RATE times a
+ * second in place of its segments.
+ *
+ * preview scans once and reports the compressed bytes of the whole screen
+ * sent as regions and of DOWNSAMPLED previews of it (see
+ * PixelCodec.encodeDownsampled) at a few scales, which is how much sooner
+ * a client on a slow link sees the whole screen with PREVIEW_SCALE set.
+ *
+ * scaling repeats the scan sending segments DOWNSAMPLED at a few scales,
+ * as they are sent to a client that shows the screen scaled down (see
+ * ClientHandler.setScaleFactor), and reports the encoded bytes per scan
+ * of each.
+ *
+ * events connects a client that takes deltas (see DELTA_ENCODING) over a
+ * loopback socket, sends it events that draw no segments and reports
+ * whether it is still connected after them (exit status 1 if it is not).
+ *
+ * codecs round trips every segment, every region, the whole screen and
+ * every rectangle of segments as Monitor holds them, and a few odd shapes,
+ * through every encoding of PixelCodec in every PIXEL_FORMAT, and checks
+ * that a client decodes what it is sent to the pixels as quantized to the
+ * format (exit status 1 if any does not).
+ *
+ * Usage:
+ *     ServerBenchmark scan <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark scale <FRAME_SOURCE> [seconds] [maxThreads] [path]
+ *     ServerBenchmark kernels <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark heatmap <FRAME_SOURCE> [seconds] [coldScanInterval] [path]
+ *     ServerBenchmark probe <FRAME_SOURCE> [seconds] [stride] [verifyInterval] [path]
+ *     ServerBenchmark motion <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark dedupe <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark formats <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark lossy <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark deltas <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark filters <FRAME_SOURCE> [seconds] [maxTiles] [path]
+ *     ServerBenchmark video <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark preview <FRAME_SOURCE> [path]
+ *     ServerBenchmark scaling <FRAME_SOURCE> [seconds] [path]
+ *     ServerBenchmark events <FRAME_SOURCE> [path]
+ *     ServerBenchmark codecs <FRAME_SOURCE> [path]
+ *     ServerBenchmark record <FRAME_SOURCE> <dir> <numFrames> [periodMS]
+ *
+ */
+
+public class ServerBenchmark
+{
+    private static final long DEFAULT_SECONDS = 10;
+    
+    private static final Object[] jce_id_ptr = new Object[]{null};
+    private static PIXEL_FORMAT pixelFormat = PIXEL_FORMAT.ARGB8888;
+    private static int jpegQuality = 0;
+    private static int scaleShift = 0;
+    private static long numLossySegments = 0;
+    private static DeltaBaseCache deltaBases = null;
+    private static double encodedBytesPerScan = 0.0;
+    private static boolean detectVideo = false;
+    private static final long VIDEO_FRAME_PERIOD_NS = 1000000000L / Math.max(1, (Integer) SERVER_PROPERTIES.VIDEO_MAX_FRAME_RATE.getValue());
+    private static long videoFrameAtNS;
+    private static long numVideoFrames = 0;
+    private static long numSkippedVideoFrames = 0;
+    private static long numVideoBytes = 0;
+    private static final long[] numRoundTrips = new long[SEGMENT_ALGORITHM.values().length];
+    private static final long[] numFailedRoundTrips = new long[SEGMENT_ALGORITHM.values().length];
+    private static final GraphicsSegment.Synchronously encode = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            Integer solidColor = solidColorPtr[0];
+            byte[] downsampled = (scaleShift > 0 && solidColor == null) ? EncodedTileCache.serializeDownsampled(pixels, receiver.getWidth(), scaleShift, pixelFormat) : null;
+            Object full = (downsampled == null) ? null : EncodedTileCache.serialize(pixels, receiver.getWidth(), receiver.getPalette(), pixelFormat, false);
+            if (downsampled != null && !(full instanceof byte[] && ((byte[]) full).length <= downsampled.length))
+            {
+                JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{jce_id_ptr[0], downsampled});
+                try
+                {
+                    return Integer.valueOf(jce.getCompressed().length);
+                }
+                finally {
+                    jce.release();
+                }
+            }
+            if (jpegQuality > 0 && solidColor == null && receiver.isPhotographic())
+            {
+                byte[] lossy = EncodedTileCache.serializeLossy(pixels, receiver.getWidth(), jpegQuality);
+                if (lossy != null)
+                {
+                    numLossySegments++;
+                    JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{jce_id_ptr[0], lossy});
+                    try
+                    {
+                        return Integer.valueOf(jce.getCompressed().length);
+                    }
+                    finally {
+                        jce.release();
+                    }
+                }
+            }
+            Object serialized = (solidColor == null) ? EncodedTileCache.serialize(pixels, receiver.getWidth(), receiver.getPalette(), pixelFormat, false) : Integer.valueOf(pixelFormat.quantize(solidColor));
+            JitCompressedEvent jce = receiver.acquireJitCompressedEvent(pixelFormat, jce_id_ptr[0], serialized);
+            try
+            {
+                return Integer.valueOf(jce.getCompressed().length);
+            }
+            finally {
+                jce.release();
+            }
+        }
+        
+    };
+    
+    private static final GraphicsSegment.Synchronously encodeDelta = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            Integer segmentID = (Integer) jce_id_ptr[0];
+            int[] base = deltaBases.get(segmentID);
+            int width = receiver.getWidth();
+            Rectangle bounds = new Rectangle();
+            int numChanged = (base == null) ? pixels.length : PixelCodec.findChanges(pixels, base, width, pixelFormat, bounds);
+            Integer rval;
+            byte[] delta = null;
+            if (numChanged > 0 && numChanged <= pixels.length >> 1 && solidColorPtr[0] == null)
+            {
+                delta = PixelCodec.encodeDelta(pixels, base, width, pixelFormat);
+                if (bounds.width * bounds.height < pixels.length)
+                {
+                    byte[] patch = PixelCodec.encodePatch(pixels, base, width, bounds, pixelFormat);
+                    if (patch.length < delta.length)
+                    {
+                        delta = patch;
+                    }
+                }
+                Object full = EncodedTileCache.serialize(pixels, receiver.getWidth(), receiver.getPalette(), pixelFormat, false);
+                if (full instanceof byte[] && ((byte[]) full).length <= delta.length)
+                {
+                    delta = null;
+                }
+            }
+            if (delta != null)
+            {
+                JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{segmentID, delta});
+                try
+                {
+                    rval = Integer.valueOf(jce.getCompressed().length);
+                }
+                finally {
+                    jce.release();
+                }
+                deltaBases.countDelta(delta);
+            }
+            else
+            {
+                rval = (Integer) encode.run(receiver, pixels, solidColorPtr);
+            }
+            deltaBases.put(segmentID, pixelFormat.quantize(pixels));
+            
+            return rval;
+        }
+        
+    };
+    
+    private static final GraphicsSegment.Synchronously tileKey = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            return (solidColorPtr[0] == null) ? Long.valueOf(TileCache.key(pixels, 0, receiver.getWidth(), receiver.getHeight(), receiver.getWidth(), pixelFormat)) : null;
+        }
+        
+    };
+    
+    private static void usage()
+    {
+        System.out.println("Usage:");
+        System.out.println("    ServerBenchmark scan <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark scale <FRAME_SOURCE> [seconds] [maxThreads] [path]");
+        System.out.println("    ServerBenchmark kernels <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark heatmap <FRAME_SOURCE> [seconds] [coldScanInterval] [path]");
+        System.out.println("    ServerBenchmark probe <FRAME_SOURCE> [seconds] [stride] [verifyInterval] [path]");
+        System.out.println("    ServerBenchmark motion <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark dedupe <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark formats <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark lossy <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark deltas <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark filters <FRAME_SOURCE> [seconds] [maxTiles] [path]");
+        System.out.println("    ServerBenchmark video <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark preview <FRAME_SOURCE> [path]");
+        System.out.println("    ServerBenchmark scaling <FRAME_SOURCE> [seconds] [path]");
+        System.out.println("    ServerBenchmark events <FRAME_SOURCE> [path]");
+        System.out.println("    ServerBenchmark codecs <FRAME_SOURCE> [path]");
+        System.out.println("    ServerBenchmark record <FRAME_SOURCE> <dir> <numFrames> [periodMS]");
+        System.out.print("FRAME_SOURCE is one of:");
+        for (FRAME_SOURCE type : FRAME_SOURCE.values())
+        {
+            System.out.print(" ");
+            System.out.print(type.name());
+        }
+        System.out.println();
+        System.exit(1);
+    }
+    
+    private static FrameSource createFrameSource(FRAME_SOURCE type, String path) throws AWTException
+    {
+        DirectRobot dirbot = null;
+        if (type == FRAME_SOURCE.ROBOT)
+        {
+            dirbot = new DirectRobot(getScreenDevices()[0]);
+        }
+        FrameSource rval = FrameSourceFactory.create(type, dirbot, path);
+        if (rval == null)
+        {
+            throw new RuntimeException(String.format("Unable to create %s frame source", type.name()));
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @return scans per second
+     */
+    private static double scan(FrameSource frameSource, long seconds, int numScanThreads, PixelKernels kernels)
+    {
+        return scan(frameSource, seconds, numScanThreads, kernels, 1, 1, 1, true);
+    }
+    
+    /**
+     * @param coldScanInterval see Monitor.setColdScanInterval, 1 to scan every segment every time
+     * @param probeStride see Monitor.setProbe, 1 to compare every scanline
+     * @param probeVerifyInterval see Monitor.setProbe
+     * @param detectMotion see Monitor.setMotionDetection
+     * @return scans per second
+     */
+    private static double scan(FrameSource frameSource, long seconds, int numScanThreads, PixelKernels kernels, int coldScanInterval, int probeStride, int probeVerifyInterval, boolean detectMotion)
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        boolean hasCPUTime = threadMXBean.isCurrentThreadCpuTimeSupported();
+        Monitor monitor = new Monitor(Manager.SEGMENT_WIDTH, Manager.SEGMENT_HEIGHT, null, frameSource, new ArrayList<ClientHandler>(0));
+        if (numScanThreads >= 0)
+        {
+            monitor.setScanThreads(numScanThreads);
+        }
+        if (kernels != null)
+        {
+            monitor.setKernels(kernels);
+        }
+        monitor.setColdScanInterval(coldScanInterval);
+        monitor.setProbe(probeStride, probeVerifyInterval);
+        monitor.setMotionDetection(detectMotion);
+        monitor.setVideoDetection(detectVideo);
+        Rectangle bounds = monitor.getScreenBounds();
+        FixedLengthBitSet changed, unexplained;
+        long numChangedSegments = 0;
+        long numMoves = 0;
+        long numSentSegments = 0;
+        int tileCacheSize = (Integer) SERVER_PROPERTIES.MAX_TILE_CACHE_SIZE.getValue();
+        TileCache<Boolean> tileCache = (tileCacheSize > 0) ? new TileCache<Boolean>(tileCacheSize) : null;
+        long numTileHits = 0;
+        long numRegions = 0;
+        ArrayList<Integer> regionIDs = new ArrayList<Integer>();
+        long numRectangles = 0;
+        ArrayList<Rectangle> rectangles = new ArrayList<Rectangle>();
+        long numBytes = 0;
+        numLossySegments = 0;
+        numVideoFrames = 0;
+        numSkippedVideoFrames = 0;
+        numVideoBytes = 0;
+        long startCPU, stopCPU;
+        long startAt, stopAt, deadline;
+        
+        System.out.println(String.format("Scanning %s (%dx%d, %d segments) with %d thread(s) for %d seconds...", frameSource.toString(), bounds.width, bounds.height, monitor.getSegmentCount(), monitor.getScanThreads(), seconds));
+        
+        // first scan loads every segment, keep it out of the measurement
+        monitor.scan();
+        EncodedTileCache.clear();
+        
+        startCPU = hasCPUTime ? threadMXBean.getCurrentThreadCpuTime() : 0;
+        startAt = System.nanoTime();
+        deadline = startAt + seconds * 1000000000L;
+        videoFrameAtNS = startAt - VIDEO_FRAME_PERIOD_NS;
+        do
+        {
+            changed = monitor.scanNext();
+            if (changed != null)
+            {
+                for (int i=changed.nextSetBit(0); i>=0; i=changed.nextSetBit(i+1))
+                {
+                    numChangedSegments++;
+                }
+                numMoves += monitor.getMoves().size();
+                unexplained = monitor.withoutMoves(changed);
+                if (unexplained != null && detectVideo)
+                {
+                    unexplained = sendVideoRegions(monitor, unexplained);
+                }
+                if (unexplained != null)
+                {
+                    for (int i=unexplained.nextSetBit(0); i>=0; i=unexplained.nextSetBit(i+1))
+                    {
+                        GraphicsSegment graphicsSegment = monitor.getSegment(i);
+                        numSentSegments++;
+                        if (tileCache != null)
+                        {
+                            Long key = (Long) graphicsSegment.synchronously(tileKey);
+                            if (key != null && tileCache.get(key) != null)
+                            {
+                                numTileHits++;
+                                continue;
+                            }
+                            if (key != null)
+                            {
+                                tileCache.put(key, Boolean.TRUE);
+                            }
+                        }
+                        jce_id_ptr[0] = Integer.valueOf(i);
+                        numBytes += (Integer) graphicsSegment.synchronously((deltaBases == null) ? encode : encodeDelta);
+                    }
+                    regionIDs.clear();
+                    monitor.collectRegions(unexplained, regionIDs);
+                    numRegions += regionIDs.size();
+                    rectangles.clear();
+                    monitor.collectRectangles(unexplained, rectangles);
+                    numRectangles += rectangles.size();
+                }
+            }
+            stopAt = System.nanoTime();
+        } while (stopAt < deadline);
+        stopCPU = hasCPUTime ? threadMXBean.getCurrentThreadCpuTime() : 0;
+        numBytes += numVideoBytes;
+        
+        long numScans = monitor.getScanCount() - 1;
+        double elapsedS = ((double) (stopAt - startAt)) / 1000000000.0;
+        
+        System.out.println(String.format("scans: %d (%.2f/s)", numScans, numScans / elapsedS));
+        System.out.println(String.format("changed segments: %d (%.2f/s, %.2f/scan)", numChangedSegments, numChangedSegments / elapsedS, ((double) numChangedSegments) / numScans));
+        if (detectMotion)
+        {
+            System.out.println(String.format("moves: %d (%.2f/scan), segments sent after moves: %d (%.2f/scan)", numMoves, ((double) numMoves) / numScans, numSentSegments, ((double) numSentSegments) / numScans));
+        }
+        System.out.println(String.format("updates sent as regions: %d (%.2f/scan)", numRegions, ((double) numRegions) / numScans));
+        System.out.println(String.format("updates sent as rectangles: %d (%.2f/scan)", numRectangles, ((double) numRectangles) / numScans));
+        if (tileCache != null)
+        {
+            System.out.println(String.format("tile cache hits: %d of %d segments sent (%.1f%%)", numTileHits, numSentSegments, (numSentSegments == 0) ? 0.0 : numTileHits * 100.0 / numSentSegments));
+        }
+        System.out.println(String.format("encoded bytes: %d (%.2f KiB/s)", numBytes, numBytes / elapsedS / 1024.0));
+        encodedBytesPerScan = ((double) numBytes) / numScans;
+        if (deltaBases != null)
+        {
+            StringBuilder sb = new StringBuilder("delta bases: ");
+            deltaBases.report(sb);
+            System.out.println(sb.toString());
+        }
+        if (jpegQuality > 0)
+        {
+            System.out.println(String.format("segments sent lossy: %d of %d sent (%.1f%%)", numLossySegments, numSentSegments, (numSentSegments == 0) ? 0.0 : numLossySegments * 100.0 / numSentSegments));
+        }
+        if (detectVideo)
+        {
+            System.out.println(String.format("video frames: %d sent (%.1f KiB each), %d skipped", numVideoFrames, (numVideoFrames == 0) ? 0.0 : numVideoBytes / 1024.0 / numVideoFrames, numSkippedVideoFrames));
+        }
+        if (EncodedTileCache.getCapacity() > 0)
+        {
+            StringBuilder sb = new StringBuilder("encoded tile cache: ");
+            EncodedTileCache.report(sb);
+            System.out.println(sb.toString());
+        }
+        if (coldScanInterval > 1)
+        {
+            System.out.println(String.format("segments scanned: %.1f%%", monitor.getHeatmap().getScannedFraction() * 100.0));
+        }
+        if (probeStride > 1)
+        {
+            System.out.println(String.format("probe misses: %d of %d verified changes", monitor.getNumProbeMisses(), monitor.getNumVerifiedChanges()));
+        }
+        if (hasCPUTime)
+        {
+            // only the scanning thread, scan workers are not included
+            System.out.println(String.format("cpu time: %.3f ms/scan", ((double) (stopCPU - startCPU)) / 1000000.0 / numScans));
+        }
+        
+        return numScans / elapsedS;
+    }
+    
+    /**
+     * Send the video regions that hold changed segments as GetScreenSegment
+     * does to a client that takes JPEG, or skip them if a frame is not due
+     * 
+     * @return the changed segments left to send, null if none
+     */
+    private static FixedLengthBitSet sendVideoRegions(Monitor monitor, FixedLengthBitSet changed)
+    {
+        FixedLengthBitSet videoSegments = new FixedLengthBitSet(changed.length);
+        ArrayList<Rectangle> regions = new ArrayList<Rectangle>();
+        for (Rectangle region : monitor.getVideoRegions())
+        {
+            FixedLengthBitSet segments = new FixedLengthBitSet(changed.length);
+            int segmentID = monitor.getSegmentID(region.x, region.y);
+            monitor.markSegments(segmentID, region.width, region.height, segments);
+            for (int i=segments.nextSetBit(0); i>=0; i=segments.nextSetBit(i+1))
+            {
+                if (changed.get(i))
+                {
+                    regions.add(region);
+                    videoSegments.or(segments);
+                    break;
+                }
+            }
+        }
+        if (regions.isEmpty())
+        {
+            return changed;
+        }
+        
+        long now = System.nanoTime();
+        if (now - videoFrameAtNS >= VIDEO_FRAME_PERIOD_NS)
+        {
+            videoFrameAtNS = now;
+            for (Rectangle region : regions)
+            {
+                int segmentID = monitor.getSegmentID(region.x, region.y);
+                final Rectangle bounds = new Rectangle();
+                monitor.getBounds(segmentID, region.width, region.height, bounds);
+                GraphicsSegment block = monitor.getBlock(region.x, region.y, region.width, region.height);
+                byte[] frame = (byte[]) block.synchronously(new GraphicsSegment.Synchronously() {
+                    
+                    @Override
+                    public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+                    {
+                        return PixelCodec.encodeLossy(pixels, bounds.width, jpegQuality);
+                    }
+                    
+                });
+                JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_RECT_UPDATE, new Object[]{segmentID, region.width, region.height, frame});
+                try
+                {
+                    numVideoBytes += jce.getCompressed().length;
+                }
+                finally {
+                    jce.release();
+                }
+            }
+            numVideoFrames++;
+        }
+        else
+        {
+            numSkippedVideoFrames++;
+        }
+        
+        FixedLengthBitSet rval = changed.clone();
+        rval.andNot(videoSegments);
+        
+        return rval.isEmpty() ? null : rval;
+    }
+    
+    /**
+     * Scan for the given time and keep a copy of every segment that changed, but for solid ones
+     *
+     * @param widths the width of each tile kept
+     * @return the pixels of up to maxTiles tiles
+     */
+    private static ArrayList<int[]> collectTiles(FrameSource frameSource, long seconds, int maxTiles, final ArrayList<Integer> widths)
+    {
+        Monitor monitor = new Monitor(Manager.SEGMENT_WIDTH, Manager.SEGMENT_HEIGHT, null, frameSource, new ArrayList<ClientHandler>(0));
+        final ArrayList<int[]> rval = new ArrayList<int[]>();
+        GraphicsSegment.Synchronously copy = new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                if (solidColorPtr[0] == null)
+                {
+                    rval.add(pixels.clone());
+                    widths.add(receiver.getWidth());
+                }
+                return null;
+            }
+            
+        };
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        
+        System.out.println(String.format("Collecting up to %d tiles from %s for %d seconds...", maxTiles, frameSource.toString(), seconds));
+        
+        // the first scan loads every segment, which makes for tiles too
+        FixedLengthBitSet changed = new FixedLengthBitSet(monitor.getSegmentCount(), true);
+        monitor.scan();
+        do
+        {
+            if (changed != null)
+            {
+                for (int i=changed.nextSetBit(0); i>=0 && rval.size()<maxTiles; i=changed.nextSetBit(i+1))
+                {
+                    monitor.getSegment(i).synchronously(copy);
+                }
+            }
+            changed = monitor.scanNext();
+        } while (rval.size() < maxTiles && System.nanoTime() < deadline);
+        
+        return rval;
+    }
+    
+    /**
+     * @param encoding 0 for the pixels as they are, 1 for PIXELS, 2 for FILTERED
+     * @param rval filled with the compressed bytes and the nanoseconds to encode and to decode every tile
+     * @return the number of tiles that did not decode to the same pixels
+     */
+    private static int sendTiles(ArrayList<int[]> tiles, ArrayList<Integer> widths, int encoding, long[] rval) throws IOException, ClassNotFoundException
+    {
+        int numMismatches = 0;
+        Arrays.fill(rval, 0);
+        
+        for (int i=0; i<tiles.size(); i++)
+        {
+            int[] pixels = tiles.get(i);
+            int width = widths.get(i);
+            long startAt = System.nanoTime();
+            Object serialized;
+            switch (encoding)
+            {
+                case 0:
+                    serialized = pixels;
+                    break;
+                case 1:
+                    serialized = PixelCodec.encode(pixels, PIXEL_FORMAT.ARGB8888);
+                    break;
+                default:
+                    serialized = PixelCodec.encodeFiltered(pixels, width, PIXEL_FORMAT.ARGB8888);
+                    break;
+            }
+            JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, new Object[]{Integer.valueOf(i), serialized});
+            byte[] compressed;
+            try
+            {
+                // a copy, the buffer goes back to its pool on release
+                compressed = jce.getCompressed().clone();
+            }
+            finally {
+                jce.release();
+            }
+            long encodedAt = System.nanoTime();
+            // as Msg.CompressedObjectReader does
+            ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+            Msg msg;
+            try
+            {
+                msg = (Msg) ois.readObject();
+            }
+            finally {
+                ois.close();
+            }
+            Object received = msg.args[1];
+            int[] decoded;
+            if (received instanceof byte[])
+            {
+                decoded = new int[pixels.length];
+                if (!PixelCodec.decode((byte[]) received, decoded, 0, width, width))
+                {
+                    decoded = null;
+                }
+            }
+            else
+            {
+                decoded = (int[]) received;
+            }
+            long decodedAt = System.nanoTime();
+            rval[0] += compressed.length;
+            rval[1] += encodedAt - startAt;
+            rval[2] += decodedAt - encodedAt;
+            if (!Arrays.equals(pixels, decoded))
+            {
+                numMismatches++;
+            }
+        }
+        
+        return numMismatches;
+    }
+    
+    /**
+     * Send events that draw no segments to a client that takes deltas
+     * 
+     * @return true iff. the client is still connected after them
+     */
+    private static boolean sendEvents(FrameSource frameSource) throws IOException, InterruptedException
+    {
+        ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+        Socket remote = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Socket socket = serverSocket.accept();
+        serverSocket.close();
+        try
+        {
+            Monitor monitor = new Monitor(Manager.SEGMENT_WIDTH, Manager.SEGMENT_HEIGHT, null, frameSource, new ArrayList<ClientHandler>(0));
+            ClientHandler client = new ClientHandler(socket);
+            client.setDeltaEncoding(Boolean.TRUE);
+            client.bindMonitor(monitor);
+            client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_SIZE_UPDATE, Integer.valueOf(Manager.SEGMENT_WIDTH), Integer.valueOf(Manager.SEGMENT_HEIGHT), Integer.valueOf(0));
+            client.sendEvent(SERVER_EVENT.CURSOR_MOVE, Integer.valueOf(1), Integer.valueOf(2));
+            client.sendEvent(SERVER_EVENT.CURSOR_GONE);
+            client.sendEvent(SERVER_EVENT.CHAT_MSG_TO_ALL, "", "");
+            // the events are sent by the client's dispatchers
+            Thread.sleep(1000);
+            boolean rval = !client.isDead() && client.isRunning();
+            client.kill();
+            
+            return rval;
+        }
+        finally {
+            remote.close();
+        }
+    }
+    
+    /**
+     * Decode encoded as a client does, into a frame larger than the pixels
+     * at an offset, and on its own as well unless it applies to a base
+     * 
+     * @param base what the client holds of the pixels before, null if encoded does not apply to it
+     * @param expected what the client should hold after, null to only check that it decodes (JPEG)
+     */
+    private static void checkRoundTrip(byte[] encoded, int width, int height, int[] base, int[] expected)
+    {
+        int scanSize = width + 3;
+        int offset = scanSize + 1;
+        int[] frame = new int[scanSize * (height + 2)];
+        if (base != null)
+        {
+            for (int y=0; y<height; y++)
+            {
+                System.arraycopy(base, y * width, frame, offset + y * scanSize, width);
+            }
+        }
+        boolean isMatch = PixelCodec.decode(encoded, frame, offset, width, scanSize);
+        for (int y=0; isMatch && expected != null && y<height; y++)
+        {
+            for (int x=0, i=offset+y*scanSize; isMatch && x<width; x++, i++)
+            {
+                isMatch = (frame[i] == expected[y * width + x]);
+            }
+        }
+        if (isMatch && base == null && expected != null)
+        {
+            int[] decoded = PixelCodec.decode(encoded);
+            isMatch = (decoded != null && Arrays.equals(decoded, expected));
+        }
+        int idx = PixelCodec.getAlgorithm(encoded).ordinal();
+        numRoundTrips[idx]++;
+        if (!isMatch)
+        {
+            numFailedRoundTrips[idx]++;
+            System.out.println(String.format("%s of %dx%d in %s does not decode to the pixels", PixelCodec.getAlgorithm(encoded).name(), width, height, PixelCodec.getFormat(encoded).name()));
+        }
+    }
+    
+    /**
+     * Round trip pixels through every encoding in every PIXEL_FORMAT,
+     * encoded as the server does and decoded as a client does
+     * 
+     * @param encodeWidth the width of the rows the server encodes the pixels in (see GraphicsSegment.getWidth())
+     * @param width the width of the rows a client decodes the pixels in
+     */
+    private static void checkRoundTrips(int[] pixels, int encodeWidth, int width)
+    {
+        int height = pixels.length / width;
+        // few colors of the pixels for PALETTE
+        int[] fewColors = new int[pixels.length];
+        for (int i=0; i<pixels.length; i++)
+        {
+            fewColors[i] = 0xff000000 | (((pixels[i] >> 4) & 0xf) * 0x111111);
+        }
+        int[] palette = new int[PixelCodec.MAX_PALETTE_SIZE];
+        palette = Arrays.copyOf(palette, PixelKernels.collectPalette(fewColors, 0, width, height, width, palette));
+        // a few pixels in the middle that the client holds differently for PATCH
+        int[] patched = pixels.clone();
+        for (int y=height>>1; y<Math.min(height, (height >> 1) + 2); y++)
+        {
+            for (int x=width>>1; x<Math.min(width, (width >> 1) + 3); x++)
+            {
+                patched[y * width + x] ^= 0x00ffffff;
+            }
+        }
+        // the pixels moved by one for XOR_DELTA
+        int[] moved = new int[pixels.length];
+        System.arraycopy(pixels, 1, moved, 0, pixels.length - 1);
+        moved[pixels.length - 1] = pixels[0];
+        
+        for (PIXEL_FORMAT format : PIXEL_FORMAT.values())
+        {
+            int[] expected = format.quantize(pixels);
+            checkRoundTrip(PixelCodec.encode(pixels, format), width, height, null, expected);
+            checkRoundTrip(PixelCodec.encode(fewColors, palette, format), width, height, null, format.quantize(fewColors));
+            checkRoundTrip(PixelCodec.encodeFiltered(pixels, encodeWidth, format), width, height, null, expected);
+            int[] base = format.quantize(moved);
+            checkRoundTrip(PixelCodec.encodeDelta(pixels, base, encodeWidth, format), width, height, base, expected);
+            base = format.quantize(patched);
+            Rectangle bounds = new Rectangle();
+            if (PixelCodec.findChanges(pixels, base, encodeWidth, format, bounds) > 0)
+            {
+                checkRoundTrip(PixelCodec.encodePatch(pixels, base, encodeWidth, bounds, format), width, height, base, expected);
+            }
+            for (int shift=1; shift<=3; shift++)
+            {
+                // squares of one color, which the average keeps as they are
+                int mask = ~((1 << shift) - 1);
+                int[] squares = new int[pixels.length];
+                for (int y=0, i=0; y<height; y++)
+                {
+                    for (int x=0; x<width; x++, i++)
+                    {
+                        squares[i] = pixels[(y & mask) * width + (x & mask)];
+                    }
+                }
+                checkRoundTrip(PixelCodec.encodeDownsampled(squares, encodeWidth, shift, format), width, height, null, format.quantize(squares));
+            }
+        }
+        byte[] jpeg = PixelCodec.encodeLossy(pixels, encodeWidth, 75);
+        if (jpeg != null)
+        {
+            checkRoundTrip(jpeg, width, height, null, null);
+        }
+    }
+    
+    private static void checkRoundTrips(GraphicsSegment graphicsSegment, final int width)
+    {
+        graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                checkRoundTrips(pixels, receiver.getWidth(), width);
+                return null;
+            }
+            
+        });
+    }
+    
+    /**
+     * Round trip every segment, every region, the whole screen, every
+     * rectangle of segments and a few odd shapes cut from the screen
+     * (see checkRoundTrips(...))
+     * 
+     * @return the number of encodings that did not decode to the pixels as quantized to their format
+     */
+    private static long checkCodecs(FrameSource frameSource)
+    {
+        Monitor monitor = new Monitor(Manager.SEGMENT_WIDTH, Manager.SEGMENT_HEIGHT, null, frameSource, new ArrayList<ClientHandler>(0));
+        monitor.scan();
+        Arrays.fill(numRoundTrips, 0);
+        Arrays.fill(numFailedRoundTrips, 0);
+        int[] dim = new int[2];
+        int[] pos = new int[2];
+        
+        for (int i=0; i<monitor.getSegmentCount(); i++)
+        {
+            monitor.getSegmentDim(i, dim);
+            checkRoundTrips(monitor.getSegment(i), dim[0]);
+        }
+        FixedLengthBitSet all = new FixedLengthBitSet(monitor.getSegmentCount(), Boolean.TRUE);
+        ArrayList<Integer> regionIDs = new ArrayList<Integer>();
+        monitor.collectRegions(all, regionIDs);
+        for (Integer regionID : regionIDs)
+        {
+            FixedLengthBitSet segments = new FixedLengthBitSet(monitor.getSegmentCount());
+            monitor.markRegion(regionID, segments);
+            Rectangle bounds = null;
+            for (int i=segments.nextSetBit(0); i>=0; i=segments.nextSetBit(i+1))
+            {
+                monitor.getSegmentPos(i, pos);
+                monitor.getSegmentDim(i, dim);
+                Rectangle segmentBounds = new Rectangle(pos[0], pos[1], dim[0], dim[1]);
+                bounds = (bounds == null) ? segmentBounds : bounds.union(segmentBounds);
+            }
+            checkRoundTrips(monitor.getSegment(regionID), bounds.width);
+        }
+        checkRoundTrips(monitor.getSegment(-1), monitor.getScreenBounds().width);
+        ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+        monitor.collectRectangles(all, rects);
+        for (Rectangle rect : rects)
+        {
+            Rectangle bounds = new Rectangle();
+            monitor.getBounds(monitor.getSegmentID(rect.x, rect.y), rect.width, rect.height, bounds);
+            checkRoundTrips(monitor.getBlock(rect.x, rect.y, rect.width, rect.height), bounds.width);
+        }
+        Rectangle screen = frameSource.getScreenBounds();
+        for (int width : new int[]{1, 3, 17, 31, 33, 97})
+        {
+            for (int height : new int[]{1, 2, 23, 32})
+            {
+                int[] pixels = new int[width * height];
+                frameSource.getRGBPixels(screen.width / 3, screen.height / 3, width, height, pixels, 0, width);
+                checkRoundTrips(pixels, width, width);
+            }
+        }
+        
+        long rval = 0;
+        System.out.println("algorithm    round trips  failed");
+        for (SEGMENT_ALGORITHM algorithm : SEGMENT_ALGORITHM.values())
+        {
+            int idx = algorithm.ordinal();
+            if (numRoundTrips[idx] > 0)
+            {
+                System.out.println(String.format("%-11s  %11d  %6d", algorithm.name(), numRoundTrips[idx], numFailedRoundTrips[idx]));
+            }
+            rval += numFailedRoundTrips[idx];
+        }
+        
+        return rval;
+    }
+    
+    public static void main(String[] args) throws AWTException, IOException, InterruptedException, ClassNotFoundException
+    {
+        if (args.length < 2)
+        {
+            usage();
+        }
+        
+        String cmd = args[0];
+        FRAME_SOURCE type = FRAME_SOURCE.valueOf(args[1]);
+        
+        if (cmd.equals("scan"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            FrameSource frameSource = createFrameSource(type, path);
+            try
+            {
+                scan(frameSource, seconds, -1, null);
+            }
+            finally {
+                frameSource.dispose();
+            }
+        }
+        else if (cmd.equals("scale"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            int maxThreads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            String path = (args.length > 4) ? args[4] : "";
+            double[] scansPerSecond = new double[maxThreads];
+            for (int numThreads=1; numThreads<=maxThreads; numThreads++)
+            {
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[numThreads-1] = scan(frameSource, seconds, numThreads, null);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println(String.format("threads  scans/s  speedup (%d processors)", Runtime.getRuntime().availableProcessors()));
+            for (int numThreads=1; numThreads<=maxThreads; numThreads++)
+            {
+                System.out.println(String.format("%7d  %7.2f  %7.2f", numThreads, scansPerSecond[numThreads-1], scansPerSecond[numThreads-1] / scansPerSecond[0]));
+            }
+        }
+        else if (cmd.equals("kernels"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            KERNEL[] kernelTypes = KERNEL.values();
+            double[] scansPerSecond = new double[kernelTypes.length];
+            for (int i=0; i<kernelTypes.length; i++)
+            {
+                PixelKernels kernels = PixelKernels.get(kernelTypes[i]);
+                if (kernels == null)
+                {
+                    System.out.println(String.format("%s is not supported by this JVM", kernelTypes[i].name()));
+                    continue;
+                }
+                System.out.println(String.format("%s:", kernelTypes[i].name()));
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, kernels);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("kernel            scans/s");
+            for (int i=0; i<kernelTypes.length; i++)
+            {
+                System.out.println(String.format("%-16s  %7.2f", kernelTypes[i].name(), scansPerSecond[i]));
+            }
+        }
+        else if (cmd.equals("heatmap"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            int coldScanInterval = (args.length > 3) ? Integer.parseInt(args[3]) : 4;
+            String path = (args.length > 4) ? args[4] : "";
+            int[] coldScanIntervals = new int[]{1, coldScanInterval};
+            double[] scansPerSecond = new double[coldScanIntervals.length];
+            for (int i=0; i<coldScanIntervals.length; i++)
+            {
+                System.out.println(String.format("cold scan interval %d:", coldScanIntervals[i]));
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null, coldScanIntervals[i], 1, 1, true);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("cold scan interval  scans/s  speedup");
+            for (int i=0; i<coldScanIntervals.length; i++)
+            {
+                System.out.println(String.format("%18d  %7.2f  %7.2f", coldScanIntervals[i], scansPerSecond[i], scansPerSecond[i] / scansPerSecond[0]));
+            }
+        }
+        else if (cmd.equals("probe"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            int stride = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+            int verifyInterval = (args.length > 4) ? Integer.parseInt(args[4]) : 10;
+            String path = (args.length > 5) ? args[5] : "";
+            int[] strides = new int[]{1, stride};
+            double[] scansPerSecond = new double[strides.length];
+            for (int i=0; i<strides.length; i++)
+            {
+                System.out.println(String.format("probe stride %d:", strides[i]));
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null, 1, strides[i], verifyInterval, true);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("probe stride  scans/s  speedup");
+            for (int i=0; i<strides.length; i++)
+            {
+                System.out.println(String.format("%12d  %7.2f  %7.2f", strides[i], scansPerSecond[i], scansPerSecond[i] / scansPerSecond[0]));
+            }
+        }
+        else if (cmd.equals("motion"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            boolean[] detectMotion = new boolean[]{false, true};
+            double[] scansPerSecond = new double[detectMotion.length];
+            for (int i=0; i<detectMotion.length; i++)
+            {
+                System.out.println(String.format("motion detection %s:", detectMotion[i] ? "on" : "off"));
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null, 1, 1, 1, detectMotion[i]);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("motion detection  scans/s  speedup");
+            for (int i=0; i<detectMotion.length; i++)
+            {
+                System.out.println(String.format("%16s  %7.2f  %7.2f", detectMotion[i] ? "on" : "off", scansPerSecond[i], scansPerSecond[i] / scansPerSecond[0]));
+            }
+        }
+        else if (cmd.equals("dedupe"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            long[] capacities = new long[]{0, EncodedTileCache.getCapacity()};
+            double[] scansPerSecond = new double[capacities.length];
+            for (int i=0; i<capacities.length; i++)
+            {
+                System.out.println(String.format("encoded tile cache of %d bytes:", capacities[i]));
+                EncodedTileCache.setCapacity(capacities[i]);
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null, 1, 1, 1, true);
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("encoded tile cache bytes  scans/s  speedup");
+            for (int i=0; i<capacities.length; i++)
+            {
+                System.out.println(String.format("%24d  %7.2f  %7.2f", capacities[i], scansPerSecond[i], scansPerSecond[i] / scansPerSecond[0]));
+            }
+        }
+        else if (cmd.equals("formats"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            PIXEL_FORMAT[] formats = PIXEL_FORMAT.values();
+            double[] scansPerSecond = new double[formats.length];
+            double[] bytesPerScan = new double[formats.length];
+            for (int i=0; i<formats.length; i++)
+            {
+                System.out.println(String.format("%s:", formats[i].name()));
+                pixelFormat = formats[i];
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null);
+                    bytesPerScan[i] = encodedBytesPerScan;
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("format    scans/s  KiB/scan  ratio");
+            for (int i=0; i<formats.length; i++)
+            {
+                System.out.println(String.format("%-8s  %7.2f  %8.2f  %5.2f", formats[i].name(), scansPerSecond[i], bytesPerScan[i] / 1024.0, (bytesPerScan[0] == 0.0) ? 0.0 : bytesPerScan[i] / bytesPerScan[0]));
+            }
+        }
+        else if (cmd.equals("lossy"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            int[] qualities = new int[]{0, 90, 75, 50, 25};
+            double[] scansPerSecond = new double[qualities.length];
+            double[] bytesPerScan = new double[qualities.length];
+            for (int i=0; i<qualities.length; i++)
+            {
+                System.out.println(String.format("JPEG quality %d:", qualities[i]));
+                jpegQuality = qualities[i];
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null);
+                    bytesPerScan[i] = encodedBytesPerScan;
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("quality  scans/s  KiB/scan  ratio");
+            for (int i=0; i<qualities.length; i++)
+            {
+                System.out.println(String.format("%7d  %7.2f  %8.2f  %5.2f", qualities[i], scansPerSecond[i], bytesPerScan[i] / 1024.0, (bytesPerScan[0] == 0.0) ? 0.0 : bytesPerScan[i] / bytesPerScan[0]));
+            }
+        }
+        else if (cmd.equals("deltas"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            boolean[] isDeltaEncoding = new boolean[]{false, true};
+            double[] scansPerSecond = new double[isDeltaEncoding.length];
+            double[] bytesPerScan = new double[isDeltaEncoding.length];
+            for (int i=0; i<isDeltaEncoding.length; i++)
+            {
+                System.out.println(String.format("delta encoding %s:", isDeltaEncoding[i] ? "on" : "off"));
+                deltaBases = isDeltaEncoding[i] ? new DeltaBaseCache((Integer) SERVER_PROPERTIES.DELTA_BASE_CACHE_SIZE.getValue()) : null;
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null);
+                    bytesPerScan[i] = encodedBytesPerScan;
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("delta encoding  scans/s  KiB/scan  ratio");
+            for (int i=0; i<isDeltaEncoding.length; i++)
+            {
+                System.out.println(String.format("%14s  %7.2f  %8.2f  %5.2f", isDeltaEncoding[i] ? "on" : "off", scansPerSecond[i], bytesPerScan[i] / 1024.0, (bytesPerScan[0] == 0.0) ? 0.0 : bytesPerScan[i] / bytesPerScan[0]));
+            }
+        }
+        else if (cmd.equals("filters"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            int maxTiles = (args.length > 3) ? Integer.parseInt(args[3]) : 2000;
+            String path = (args.length > 4) ? args[4] : "";
+            ArrayList<Integer> widths = new ArrayList<Integer>();
+            ArrayList<int[]> tiles;
+            FrameSource frameSource = createFrameSource(type, path);
+            try
+            {
+                tiles = collectTiles(frameSource, seconds, maxTiles, widths);
+            }
+            finally {
+                frameSource.dispose();
+            }
+            if (tiles.isEmpty())
+            {
+                System.out.println("No tiles changed");
+                System.exit(0);
+            }
+            String[] encodings = new String[]{"int[]", "PIXELS", "FILTERED"};
+            long[][] results = new long[encodings.length][3];
+            for (int i=0; i<encodings.length; i++)
+            {
+                // once to warm up, once to measure
+                sendTiles(tiles, widths, i, results[i]);
+                int numMismatches = sendTiles(tiles, widths, i, results[i]);
+                if (numMismatches > 0)
+                {
+                    System.out.println(String.format("%s: %d of %d tiles decoded to other pixels", encodings[i], numMismatches, tiles.size()));
+                }
+            }
+            System.out.println(String.format("%d tiles", tiles.size()));
+            System.out.println("encoding  bytes/tile  ratio  encode ns/tile  decode ns/tile");
+            for (int i=0; i<encodings.length; i++)
+            {
+                System.out.println(String.format("%-8s  %10.1f  %5.2f  %14d  %14d", encodings[i], ((double) results[i][0]) / tiles.size(), ((double) results[i][0]) / results[0][0], results[i][1] / tiles.size(), results[i][2] / tiles.size()));
+            }
+        }
+        else if (cmd.equals("video"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            boolean[] isVideoDetected = new boolean[]{false, true};
+            double[] scansPerSecond = new double[isVideoDetected.length];
+            double[] bytesPerScan = new double[isVideoDetected.length];
+            jpegQuality = 75;
+            for (int i=0; i<isVideoDetected.length; i++)
+            {
+                System.out.println(String.format("video regions %s:", isVideoDetected[i] ? "on" : "off"));
+                detectVideo = isVideoDetected[i];
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null);
+                    bytesPerScan[i] = encodedBytesPerScan;
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            System.out.println("video regions  scans/s  KiB/scan  ratio");
+            for (int i=0; i<isVideoDetected.length; i++)
+            {
+                System.out.println(String.format("%13s  %7.2f  %8.2f  %5.2f", isVideoDetected[i] ? "on" : "off", scansPerSecond[i], bytesPerScan[i] / 1024.0, (bytesPerScan[0] == 0.0) ? 0.0 : bytesPerScan[i] / bytesPerScan[0]));
+            }
+        }
+        else if (cmd.equals("preview"))
+        {
+            String path = (args.length > 2) ? args[2] : "";
+            int[] scales = new int[]{2, 4, 8, 16};
+            long[] previewBytes = new long[scales.length];
+            long fullBytes = 0;
+            FrameSource frameSource = createFrameSource(type, path);
+            try
+            {
+                Monitor monitor = new Monitor(Manager.SEGMENT_WIDTH, Manager.SEGMENT_HEIGHT, null, frameSource, new ArrayList<ClientHandler>(0));
+                monitor.scan();
+                EncodedTileCache.clear();
+                FixedLengthBitSet all = new FixedLengthBitSet(monitor.getSegmentCount(), Boolean.TRUE);
+                ArrayList<Integer> regionIDs = new ArrayList<Integer>();
+                monitor.collectRegions(all, regionIDs);
+                for (Integer regionID : regionIDs)
+                {
+                    jce_id_ptr[0] = regionID;
+                    fullBytes += (Integer) monitor.getSegment(regionID).synchronously(encode);
+                }
+                ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+                monitor.collectRectangles(all, rects);
+                for (int i=0; i<scales.length; i++)
+                {
+                    final int shift = Integer.numberOfTrailingZeros(scales[i]);
+                    for (Rectangle rect : rects)
+                    {
+                        int segmentID = monitor.getSegmentID(rect.x, rect.y);
+                        final Rectangle bounds = new Rectangle();
+                        monitor.getBounds(segmentID, rect.width, rect.height, bounds);
+                        byte[] preview = (byte[]) monitor.getBlock(rect.x, rect.y, rect.width, rect.height).synchronously(new GraphicsSegment.Synchronously() {
+                            
+                            @Override
+                            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+                            {
+                                return PixelCodec.encodeDownsampled(pixels, bounds.width, shift, pixelFormat);
+                            }
+                            
+                        });
+                        JitCompressedEvent jce = JitCompressedEvent.getInstance(SERVER_EVENT.SCREEN_RECT_UPDATE, new Object[]{segmentID, rect.width, rect.height, preview});
+                        try
+                        {
+                            previewBytes[i] += jce.getCompressed().length;
+                        }
+                        finally {
+                            jce.release();
+                        }
+                    }
+                }
+                System.out.println(String.format("%s (%d segments): %d regions, %d rectangles", frameSource.toString(), monitor.getSegmentCount(), regionIDs.size(), rects.size()));
+            }
+            finally {
+                frameSource.dispose();
+            }
+            System.out.println("scale  preview KiB  full KiB  first frame ratio");
+            for (int i=0; i<scales.length; i++)
+            {
+                System.out.println(String.format("1/%-3d  %11.2f  %8.2f  %17.3f", scales[i], previewBytes[i] / 1024.0, fullBytes / 1024.0, ((double) previewBytes[i]) / fullBytes));
+            }
+        }
+        else if (cmd.equals("scaling"))
+        {
+            long seconds = (args.length > 2) ? Long.parseLong(args[2]) : DEFAULT_SECONDS;
+            String path = (args.length > 3) ? args[3] : "";
+            int[] shifts = new int[]{0, 1, 2, 3};
+            double[] scansPerSecond = new double[shifts.length];
+            double[] bytesPerScan = new double[shifts.length];
+            for (int i=0; i<shifts.length; i++)
+            {
+                System.out.println(String.format("scale 1/%d:", 1 << shifts[i]));
+                scaleShift = shifts[i];
+                FrameSource frameSource = createFrameSource(type, path);
+                try
+                {
+                    scansPerSecond[i] = scan(frameSource, seconds, 1, null);
+                    bytesPerScan[i] = encodedBytesPerScan;
+                }
+                finally {
+                    frameSource.dispose();
+                }
+            }
+            scaleShift = 0;
+            System.out.println("scale  scans/s  KiB/scan  ratio");
+            for (int i=0; i<shifts.length; i++)
+            {
+                System.out.println(String.format("1/%-3d  %7.2f  %8.2f  %5.2f", 1 << shifts[i], scansPerSecond[i], bytesPerScan[i] / 1024.0, (bytesPerScan[0] == 0.0) ? 0.0 : bytesPerScan[i] / bytesPerScan[0]));
+            }
+        }
+        else if (cmd.equals("events"))
+        {
+            String path = (args.length > 2) ? args[2] : "";
+            FrameSource frameSource = createFrameSource(type, path);
+            boolean isConnected;
+            try
+            {
+                isConnected = sendEvents(frameSource);
+            }
+            finally {
+                frameSource.dispose();
+            }
+            System.out.println(isConnected ? "client still connected" : "client disconnected");
+            if (!isConnected)
+            {
+                System.exit(1);
+            }
+        }
+        else if (cmd.equals("codecs"))
+        {
+            String path = (args.length > 2) ? args[2] : "";
+            FrameSource frameSource = createFrameSource(type, path);
+            long numFailed;
+            try
+            {
+                numFailed = checkCodecs(frameSource);
+            }
+            finally {
+                frameSource.dispose();
+            }
+            if (numFailed > 0)
+            {
+                System.exit(1);
+            }
+        }
+        else if (cmd.equals("record"))
+        {
+            if (args.length < 4)
+            {
+                usage();
+            }
+            File dir = new File(args[2]);
+            int numFrames = Integer.parseInt(args[3]);
+            long periodMS = (args.length > 4) ? Long.parseLong(args[4]) : 0;
+            FrameSource frameSource = createFrameSource(type, null);
+            try
+            {
+                ReplayFrameSource.record(frameSource, dir, numFrames, periodMS);
+            }
+            finally {
+                frameSource.dispose();
+            }
+        }
+        else
+        {
+            usage();
+        }
+        
+        System.exit(0);
+    }
+}
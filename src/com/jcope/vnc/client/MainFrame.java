@@ -60,6 +60,7 @@ public class MainFrame extends JFrame
 	
 	private Dimension imagePanelSize = new Dimension();
 	private DimensionF scaleFactors = new DimensionF(1.0f, 1.0f);
+	private volatile float sentScaleFactor = 0.0f;
 	
 	private Point locationBeforeFullScreen = new Point();
     private Dimension sizeBeforeFullScreen = new Dimension();
@@ -181,6 +182,8 @@ public class MainFrame extends JFrame
 		actionMenu.add(setAlias);
         JMenuItem clearAlias = new JMenuItem("Clear Alias");
         actionMenu.add(clearAlias);
+        JMenuItem serverDiagnostics = new JMenuItem("Server Diagnostics");
+        actionMenu.add(serverDiagnostics);
         JMenuItem disconnect = new JMenuItem("Disconnect");
         actionMenu.add(disconnect);
 		
@@ -237,6 +240,15 @@ public class MainFrame extends JFrame
             }
         });
 		
+		serverDiagnostics.addActionListener(new ActionListener() {
+            
+            @Override
+            public void actionPerformed(ActionEvent ae)
+            {
+                client.sendEvent(CLIENT_EVENT.GET_DIAGNOSTICS);
+            }
+        });
+		
 		final ActionListener clearAction;
 		// TODO: define accelerator
         clearAlias.addActionListener((clearAction = new ActionListener() {
@@ -312,7 +324,7 @@ public class MainFrame extends JFrame
                             lSpace = (int) Math.floor((((float)contentPaneSize.width) - ((float)imagePanelSize.width)*scaleFactors.width)/2.0f);
                             tSpace = (int) Math.floor((((float)contentPaneSize.height) - ((float)imagePanelSize.height)*scaleFactors.height)/2.0f);
                             
-                            imagePanel.setScaleFactors(lSpace, tSpace, scaleFactors);
+                            setScaleFactors(lSpace, tSpace);
                         }
                         
                     });
@@ -338,7 +350,7 @@ public class MainFrame extends JFrame
                             imagePanel.getImageSize(imagePanelSize);
                             scaleFactors.width = ((float)((float)contentPaneSize.width)/((float)imagePanelSize.width));
                             scaleFactors.height = ((float)((float)contentPaneSize.height)/((float)imagePanelSize.height));
-                            imagePanel.setScaleFactors(0, 0, scaleFactors);
+                            setScaleFactors(0, 0);
                         }
                         
                     });
@@ -392,7 +404,7 @@ public class MainFrame extends JFrame
                                 tSpace = 0;
                             }
                             
-                            imagePanel.setScaleFactors(lSpace, tSpace, scaleFactors);
+                            setScaleFactors(lSpace, tSpace);
                         }
                         
                 });
@@ -483,7 +495,7 @@ public class MainFrame extends JFrame
                             lSpace = (int) Math.floor((((float)contentPaneSize.width) - ((float)imagePanelSize.width)*scaleFactors.width)/2.0f);
                             tSpace = (int) Math.floor((((float)contentPaneSize.height) - ((float)imagePanelSize.height)*scaleFactors.height)/2.0f);
                             
-                            imagePanel.setScaleFactors(lSpace, tSpace, scaleFactors);
+                            setScaleFactors(lSpace, tSpace);
                         }
                         
                     });
@@ -733,6 +745,21 @@ public class MainFrame extends JFrame
         EventListenerDecorator.decorate(this, panelToDecorate);
 	}
 
+    /**
+     * Show the screen at scaleFactors and let the server know how large it
+     * is shown, so that it sends fewer pixels of a screen shown scaled down
+     */
+    private void setScaleFactors(int lSpace, int tSpace)
+    {
+        imagePanel.setScaleFactors(lSpace, tSpace, scaleFactors);
+        float scaleFactor = Math.min(1.0f, Math.max(scaleFactors.width, scaleFactors.height));
+        if (scaleFactor != sentScaleFactor && (Boolean) CLIENT_PROPERTIES.SERVER_SCALING.getValue())
+        {
+            sentScaleFactor = scaleFactor;
+            client.sendEvent(CLIENT_EVENT.SET_SCALE_FACTOR, Float.valueOf(scaleFactor));
+        }
+    }
+    
     public void setImagePanel(ImagePanel imagePanel)
     {
         if (this.imagePanel != null)
@@ -740,6 +767,8 @@ public class MainFrame extends JFrame
             scrollPane.remove(this.imagePanel);
         }
         this.imagePanel = imagePanel;
+        // the server starts over at full size
+        sentScaleFactor = 0.0f;
         onReconnect();
         scrollPane.setViewportView(imagePanel);
         final VIEW_MODE fViewMode = viewMode;
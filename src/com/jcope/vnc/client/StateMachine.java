@@ -21,13 +21,16 @@ import com.jcope.debug.LLog;
 import com.jcope.ui.ImagePanel;
 import com.jcope.ui.JCOptionPane;
 import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
 import com.jcope.util.TaskDispatcher;
+import com.jcope.util.TileCache;
 import com.jcope.vnc.Client.CLIENT_PROPERTIES;
 import com.jcope.vnc.client.dialogs.ConnectionDialog;
 import com.jcope.vnc.client.dialogs.ConnectionDialog.InvalidConnectionConfigurationException;
 import com.jcope.vnc.client.input.Handler;
 import com.jcope.vnc.client.input.handle.ScreenSegmentChanged;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.EncodingOptions;
 import com.jcope.vnc.shared.IOERunnable;
 import com.jcope.vnc.shared.InputEvent;
 import com.jcope.vnc.shared.Msg;
@@ -62,6 +65,8 @@ public class StateMachine implements Runnable
     
     public final Semaphore processingFrameSema = new Semaphore(1, true);
     
+    private volatile TileCache<int[]> tileCache = null;
+    
     public StateMachine() throws UnknownHostException, IOException
 	{
         frame = new MainFrame(this);
@@ -159,13 +164,18 @@ public class StateMachine implements Runnable
     			    
     				connectionDialog = null;
     				
+    				// the server mirrors what this cache holds from the screen selection on
+    				int tileCacheSize = (Integer) CLIENT_PROPERTIES.TILE_CACHE_SIZE.getValue();
+    				tileCache = (tileCacheSize > 0) ? new TileCache<int[]>(tileCacheSize) : null;
+    				
     				SwingUtilities.invokeLater(new Runnable() {
     
                         @Override
                         public void run()
                         {
                             int selectedScreen = (Integer) CLIENT_PROPERTIES.REMOTE_DISPLAY_NUM.getValue();
-                            sendEvent(CLIENT_EVENT.SELECT_SCREEN, selectedScreen, accessMode, CLIENT_PROPERTIES.MONITOR_SCANNING_PERIOD.getValue(), hashedPassword);
+                            EncodingOptions options = new EncodingOptions((Integer) CLIENT_PROPERTIES.TILE_CACHE_SIZE.getValue(), (PIXEL_FORMAT) CLIENT_PROPERTIES.PIXEL_FORMAT.getValue(), (Integer) CLIENT_PROPERTIES.JPEG_QUALITY.getValue(), (Boolean) CLIENT_PROPERTIES.DELTA_ENCODING.getValue(), (Boolean) CLIENT_PROPERTIES.TILE_FILTERING.getValue(), (Integer) CLIENT_PROPERTIES.PREVIEW_SCALE.getValue());
+                            sendEvent(CLIENT_EVENT.SELECT_SCREEN, selectedScreen, accessMode, CLIENT_PROPERTIES.MONITOR_SCANNING_PERIOD.getValue(), hashedPassword, options);
                         }
     				    
     				});
@@ -554,6 +564,17 @@ public class StateMachine implements Runnable
     	this.changedSegments = changedSegments;
     }
 
+    /**
+     * Must only be used by the thread that reads events from the server,
+     * in the order in which they arrive
+     * 
+     * @return the tiles of the current connection, null if it keeps none
+     */
+    public TileCache<int[]> getTileCache()
+    {
+        return tileCache;
+    }
+    
     public void flushFrameBuffer()
     {
         try {
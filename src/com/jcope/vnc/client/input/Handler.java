@@ -32,6 +32,10 @@ import com.jcope.vnc.client.input.handle.ScreenSegmentSizeUpdate;
 import com.jcope.vnc.client.input.handle.ScreenSegmentUpdate;
 import com.jcope.vnc.client.input.handle.SetClipboard;
 import com.jcope.vnc.client.input.handle.EndOfFrame;
+import com.jcope.vnc.client.input.handle.Diagnostics;
+import com.jcope.vnc.client.input.handle.ScreenRectUpdate;
+import com.jcope.vnc.client.input.handle.ScreenRectCopy;
+import com.jcope.vnc.client.input.handle.ScreenSegmentCached;
 import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 import com.jcope.vnc.shared.input.Handle;
@@ -69,7 +73,11 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<StateMachine, SE
         ScreenSegmentSizeUpdate.class,
         ScreenSegmentUpdate.class,
         SetClipboard.class,
-        EndOfFrame.class
+        EndOfFrame.class,
+        Diagnostics.class,
+        ScreenRectUpdate.class,
+        ScreenRectCopy.class,
+        ScreenSegmentCached.class
     };
     
     static
@@ -192,6 +200,9 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<StateMachine, SE
         Handle<StateMachine> handle = eventHandles.get(event);
         if (!event.isSerial()
             && event != SERVER_EVENT.SCREEN_SEGMENT_UPDATE
+            && event != SERVER_EVENT.SCREEN_RECT_UPDATE
+            && event != SERVER_EVENT.SCREEN_RECT_COPY
+            && event != SERVER_EVENT.SCREEN_SEGMENT_CACHED
             && event != SERVER_EVENT.SCREEN_SEGMENT_CHANGED // handle for this event performs send of NS response
             && event != SERVER_EVENT.READ_INPUT_EVENTS // this is an "immediate" hot event, it will not be throttled
             )
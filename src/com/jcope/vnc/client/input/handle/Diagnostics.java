@@ -0,0 +1,53 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import java.awt.Dimension;
+import java.awt.Font;
+
+import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+import com.jcope.ui.JCOptionPane;
+import com.jcope.util.TileCache;
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.client.input.Handle;
+
+public class Diagnostics extends Handle
+{
+    
+    @Override
+    public void handle(final StateMachine stateMachine, Object[] args)
+    {
+        assert_(null != args);
+        assert_(args.length == 1);
+        assert_(args[0] instanceof String);
+        
+        StringBuilder sb = new StringBuilder((String) args[0]);
+        TileCache<int[]> tileCache = stateMachine.getTileCache();
+        if (tileCache != null)
+        {
+            sb.append("\n\nTile cache (this client):\n");
+            tileCache.report(sb);
+        }
+        final String report = sb.toString();
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            
+            @Override
+            public void run()
+            {
+                JTextArea textArea = new JTextArea(report);
+                textArea.setEditable(false);
+                textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                JScrollPane scrollPane = new JScrollPane(textArea);
+                scrollPane.setPreferredSize(new Dimension(480, 320));
+                JCOptionPane.showMessageDialog(stateMachine.getFrame(), scrollPane, "Server Diagnostics", JOptionPane.INFORMATION_MESSAGE);
+            }
+            
+        });
+    }
+
+}
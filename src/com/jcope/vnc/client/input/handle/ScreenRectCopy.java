@@ -0,0 +1,54 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import java.awt.Rectangle;
+
+import javax.swing.SwingUtilities;
+
+import com.jcope.ui.ImagePanel;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.vnc.client.MainFrame;
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.shared.input.Handle;
+
+public class ScreenRectCopy extends Handle<StateMachine>
+{
+    public ScreenRectCopy()
+    {
+        super(StateMachine.class);
+    }
+    
+    @Override
+    public void handle(final StateMachine stateMachine, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 8);
+        assert_(args[6] instanceof int[]);
+        assert_(args[7] instanceof long[]);
+        
+        MainFrame frame = stateMachine.getFrame();
+        final ImagePanel imagePanel = frame.getImagePanel();
+        
+        final Rectangle src = new Rectangle((Integer) args[0], (Integer) args[1], (Integer) args[2], (Integer) args[3]);
+        final int dx = (Integer) args[4];
+        final int dy = (Integer) args[5];
+        final int[] segmentIDs = (int[]) args[6];
+        final long[] segmentHashes = (long[]) args[7];
+        assert_(segmentIDs.length == segmentHashes.length);
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            
+            @Override
+            public void run() {
+                FixedLengthBitSet mismatched = imagePanel.copyRect(src, dx, dy, segmentIDs, segmentHashes);
+                if (mismatched != null)
+                {
+                    // the copy started from pixels that were not up to date yet
+                    ScreenSegmentChanged.fetch(stateMachine, mismatched);
+                }
+            }
+            
+        });
+    }
+}
@@ -0,0 +1,83 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import javax.swing.SwingUtilities;
+
+import com.jcope.ui.ImagePanel;
+import com.jcope.vnc.client.MainFrame;
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.shared.input.Handle;
+
+public class ScreenRectUpdate extends Handle<StateMachine>
+{
+    public ScreenRectUpdate()
+    {
+        super(StateMachine.class);
+    }
+    
+    @Override
+    public void handle(StateMachine stateMachine, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 4);
+        assert_(args[0] instanceof Integer);
+        assert_(args[1] instanceof Integer);
+        assert_(args[2] instanceof Integer);
+        
+        MainFrame frame = stateMachine.getFrame();
+        final ImagePanel imagePanel = frame.getImagePanel();
+        
+        final int segmentID = (Integer) args[0];
+        final int numHorizontal = (Integer) args[1];
+        final int numVertical = (Integer) args[2];
+        assert_(segmentID >= 0);
+        
+        if (args[3] instanceof int[])
+        {
+            final int[] pixels = (int[]) args[3];
+            assert_(pixels != null);
+            
+            SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					imagePanel.setRectPixels(segmentID, numHorizontal, numVertical, pixels);
+				}
+            	
+            });
+        }
+        else if (args[3] instanceof byte[])
+        {
+            // see PIXEL_FORMAT
+            final byte[] encoded = (byte[]) args[3];
+            
+            SwingUtilities.invokeLater(new Runnable() {
+                
+                @Override
+                public void run() {
+                    imagePanel.setRectEncoded(segmentID, numHorizontal, numVertical, encoded);
+                }
+                
+            });
+        }
+        else if (args[3] instanceof Integer)
+        {
+            final Integer solidPixelColor = (Integer) args[3];
+            assert_(solidPixelColor != null);
+            
+            SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					imagePanel.setRectSolidColor(segmentID, numHorizontal, numVertical, solidPixelColor);
+				}
+            	
+            });
+        }
+        else
+        {
+            assert_(false);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.jcope.vnc.client.input.handle;
+
+import static com.jcope.debug.Debug.assert_;
+
+import javax.swing.SwingUtilities;
+
+import com.jcope.debug.LLog;
+import com.jcope.ui.ImagePanel;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.TileCache;
+import com.jcope.vnc.client.MainFrame;
+import com.jcope.vnc.client.StateMachine;
+import com.jcope.vnc.shared.input.Handle;
+
+public class ScreenSegmentCached extends Handle<StateMachine>
+{
+    public ScreenSegmentCached()
+    {
+        super(StateMachine.class);
+    }
+    
+    @Override
+    public void handle(final StateMachine stateMachine, Object[] args)
+    {
+        assert_(args != null);
+        assert_(args.length == 2);
+        assert_(args[0] instanceof Integer);
+        assert_(args[1] instanceof Long);
+        
+        MainFrame frame = stateMachine.getFrame();
+        final ImagePanel imagePanel = frame.getImagePanel();
+        
+        final int segmentID = (Integer) args[0];
+        long key = (Long) args[1];
+        assert_(segmentID >= 0);
+        
+        TileCache<int[]> tileCache = stateMachine.getTileCache();
+        final int[] pixels = (tileCache == null) ? null : tileCache.get(key);
+        
+        if (pixels == null)
+        {
+            // should not happen as long as the server mirrors the cache, ask for the pixels instead
+            LLog.w(String.format("Segment %d refers to tile %016x which is not cached", segmentID, key));
+            FixedLengthBitSet missing = new FixedLengthBitSet(imagePanel.getSegmentCount());
+            missing.set(segmentID, Boolean.TRUE);
+            ScreenSegmentChanged.fetch(stateMachine, missing);
+            return;
+        }
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            
+            @Override
+            public void run() {
+                imagePanel.setSegmentPixels(segmentID, pixels);
+            }
+            
+        });
+    }
+}
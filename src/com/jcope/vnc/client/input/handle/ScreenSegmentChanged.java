@@ -16,8 +16,8 @@ import com.jcope.vnc.shared.input.Handle;
 public class ScreenSegmentChanged extends Handle<StateMachine>
 {
     public static final TaskDispatcher<Integer> segmentFetcher = new TaskDispatcher<Integer>("ScreenSegmentChanged.segmentFetcher");
-    private volatile Semaphore iconifiedSema = null;
-    private volatile Long lastSleepTime = null;
+    private static volatile Semaphore iconifiedSema = null;
+    private static volatile Long lastSleepTime = null;
     
     
     public ScreenSegmentChanged()
@@ -34,6 +34,16 @@ public class ScreenSegmentChanged extends Handle<StateMachine>
         
         FixedLengthBitSet newFlbs = (FixedLengthBitSet) args[0];
         
+        fetch(stateMachine, newFlbs);
+        
+        stateMachine.sendEvent(CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT, SERVER_EVENT.SCREEN_SEGMENT_CHANGED);
+    }
+    
+    /**
+     * Add segments to the next GET_SCREEN_SEGMENT, scheduling one if none is pending
+     */
+    public static void fetch(final StateMachine stateMachine, FixedLengthBitSet newFlbs)
+    {
         HANDLED:
         do
         {
@@ -59,15 +69,15 @@ public class ScreenSegmentChanged extends Handle<StateMachine>
             	stateMachine.changedSegmentsSema.release();
             }
             
-            Semaphore iconifiedSema = this.iconifiedSema;
+            Semaphore l_iconifiedSema = iconifiedSema;
             
-            if (iconifiedSema == null)
+            if (l_iconifiedSema == null)
             {
-                iconifiedSema = stateMachine.getIconifiedSemaphore();
-                this.iconifiedSema = iconifiedSema;
+                l_iconifiedSema = stateMachine.getIconifiedSemaphore();
+                iconifiedSema = l_iconifiedSema;
             }
             
-            final Semaphore f_iconifiedSema = iconifiedSema;
+            final Semaphore f_iconifiedSema = l_iconifiedSema;
             
             segmentFetcher.dispatch(1, new Runnable() {
                 
@@ -127,7 +137,5 @@ public class ScreenSegmentChanged extends Handle<StateMachine>
                 }
             });
         } while (false);
-        
-        stateMachine.sendEvent(CLIENT_EVENT.ACKNOWLEDGE_NON_SERIAL_EVENT, SERVER_EVENT.SCREEN_SEGMENT_CHANGED);
     }
 }
@@ -13,15 +13,17 @@ public class ScreenSegmentSizeUpdate extends Handle
     public void handle(StateMachine stateMachine, Object[] args)
     {
         assert_(args != null);
-        assert_(args.length == 2);
+        assert_(args.length == 2 || args.length == 3);
         assert_(args[0] instanceof Integer);
         assert_(args[1] instanceof Integer);
+        assert_(args.length == 2 || args[2] instanceof Integer);
         
         int width = (Integer) args[0];
         int height = (Integer) args[1];
+        int maxRegionLevel = (args.length == 3) ? (Integer) args[2] : 0;
         
         MainFrame frame = stateMachine.getFrame();
-        frame.getImagePanel().setSegmentSize(width, height);
+        frame.getImagePanel().setSegmentSize(width, height, maxRegionLevel);
     }
     
 }
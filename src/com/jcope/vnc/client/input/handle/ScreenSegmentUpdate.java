@@ -4,7 +4,12 @@ import static com.jcope.debug.Debug.assert_;
 
 import javax.swing.SwingUtilities;
 
+import com.jcope.debug.LLog;
 import com.jcope.ui.ImagePanel;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.SegmentationInfo;
+import com.jcope.util.TileCache;
 import com.jcope.vnc.client.MainFrame;
 import com.jcope.vnc.client.StateMachine;
 import com.jcope.vnc.shared.input.Handle;
@@ -17,7 +22,7 @@ public class ScreenSegmentUpdate extends Handle<StateMachine>
     }
     
     @Override
-    public void handle(StateMachine stateMachine, Object[] args)
+    public void handle(final StateMachine stateMachine, Object[] args)
     {
         assert_(args != null);
         assert_(args.length == 2);
@@ -29,11 +34,75 @@ public class ScreenSegmentUpdate extends Handle<StateMachine>
         final int segmentID = (Integer) args[0];
         assert_(segmentID >= -1);
         
-        if (args[1] instanceof int[])
+        if (args[1] instanceof byte[] && PixelCodec.isDelta((byte[]) args[1]))
         {
-            final int[] pixels = (int[]) args[1];
+            // a delta to the pixels the segment holds, see DELTA_ENCODING
+            final byte[] delta = (byte[]) args[1];
+            SwingUtilities.invokeLater(new Runnable() {
+                
+                @Override
+                public void run() {
+                    if (!imagePanel.setSegmentDelta(segmentID, delta))
+                    {
+                        // should not happen as long as the server tracks what was drawn over, ask for the pixels instead
+                        LLog.w(String.format("Segment %d does not hold the pixels its delta applies to", segmentID));
+                        FixedLengthBitSet missing = new FixedLengthBitSet(imagePanel.getSegmentCount());
+                        missing.set(segmentID, Boolean.TRUE);
+                        ScreenSegmentChanged.fetch(stateMachine, missing);
+                    }
+                }
+                
+            });
+            return;
+        }
+        
+        TileCache<int[]> tileCache = stateMachine.getTileCache();
+        boolean isCached = (tileCache != null && segmentID >= 0 && SegmentationInfo.getRegionLevel(segmentID) == 0);
+        
+        Object serialized = args[1];
+        if (serialized instanceof byte[])
+        {
+            final byte[] encoded = (byte[]) serialized;
+            
+            SegmentationInfo.SEGMENT_ALGORITHM alg = PixelCodec.getAlgorithm(encoded);
+            if (alg == SegmentationInfo.SEGMENT_ALGORITHM.JPEG || alg == SegmentationInfo.SEGMENT_ALGORITHM.DOWNSAMPLED)
+            {
+                // lossy, the server neither keys it nor expects it kept (see JPEG_QUALITY and SERVER_SCALING)
+                isCached = Boolean.FALSE;
+            }
+            
+            if (!isCached)
+            {
+                // nothing needs the pixels but the image, decode them straight into it
+                SwingUtilities.invokeLater(new Runnable() {
+                    
+                    @Override
+                    public void run() {
+                        imagePanel.setSegmentEncoded(segmentID, encoded);
+                    }
+                    
+                });
+                return;
+            }
+            
+            // see ENCODED_TILE_CACHE_SIZE and PIXEL_FORMAT
+            serialized = PixelCodec.decode(encoded);
+            assert_(serialized != null);
+        }
+        
+        if (serialized instanceof int[])
+        {
+            final int[] pixels = (int[]) serialized;
             assert_(pixels != null);
             
+            if (isCached)
+            {
+                // the server mirrors this, see SCREEN_SEGMENT_CACHED
+                int[] dim = new int[2];
+                imagePanel.getSegmentDim(segmentID, dim);
+                tileCache.put(TileCache.key(pixels, 0, dim[0], dim[1], dim[0]), pixels);
+            }
+            
             SwingUtilities.invokeLater(new Runnable() {
 
 				@Override
@@ -43,9 +112,9 @@ public class ScreenSegmentUpdate extends Handle<StateMachine>
             	
             });
         }
-        else if (args[1] instanceof Integer)
+        else if (serialized instanceof Integer)
         {
-            final Integer solidPixelColor = (Integer) args[1];
+            final Integer solidPixelColor = (Integer) serialized;
             assert_(solidPixelColor != null);
             
             // TODO: dispatch the writing of pixel data
@@ -4,6 +4,7 @@ import static com.jcope.debug.Debug.assert_;
 import static com.jcope.vnc.shared.ScreenSelector.getScreenDevicesOrdered;
 
 import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -12,7 +13,10 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 
 import javax.swing.SwingUtilities;
@@ -20,11 +24,20 @@ import javax.swing.SwingUtilities;
 import com.jcope.debug.LLog;
 import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.GraphicsSegment;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+import com.jcope.util.PixelHash;
+import com.jcope.util.SegmentationInfo;
 import com.jcope.util.TaskDispatcher;
+import com.jcope.util.TileCache;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.screen.Manager;
 import com.jcope.vnc.server.screen.Monitor;
+import com.jcope.vnc.server.screen.PacedScreenListener;
 import com.jcope.vnc.server.screen.ScreenListener;
+import com.jcope.vnc.server.screen.ScreenMove;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.JitCompressable;
 import com.jcope.vnc.shared.IOERunnable;
 import com.jcope.vnc.shared.Msg;
 import com.jcope.vnc.shared.Msg.CompressedObjectReader;
@@ -32,18 +45,46 @@ import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
 public class ClientHandler extends Thread
 {
-	private static final Object[] jce_id_ptr = new Object[]{null};
-    private static GraphicsSegment.Synchronously getJCE = new GraphicsSegment.Synchronously() {
-
+    static final long LOSSY_REFINE_DELAY_NS = ((Long) SERVER_PROPERTIES.LOSSY_REFINE_DELAY.getValue()) * 1000000L;
+    private static final int DELTA_BASE_CACHE_SIZE = (Integer) SERVER_PROPERTIES.DELTA_BASE_CACHE_SIZE.getValue();
+    private static final int VIDEO_MAX_FRAME_RATE = (Integer) SERVER_PROPERTIES.VIDEO_MAX_FRAME_RATE.getValue();
+    private static final long VIDEO_FRAME_PERIOD_NS = (VIDEO_MAX_FRAME_RATE > 0) ? 1000000000L / VIDEO_MAX_FRAME_RATE : 0L;
+    // an update of at least a quarter of the screen is previewed
+    private static final int PREVIEW_MIN_SHARE_SHIFT = 2;
+    
+    private GraphicsSegment.Synchronously getSerialized = new GraphicsSegment.Synchronously() {
+        
         @Override
         public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
         {
+            PIXEL_FORMAT format = pixelFormat;
             Integer solidColor = solidColorPtr[0];
-            Object serialized = (solidColor == null) ? pixels : solidColor;
-            Object id = jce_id_ptr[0];
-            jce_id_ptr[0] = null;
-            JitCompressedEvent jce = receiver.acquireJitCompressedEvent(id, serialized);
-            return jce;
+            if (solidColor != null)
+            {
+                return Integer.valueOf(format.quantize(solidColor));
+            }
+            return (format == PIXEL_FORMAT.ARGB8888) ? pixels : PixelCodec.encode(pixels, format);
+        }
+        
+    };
+    
+    private GraphicsSegment.Synchronously markPhotographic = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            receiver.setPhotographic(solidColorPtr[0] == null);
+            return null;
+        }
+        
+    };
+    
+    private GraphicsSegment.Synchronously getClientHash = new GraphicsSegment.Synchronously() {
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            return Long.valueOf(PixelHash.hash(pixels, 0, receiver.getWidth(), receiver.getHeight(), receiver.getWidth(), pixelFormat));
         }
         
     };
@@ -67,6 +108,7 @@ public class ClientHandler extends Thread
     private Semaphore sendSema = new Semaphore(1, true);
     private Semaphore serialSema = new Semaphore(1, true);
     volatile int tid = -1;
+    private int uniqueTID = -1;
     
     private Semaphore handleIOSema = new Semaphore(1, true);
     private Semaphore queueSema = new Semaphore(1, true);
@@ -84,6 +126,18 @@ public class ClientHandler extends Thread
     private Semaphore monitorLock = new Semaphore(1, true);
     private WeakReference<?>[] monitorRef = new WeakReference<?>[]{null};
     private volatile boolean paused = false;
+    
+    private volatile TileCache<Boolean> tileCache = null;
+    private boolean isTileCacheReported = Boolean.FALSE;
+    private volatile PIXEL_FORMAT pixelFormat = PIXEL_FORMAT.ARGB8888;
+    private volatile int jpegQuality = 0;
+    private volatile boolean isTileFiltering = Boolean.FALSE;
+    private volatile int previewShift = 0;
+    private volatile int scaleShift = 0;
+    private volatile DeltaBaseCache deltaBases = null;
+    private boolean isDeltaBasesReported = Boolean.FALSE;
+    private final HashSet<Integer> lossySegments = new HashSet<Integer>();
+    private volatile long videoFrameAtNS = System.nanoTime() - VIDEO_FRAME_PERIOD_NS;
 	
 	public ClientHandler(Socket socket) throws IOException
 	{
@@ -299,6 +353,518 @@ public class ClientHandler extends Thread
 	    return rval;
 	}
 	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param numTiles tiles the client keeps in its TileCache, 0 for none
+	 */
+	public void setTileCacheSize(int numTiles)
+	{
+	    tileCache = (numTiles > 0) ? new TileCache<Boolean>(numTiles) : null;
+	    if (numTiles > 0 && !isTileCacheReported)
+	    {
+	        isTileCacheReported = Boolean.TRUE;
+	        final String diagnosticsSection = String.format("Tile cache (%s)", toString());
+	        Diagnostics.register(diagnosticsSection, new Diagnostics.Provider() {
+	            
+	            @Override
+	            public void report(StringBuilder sb)
+	            {
+	                TileCache<Boolean> l_tileCache = tileCache;
+	                if (l_tileCache == null)
+	                {
+	                    sb.append("off");
+	                }
+	                else
+	                {
+	                    l_tileCache.report(sb);
+	                }
+	            }
+	            
+	        });
+	        addOnDestroyAction(new Runnable() {
+	            
+	            @Override
+	            public void run()
+	            {
+	                Diagnostics.unregister(diagnosticsSection);
+	            }
+	            
+	        });
+	    }
+	}
+	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param pixelFormat the format the client is sent pixels in
+	 */
+	public void setPixelFormat(PIXEL_FORMAT pixelFormat)
+	{
+	    this.pixelFormat = pixelFormat;
+	}
+	
+	public PIXEL_FORMAT getPixelFormat()
+	{
+	    return pixelFormat;
+	}
+	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param jpegQuality the quality photographic segments are sent to the client in
+	 *                    (see PixelCodec.encodeLossy), 0 to send every segment lossless
+	 */
+	public void setJpegQuality(int jpegQuality)
+	{
+	    this.jpegQuality = jpegQuality;
+	}
+	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param isTileFiltering true iff. the client takes segments of many colors
+	 *                        FILTERED (see PixelCodec.encodeFiltered)
+	 */
+	public void setTileFiltering(boolean isTileFiltering)
+	{
+	    this.isTileFiltering = isTileFiltering;
+	}
+	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param isDeltaEncoding true iff. the client applies segments sent as a
+	 *                        difference to the pixels it holds (see DeltaBaseCache)
+	 */
+	public void setDeltaEncoding(boolean isDeltaEncoding)
+	{
+	    deltaBases = (isDeltaEncoding && DELTA_BASE_CACHE_SIZE > 0) ? new DeltaBaseCache(DELTA_BASE_CACHE_SIZE) : null;
+	    if (deltaBases != null && !isDeltaBasesReported)
+	    {
+	        isDeltaBasesReported = Boolean.TRUE;
+	        final String diagnosticsSection = String.format("Delta bases (%s)", toString());
+	        Diagnostics.register(diagnosticsSection, new Diagnostics.Provider() {
+	            
+	            @Override
+	            public void report(StringBuilder sb)
+	            {
+	                DeltaBaseCache l_deltaBases = deltaBases;
+	                if (l_deltaBases == null)
+	                {
+	                    sb.append("off");
+	                }
+	                else
+	                {
+	                    l_deltaBases.report(sb);
+	                }
+	            }
+	            
+	        });
+	        addOnDestroyAction(new Runnable() {
+	            
+	            @Override
+	            public void run()
+	            {
+	                Diagnostics.unregister(diagnosticsSection);
+	            }
+	            
+	        });
+	    }
+	}
+	
+	/**
+	 * @return true iff. the client is sent segments as deltas
+	 */
+	public boolean hasDeltaBases()
+	{
+	    return deltaBases != null;
+	}
+	
+	/**
+	 * @return true iff. the segment changed little enough since the client
+	 *         was last sent it on its own to be sent as a delta
+	 */
+	public boolean isDeltaWorthy(int segmentID, GraphicsSegment graphicsSegment)
+	{
+	    return getEncodingPolicy().isDeltaWorthy(segmentID, graphicsSegment);
+	}
+	
+	/**
+	 * @return how segments are encoded for the client with its settings as they are
+	 */
+	private SegmentEncodingPolicy getEncodingPolicy()
+	{
+	    return new SegmentEncodingPolicy(pixelFormat, isTileFiltering, jpegQuality, scaleShift, tileCache, deltaBases);
+	}
+	
+	/**
+	 * Forget what the client holds of the segments that an update other
+	 * than a SCREEN_SEGMENT_UPDATE of a lone segment draws over, must be
+	 * called in the order the updates are sent in
+	 */
+	private void dropDeltaBases(SERVER_EVENT event, Object[] args)
+	{
+	    DeltaBaseCache l_deltaBases = deltaBases;
+	    Monitor monitor = getMonitor();
+	    if (l_deltaBases == null || monitor == null)
+	    {
+	        return;
+	    }
+	    FixedLengthBitSet segments = new FixedLengthBitSet(monitor.getSegmentCount());
+	    switch (event)
+	    {
+	        case SCREEN_SEGMENT_UPDATE:
+	            int regionID = (Integer) args[0];
+	            if (regionID < 0)
+	            {
+	                l_deltaBases.clear();
+	                return;
+	            }
+	            monitor.markRegion(regionID, segments);
+	            break;
+	        case SCREEN_RECT_UPDATE:
+	            monitor.markSegments((Integer) args[0], (Integer) args[1], (Integer) args[2], segments);
+	            break;
+	        case SCREEN_RECT_COPY:
+	            monitor.markSegments(new Rectangle((Integer) args[0] + (Integer) args[4], (Integer) args[1] + (Integer) args[5], (Integer) args[2], (Integer) args[3]), segments);
+	            break;
+	        default:
+	            assert_(false);
+	            break;
+	    }
+	    l_deltaBases.remove(segments);
+	}
+	
+	private Monitor getMonitor()
+	{
+	    synchronized(monitorRef)
+	    {
+	        return (monitorRef[0] == null) ? null : (Monitor) monitorRef[0].get();
+	    }
+	}
+	
+	/**
+	 * Have the client fetch the segments it was sent lossy again once they
+	 * have not changed for LOSSY_REFINE_DELAY, which sends them lossless
+	 * (see SegmentEncodingPolicy.encode) so that content that stays put ends up pixel exact.
+	 */
+	private void refineSettledSegments(ScreenListener l)
+	{
+	    Monitor monitor = getMonitor();
+	    if (monitor == null)
+	    {
+	        return;
+	    }
+	    
+	    int numSegments = monitor.getSegmentCount();
+	    long now = System.nanoTime();
+	    FixedLengthBitSet settled = null;
+	    
+	    synchronized(lossySegments)
+	    {
+	        Iterator<Integer> iterator = lossySegments.iterator();
+	        while (iterator.hasNext())
+	        {
+	            int segmentID = iterator.next();
+	            if (segmentID >= numSegments)
+	            {
+	                // the screen was resized
+	                iterator.remove();
+	                continue;
+	            }
+	            if (now - monitor.getSegment(segmentID).getChangedAtNS() < LOSSY_REFINE_DELAY_NS)
+	            {
+	                continue;
+	            }
+	            iterator.remove();
+	            if (settled == null)
+	            {
+	                settled = new FixedLengthBitSet(numSegments);
+	            }
+	            settled.set(segmentID, Boolean.TRUE);
+	        }
+	    }
+	    
+	    if (settled != null)
+	    {
+	        l.onScreenChange(settled);
+	    }
+	}
+	
+	/**
+	 * Must be called before selectGraphicsDevice(...)
+	 * 
+	 * @param previewScale how many times smaller a preview of large updates
+	 *                     is sent in (see isPreviewWorthy), rounded down to a
+	 *                     power of 2, 0 or 1 to send no previews
+	 */
+	public void setPreviewScale(int previewScale)
+	{
+	    previewShift = (previewScale <= 1) ? 0 : Math.min(31 - Integer.numberOfLeadingZeros(previewScale), PixelCodec.MAX_DOWNSAMPLE_SHIFT);
+	}
+	
+	/**
+	 * @param segments the segments the client asked for
+	 * @return true iff. the client takes previews and the segments are
+	 *         enough of the screen to be worth one (see getPreview) ahead
+	 *         of the segments themselves
+	 */
+	public boolean isPreviewWorthy(FixedLengthBitSet segments)
+	{
+	    if (previewShift <= scaleShift)
+	    {
+	        // no previews, or the segments are sent as coarse as a preview anyway
+	        return Boolean.FALSE;
+	    }
+	    int numSegments = 0;
+	    for (int segmentID=segments.nextSetBit(0); segmentID>=0; segmentID=segments.nextSetBit(segmentID+1))
+	    {
+	        numSegments++;
+	    }
+	    
+	    return numSegments >= segments.length >> PREVIEW_MIN_SHARE_SHIFT;
+	}
+	
+	/**
+	 * @param segmentRect a rectangle of segments (in segment units)
+	 * @return the pixels of the rectangle DOWNSAMPLED (see PixelCodec.encodeDownsampled)
+	 *         to be sent as a SCREEN_RECT_UPDATE, null if the screen went away
+	 */
+	public byte[] getPreview(Rectangle segmentRect)
+	{
+	    Monitor monitor = getMonitor();
+	    GraphicsSegment block = getBlock(segmentRect);
+	    if (monitor == null || block == null)
+	    {
+	        return null;
+	    }
+	    final Rectangle bounds = new Rectangle();
+	    monitor.getBounds(monitor.getSegmentID(segmentRect.x, segmentRect.y), segmentRect.width, segmentRect.height, bounds);
+	    
+	    return (byte[]) block.synchronously(new GraphicsSegment.Synchronously() {
+	        
+	        @Override
+	        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+	        {
+	            return PixelCodec.encodeDownsampled(pixels, bounds.width, previewShift, pixelFormat);
+	        }
+	        
+	    });
+	}
+	
+	/**
+	 * Segments are sent to a client that shows the screen at half its size
+	 * or less DOWNSAMPLED (see PixelCodec.encodeDownsampled) by the largest
+	 * power of 2 that it is still shown at least as large as. The screen is
+	 * scanned and compared at its own size all the same.
+	 * 
+	 * @param scaleFactor how large the client shows the screen, 1 for its own size
+	 */
+	public void setScaleFactor(float scaleFactor)
+	{
+	    int shift = 0;
+	    while (shift < PixelCodec.MAX_DOWNSAMPLE_SHIFT && scaleFactor > 0 && scaleFactor * (2 << shift) <= 1.0f)
+	    {
+	        shift++;
+	    }
+	    int oldShift = scaleShift;
+	    scaleShift = shift;
+	    if (shift == oldShift)
+	    {
+	        return;
+	    }
+	    // delta bases and tiles are only ever pixels sent at their own size,
+	    // still dropping the bases costs a full segment each at most and
+	    // never leaves one the client does not hold; the TileCache is kept as
+	    // it mirrors the client's and its tiles are as fine as any scale needs
+	    DeltaBaseCache l_deltaBases = deltaBases;
+	    if (l_deltaBases != null)
+	    {
+	        l_deltaBases.clear();
+	    }
+	    Monitor monitor = getMonitor();
+	    if (shift < oldShift && monitor != null)
+	    {
+	        // what the client holds is too coarse to be shown this large,
+	        // whereas going coarser only ever shows it smaller than it is
+	        sendEvent(SERVER_EVENT.SCREEN_SEGMENT_CHANGED, new FixedLengthBitSet(monitor.getSegmentCount(), Boolean.TRUE));
+	    }
+	}
+	
+	/**
+	 * Order regions nearest to the cursor first (see Monitor.sortRegionsNearMouse)
+	 */
+	public void sortRegionsNearCursor(List<Integer> regionIDs)
+	{
+	    Monitor monitor = getMonitor();
+	    if (monitor != null)
+	    {
+	        monitor.sortRegionsNearMouse(regionIDs);
+	    }
+	}
+	
+	/**
+	 * Order rectangles of segments nearest to the cursor first (see Monitor.sortRectanglesNearMouse)
+	 */
+	public void sortRectanglesNearCursor(List<Rectangle> segmentRects)
+	{
+	    Monitor monitor = getMonitor();
+	    if (monitor != null)
+	    {
+	        monitor.sortRectanglesNearMouse(segmentRects);
+	    }
+	}
+	
+	/**
+	 * @param changed the segments the client asked for
+	 * @param dst receives the segments of the returned regions
+	 * @return the video regions (see Monitor.getVideoRegions) to send as a
+	 *         single lossy SCREEN_RECT_UPDATE each in place of the changed
+	 *         segments they hold, none if the client does not take JPEG
+	 *         or if the segments asked for within a region have settled
+	 *         (see refineSettledSegments)
+	 */
+	public List<Rectangle> getVideoRegions(FixedLengthBitSet changed, FixedLengthBitSet dst)
+	{
+	    Monitor monitor = getMonitor();
+	    ArrayList<Rectangle> rval = new ArrayList<Rectangle>(0);
+	    if (jpegQuality <= 0 || VIDEO_FRAME_PERIOD_NS <= 0 || monitor == null)
+	    {
+	        return rval;
+	    }
+	    
+	    long now = System.nanoTime();
+	    for (Rectangle region : monitor.getVideoRegions())
+	    {
+	        FixedLengthBitSet segments = new FixedLengthBitSet(changed.length);
+	        boolean isMoving = Boolean.FALSE;
+	        monitor.markSegments(monitor.getSegmentID(region.x, region.y), region.width, region.height, segments);
+	        for (int segmentID=segments.nextSetBit(0); segmentID>=0; segmentID=segments.nextSetBit(segmentID+1))
+	        {
+	            if (changed.get(segmentID) && now - monitor.getSegment(segmentID).getChangedAtNS() < LOSSY_REFINE_DELAY_NS)
+	            {
+	                isMoving = Boolean.TRUE;
+	                break;
+	            }
+	        }
+	        if (isMoving)
+	        {
+	            rval.add(region);
+	            dst.or(segments);
+	        }
+	    }
+	    
+	    return rval;
+	}
+	
+	/**
+	 * @param graphicsSegment the pixels of the block of numHorizontal by numVertical segments from segmentID
+	 * @return the JPEG encoding of a video frame (see getVideoBlock), null if
+	 *         graphicsSegment is not one or there is no JPEG writer
+	 */
+	private byte[] getVideoFrame(int segmentID, int numHorizontal, int numVertical, GraphicsSegment graphicsSegment)
+	{
+	    Monitor monitor = getMonitor();
+	    if (monitor == null)
+	    {
+	        return null;
+	    }
+	    final Rectangle bounds = new Rectangle();
+	    monitor.getBounds(segmentID, numHorizontal, numVertical, bounds);
+	    byte[] rval = (byte[]) graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+	        
+	        @Override
+	        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+	        {
+	            // frames seldom repeat, so they are not worth a place in the EncodedTileCache
+	            return receiver.isPhotographic() ? PixelCodec.encodeLossy(pixels, bounds.width, jpegQuality) : null;
+	        }
+	        
+	    });
+	    
+	    FixedLengthBitSet segments = new FixedLengthBitSet(monitor.getSegmentCount());
+	    monitor.markSegments(segmentID, numHorizontal, numVertical, segments);
+	    synchronized(lossySegments)
+	    {
+	        for (int i=segments.nextSetBit(0); i>=0; i=segments.nextSetBit(i+1))
+	        {
+	            // like a lossy segment the frame is refined once it settles
+	            if (rval == null)
+	            {
+	                lossySegments.remove(i);
+	            }
+	            else
+	            {
+	                lossySegments.add(i);
+	            }
+	        }
+	    }
+	    
+	    return rval;
+	}
+	
+	/**
+	 * @return true iff. a video frame is due (at most VIDEO_MAX_FRAME_RATE a second), in which case it is taken
+	 */
+	public boolean nextVideoFrame()
+	{
+	    long now = System.nanoTime();
+	    if (now - videoFrameAtNS < VIDEO_FRAME_PERIOD_NS)
+	    {
+	        return Boolean.FALSE;
+	    }
+	    videoFrameAtNS = now;
+	    
+	    return Boolean.TRUE;
+	}
+	
+	/**
+	 * @param segmentRect a video region (see getVideoRegions)
+	 * @return a copy of the region marked to be sent lossy
+	 */
+	public GraphicsSegment getVideoBlock(Rectangle segmentRect)
+	{
+	    GraphicsSegment rval = getBlock(segmentRect);
+	    if (rval != null)
+	    {
+	        rval.synchronouslyInPlace(markPhotographic);
+	    }
+	    
+	    return rval;
+	}
+	
+	/**
+	 * Have the client fetch the segments of a video frame that was not sent
+	 * once they settle, unless they are sent again before then
+	 */
+	public void skipVideoFrame(FixedLengthBitSet segments)
+	{
+	    synchronized(lossySegments)
+	    {
+	        for (int segmentID=segments.nextSetBit(0); segmentID>=0; segmentID=segments.nextSetBit(segmentID+1))
+	        {
+	            lossySegments.add(segmentID);
+	        }
+	    }
+	}
+	
+	/**
+	 * @return true iff. the client keeps a TileCache
+	 */
+	public boolean hasTileCache()
+	{
+	    return tileCache != null;
+	}
+	
+	/**
+	 * @return true iff. the pixels of the segment are in the client's TileCache
+	 */
+	public boolean isTileCached(GraphicsSegment graphicsSegment)
+	{
+	    return getEncodingPolicy().isTileCached(graphicsSegment);
+	}
+	
 	public void addOnDestroyAction(Runnable r)
 	{
 		onDestroyActions.add(r);
@@ -431,13 +997,57 @@ public class ClientHandler extends Thread
 		if (l == null || dirbot != this.dirbot)
 		{
 			this.dirbot = dirbot;
-			l = new ScreenListener() {
+			l = new PacedScreenListener() {
 			    
 				@Override
-				public void onScreenChange(FixedLengthBitSet changedSegments)
+				protected Long getPeriodMS()
+				{
+					return getScanPeriod();
+				}
+				
+				@Override
+				protected void deliver(FixedLengthBitSet changedSegments)
 				{
 					sendEvent(SERVER_EVENT.SCREEN_SEGMENT_CHANGED, changedSegments);
 				}
+				
+				@Override
+				public void onScanComplete()
+				{
+				    if (jpegQuality > 0)
+				    {
+				        refineSettledSegments(this);
+				    }
+				    super.onScanComplete();
+				}
+				
+				@Override
+				protected void deliverMove(ScreenMove move)
+				{
+					if (scaleShift > 0)
+					{
+					    // the pixels the client holds are too coarse to be copied
+					    FixedLengthBitSet moved = new FixedLengthBitSet(move.numSegments);
+					    for (int segmentID : move.segmentIDs)
+					    {
+					        moved.set(segmentID, Boolean.TRUE);
+					    }
+					    deliver(moved);
+					    return;
+					}
+					Rectangle src = move.src;
+					long[] segmentHashes = move.segmentHashes;
+					if (pixelFormat != PIXEL_FORMAT.ARGB8888)
+					{
+					    // the client checks the copy against the pixels it holds
+					    segmentHashes = new long[move.segmentIDs.length];
+					    for (int i=0; i<segmentHashes.length; i++)
+					    {
+					        segmentHashes[i] = (Long) getSegment(move.segmentIDs[i]).synchronously(getClientHash);
+					    }
+					}
+					sendEvent(SERVER_EVENT.SCREEN_RECT_COPY, src.x, src.y, src.width, src.height, move.dx, move.dy, move.segmentIDs, segmentHashes);
+				}
 			};
 			screenListenerRef[0] = l;
 		}
@@ -561,12 +1171,12 @@ public class ClientHandler extends Thread
         }
 		else
 		{
-		    tidTmp = getNonSerialTID(event, args, 0);
+		    tidTmp = (event == SERVER_EVENT.SCREEN_RECT_UPDATE || event == SERVER_EVENT.SCREEN_RECT_COPY) ? nextUniqueTID() : getNonSerialTID(event, args, 0);
 		    dispatcher = unserializedDispatcher;
 		    // TODO: only dispatch if we know for sure that the arguments have changed
 		    if ((isMutable = event.hasMutableArgs()) || !unserializedDispatcher.queueContains(tidTmp))
 		    {
-		        if (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE)
+		        if (event == SERVER_EVENT.SCREEN_SEGMENT_UPDATE || event == SERVER_EVENT.SCREEN_RECT_UPDATE || event == SERVER_EVENT.SCREEN_RECT_COPY)
                 {
                     dispatch = Boolean.TRUE;
                 }
@@ -651,9 +1261,75 @@ public class ClientHandler extends Thread
                     public void run() throws IOException
                     {
                         GraphicsSegment graphicsSegment = (GraphicsSegment) args[1];
-                        jce_id_ptr[0] = args[0];
-                        JitCompressedEvent new_jce = (JitCompressedEvent) graphicsSegment.synchronously(getJCE);
-                        Msg.send(out, new_jce, event);
+                        int segmentID = (Integer) args[0];
+                        boolean isSegment = segmentID >= 0 && SegmentationInfo.getRegionLevel(segmentID) == 0;
+                        Object encoded = getEncodingPolicy().encode(segmentID, graphicsSegment);
+                        if (isSegment)
+                        {
+                            synchronized(lossySegments)
+                            {
+                                if (SegmentEncodingPolicy.isLossy(encoded))
+                                {
+                                    lossySegments.add(segmentID);
+                                }
+                                else
+                                {
+                                    lossySegments.remove(segmentID);
+                                }
+                            }
+                        }
+                        if (encoded instanceof Long)
+                        {
+                            Msg.send(out, (JitCompressable) null, SERVER_EVENT.SCREEN_SEGMENT_CACHED, segmentID, encoded);
+                        }
+                        else if (encoded instanceof byte[])
+                        {
+                            Msg.send(out, (JitCompressable) null, event, segmentID, encoded);
+                        }
+                        else
+                        {
+                            Msg.send(out, (JitCompressedEvent) encoded, event);
+                        }
+                        if (!isSegment || SegmentEncodingPolicy.isDownsampled(encoded))
+                        {
+                            // lone segments keep their bases up to date, see SegmentEncodingPolicy.encode
+                            dropDeltaBases(event, args);
+                        }
+                    }
+                    
+                };
+	        }
+		    else if (event == SERVER_EVENT.SCREEN_RECT_UPDATE)
+		    {
+		        assert_(jce == null);
+		        assert_(args.length == 4);
+		        
+		        msgAction = new IOERunnable() {
+		            
+		            @Override
+		            public void run() throws IOException
+		            {
+		                Object serialized = null;
+		                if (args[3] instanceof byte[])
+		                {
+		                    // a preview, see getPreview(...)
+		                    serialized = args[3];
+		                }
+		                else
+		                {
+		                    GraphicsSegment graphicsSegment = (GraphicsSegment) args[3];
+		                    // either encoding decodes in rows of the rectangle's width
+		                    serialized = getEncodingPolicy().getDownsampled(graphicsSegment, false);
+		                    if (serialized == null && jpegQuality > 0)
+		                    {
+		                        serialized = getVideoFrame((Integer) args[0], (Integer) args[1], (Integer) args[2], graphicsSegment);
+		                    }
+		                    if (serialized == null)
+		                    {
+		                        serialized = graphicsSegment.synchronously(getSerialized);
+		                    }
+		                }
+		                Msg.send(out, (JitCompressable) null, event, args[0], args[1], args[2], serialized);
                     }
                     
                 };
@@ -765,13 +1441,20 @@ public class ClientHandler extends Thread
                                 case SCREEN_RESIZED:
                                 case SCREEN_SEGMENT_CHANGED:
                                 case SCREEN_SEGMENT_SIZE_UPDATE:
+                                    break;
+                                case SCREEN_RECT_UPDATE:
+                                case SCREEN_RECT_COPY:
+                                    dropDeltaBases(event, args);
+                                    break;
                                 case SCREEN_SEGMENT_UPDATE:
+                                case SCREEN_SEGMENT_CACHED:
                                 case READ_INPUT_EVENTS:
                                 case CLIPBOARD_CHANGED:
                                 case GET_CLIPBOARD:
                                 case SET_CLIPBOARD:
                                     break;
 							case END_OF_FRAME:
+							case DIAGNOSTICS:
 								break;
 	                        }
 	                    }
@@ -809,6 +1492,22 @@ public class ClientHandler extends Thread
 		}
 	}
 	
+	/**
+	 * Rectangles and copies may overlap each other and segments, so none of
+	 * them may take the place of another in the queue: each gets a TID of its
+	 * own below those of all other events.
+	 */
+	private int nextUniqueTID()
+	{
+	    uniqueTID--;
+	    if (uniqueTID >= 0)
+	    {
+	        uniqueTID = -1;
+	    }
+	    
+	    return uniqueTID;
+	}
+	
 	private int getNonSerialTID(SERVER_EVENT event, Object[] refStack, int idxSegmentID)
     {
 	    int rval;
@@ -830,6 +1529,26 @@ public class ClientHandler extends Thread
 	    return Manager.getInstance().getSegment(dirbot, segmentID);
 	}
 	
+	public void collectRegions(FixedLengthBitSet changedSegments, List<Integer> dst)
+	{
+	    Manager.getInstance().collectRegions(dirbot, changedSegments, dst);
+	}
+	
+	public void collectRectangles(FixedLengthBitSet changedSegments, List<Rectangle> dst)
+	{
+	    Manager.getInstance().collectRectangles(dirbot, changedSegments, dst);
+	}
+	
+	public int getSegmentID(int x, int y)
+	{
+	    return Manager.getInstance().getSegmentID(dirbot, x, y);
+	}
+	
+	public GraphicsSegment getBlock(Rectangle segmentRect)
+	{
+	    return Manager.getInstance().getBlock(dirbot, segmentRect);
+	}
+	
 	public DirectRobot getDirbot()
 	{
 	    return dirbot;
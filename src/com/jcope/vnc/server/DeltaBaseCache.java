@@ -0,0 +1,191 @@
+package com.jcope.vnc.server;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * The pixels a client holds of the segments it was last sent on their
+ * own, so that a segment that changed a little can be sent as its
+ * difference to them (see PixelCodec.encodeDelta) or as the rectangle
+ * that changed (see PixelCodec.encodePatch) instead of in full.
+ *
+ * The client applies updates in the order they are sent in, so what was
+ * last sent is what the client holds as long as every other update that
+ * draws over a segment (rectangles, regions, copies, lossy segments)
+ * drops the segment from here in the same order. A delta carries the
+ * hash of the pixels it applies to all the same, and a client that finds
+ * different pixels asks for the segment again, which is then sent in full.
+ *
+ * Least recently sent segments are dropped once the pixels held exceed
+ * DELTA_BASE_CACHE_SIZE bytes.
+ *
+ * How many pixels of a segment differ from what the client holds is
+ * kept next to it until either side changes, so that deciding whether to
+ * send a delta and building it count them only once.
+ *
+ */
+
+public class DeltaBaseCache
+{
+    private final long capacity;
+    private final LinkedHashMap<Integer, int[]> bases = new LinkedHashMap<Integer, int[]>(16, 0.75f, Boolean.TRUE);
+    private final HashMap<Integer, Changes> changes = new HashMap<Integer, Changes>();
+    private long size = 0;
+    private long numDeltas = 0;
+    private long numDeltaBytes = 0;
+    private long numPatches = 0;
+    private long numResyncs = 0;
+    private long numEvicted = 0;
+    
+    private static class Changes
+    {
+        final int[] base;
+        final long changedAtNS;
+        final int numChanged;
+        final Rectangle bounds;
+        
+        Changes(int[] base, long changedAtNS, int numChanged, Rectangle bounds)
+        {
+            this.base = base;
+            this.changedAtNS = changedAtNS;
+            this.numChanged = numChanged;
+            this.bounds = bounds;
+        }
+    }
+    
+    /**
+     * @param capacity maximum number of bytes of pixels kept
+     */
+    public DeltaBaseCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+    
+    /**
+     * @return the pixels the client holds of the segment, or null if they are not known
+     */
+    public synchronized int[] get(int segmentID)
+    {
+        return bases.get(segmentID);
+    }
+    
+    /**
+     * @param pixels the pixels the client holds of the segment from now on, owned by the cache from here on
+     */
+    public synchronized void put(int segmentID, int[] pixels)
+    {
+        int[] old = bases.put(segmentID, pixels);
+        if (old != null)
+        {
+            size -= ((long) old.length) << 2;
+        }
+        size += ((long) pixels.length) << 2;
+        changes.remove(segmentID);
+        Iterator<Entry<Integer, int[]>> iterator = bases.entrySet().iterator();
+        while (size > capacity)
+        {
+            Entry<Integer, int[]> eldest = iterator.next();
+            size -= ((long) eldest.getValue().length) << 2;
+            changes.remove(eldest.getKey());
+            iterator.remove();
+            numEvicted++;
+        }
+    }
+    
+    public synchronized void remove(int segmentID)
+    {
+        int[] old = bases.remove(segmentID);
+        if (old != null)
+        {
+            size -= ((long) old.length) << 2;
+        }
+        changes.remove(segmentID);
+    }
+    
+    /**
+     * Forget the pixels of every segment in segments
+     */
+    public synchronized void remove(FixedLengthBitSet segments)
+    {
+        for (int segmentID=segments.nextSetBit(0); segmentID>=0; segmentID=segments.nextSetBit(segmentID+1))
+        {
+            remove(segmentID);
+        }
+    }
+    
+    public synchronized void clear()
+    {
+        bases.clear();
+        changes.clear();
+        size = 0;
+    }
+    
+    /**
+     * Keep how many pixels of a segment differ from base
+     * 
+     * @param base what get(segmentID) returned
+     * @param changedAtNS GraphicsSegment.getChangedAtNS() of the pixels counted
+     * @param bounds the smallest rectangle that holds every pixel that differs
+     */
+    public synchronized void putChanges(int segmentID, int[] base, long changedAtNS, int numChanged, Rectangle bounds)
+    {
+        if (bases.get(segmentID) == base)
+        {
+            changes.put(segmentID, new Changes(base, changedAtNS, numChanged, new Rectangle(bounds)));
+        }
+    }
+    
+    /**
+     * @param base what get(segmentID) returned
+     * @param changedAtNS GraphicsSegment.getChangedAtNS() of the pixels to count
+     * @param bounds set to the smallest rectangle that holds every pixel that differs, if they are known
+     * @return the number of pixels that differ as kept by putChanges(...), -1 if the segment or base changed since
+     */
+    public synchronized int getChanges(int segmentID, int[] base, long changedAtNS, Rectangle bounds)
+    {
+        Changes rval = changes.get(segmentID);
+        if (rval == null || rval.base != base || rval.changedAtNS != changedAtNS)
+        {
+            return -1;
+        }
+        bounds.setBounds(rval.bounds);
+        
+        return rval.numChanged;
+    }
+    
+    /**
+     * Count a segment sent as a delta (or a patch)
+     */
+    public synchronized void countDelta(byte[] delta)
+    {
+        numDeltas++;
+        numDeltaBytes += delta.length;
+        if (PixelCodec.getAlgorithm(delta) == SEGMENT_ALGORITHM.PATCH)
+        {
+            numPatches++;
+        }
+    }
+    
+    /**
+     * Count a segment sent in full because the client asked for pixels it should hold already
+     */
+    public synchronized void countResync()
+    {
+        numResyncs++;
+    }
+    
+    public synchronized void report(StringBuilder sb)
+    {
+        sb.append(String.format("%d segments held in %d of %d bytes, %d evicted\ndeltas sent: %d (%.1f bytes each, %d of them patches), %d resyncs", bases.size(), size, capacity, numEvicted, numDeltas, (numDeltas == 0) ? 0.0 : ((double) numDeltaBytes) / numDeltas, numPatches, numResyncs));
+    }
+}
@@ -0,0 +1,76 @@
+package com.jcope.vnc.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Registry of server internals worth reporting to a client
+ * that asks for them (see CLIENT_EVENT.GET_DIAGNOSTICS).
+ * 
+ * Each section is either a fixed piece of text (put) or
+ * a provider that is asked for its text on demand (register).
+ *
+ */
+
+public class Diagnostics
+{
+    public static interface Provider
+    {
+        public void report(StringBuilder sb);
+    }
+    
+    private static final LinkedHashMap<String, Provider> providers = new LinkedHashMap<String, Provider>();
+    
+    public static void put(String section, final String text)
+    {
+        register(section, new Provider() {
+            
+            @Override
+            public void report(StringBuilder sb)
+            {
+                sb.append(text);
+            }
+            
+        });
+    }
+    
+    public static void register(String section, Provider provider)
+    {
+        synchronized(providers)
+        {
+            providers.put(section, provider);
+        }
+    }
+    
+    public static void unregister(String section)
+    {
+        synchronized(providers)
+        {
+            providers.remove(section);
+        }
+    }
+    
+    public static String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        synchronized(providers)
+        {
+            for (Entry<String, Provider> entry : providers.entrySet())
+            {
+                if (sb.length() > 0)
+                {
+                    sb.append("\n\n");
+                }
+                sb.append(entry.getKey());
+                sb.append(":\n");
+                entry.getValue().report(sb);
+            }
+        }
+        
+        return sb.toString();
+    }
+}
@@ -14,12 +14,14 @@ import java.awt.PointerInfo;
 import java.awt.Rectangle;
 import java.awt.Robot;
 import java.awt.Toolkit;
+import java.awt.image.BufferedImage;
 import java.awt.peer.MouseInfoPeer;
 import java.awt.peer.RobotPeer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -33,9 +35,45 @@ public final class DirectRobot
     public final GraphicsDevice device;
     public final Robot robot;
     
+    public static final int CAPTURE_BENCHMARK_ITERATIONS = 3;
+    
+    /**
+     * Strategy for grabbing a rectangle of the screen into an int[] of 0xAARRGGBB pixels
+     */
+    private static abstract class Grabber
+    {
+        public final String name;
+        
+        public Grabber(String name)
+        {
+            this.name = name;
+        }
+        
+        public abstract void grab(Rectangle r, int[] pixels) throws Exception;
+        
+        public void dispose()
+        {
+            // Nothing to release
+        }
+    }
+    
+    // Targets of MethodHandleProxies.asInterfaceInstance, must be public
+    public static interface IntRectGrabber
+    {
+        public void grab(int x, int y, int width, int height, int[] pixels);
+    }
+    
+    public static interface RectGrabber
+    {
+        public void grab(Rectangle r, int[] pixels);
+    }
+    
+    private static final HashMap<GraphicsDevice,String> selectedGrabberNames = new HashMap<GraphicsDevice,String>();
+    
     private Object getRGBPixelsMethodParam;
     private int getRGBPixelsMethodType;
     private Method getRGBPixelsMethod;
+    private Grabber grabber;
     private final RobotPeer peer;
     private static boolean hasMouseInfoPeer;
     private static MouseInfoPeer mouseInfoPeer;
@@ -213,8 +251,278 @@ public final class DirectRobot
 					LLog.e(e);
 				}
 			}
+			// the public (copying) capture methods remain available
+		}
+		
+		grabber = selectGrabber(getGrabbers());
+	}
+	
+	/**
+	 * @return every capture strategy that could be set up for this device
+	 */
+	private ArrayList<Grabber> getGrabbers()
+	{
+		ArrayList<Grabber> rval = new ArrayList<Grabber>();
+		
+		if (getRGBPixelsMethod != null)
+		{
+			final Method method = getRGBPixelsMethod;
+			final int methodType = getRGBPixelsMethodType;
+			final Object methodParam = getRGBPixelsMethodParam;
+			
+			// the original strategy: toggle accessibility and box arguments on every call
+			rval.add(new Grabber("PEER_REFLECT") {
+				
+				@Override
+				public void grab(Rectangle r, int[] pixels) throws Exception
+				{
+					methLock.lock();
+					try
+					{
+						boolean makeAccessible = !method.isAccessible();
+						synchronized(method)
+						{
+							if (makeAccessible)
+							{
+								method.setAccessible(true);
+							}
+							try
+							{
+								method.invoke(peer, getArgs(methodType, methodParam, r, pixels));
+							}
+							finally {
+								if (makeAccessible)
+								{
+									method.setAccessible(false);
+								}
+							}
+						}
+					}
+					finally {
+						methLock.unlock();
+					}
+				}
+				
+			});
+			
+			// accessible once, arguments only re-boxed when the screen bounds change
+			try
+			{
+				final Method cachedMethod = peer.getClass().getDeclaredMethod(method.getName(), method.getParameterTypes());
+				cachedMethod.setAccessible(true);
+				rval.add(new Grabber("PEER_REFLECT_CACHED") {
+					
+					private Rectangle lastRect = null;
+					private int[] lastPixels = null;
+					private Object[] args = null;
+					
+					@Override
+					public void grab(Rectangle r, int[] pixels) throws Exception
+					{
+						if (args == null || pixels != lastPixels || !r.equals(lastRect))
+						{
+							lastRect = new Rectangle(r);
+							lastPixels = pixels;
+							args = getArgs(methodType, methodParam, lastRect, pixels);
+						}
+						cachedMethod.invoke(peer, args);
+					}
+					
+				});
+			}
+			catch (Exception e)
+			{
+				if (DEBUG) LLog.w(e);
+			}
+			
+			// MethodHandles are only available from Java 7 onwards, so bind them reflectively
+			try
+			{
+				Method handleMethod = peer.getClass().getDeclaredMethod(method.getName(), method.getParameterTypes());
+				handleMethod.setAccessible(true);
+				Class<?> methodHandlesClass = Class.forName("java.lang.invoke.MethodHandles");
+				Class<?> methodHandleClass = Class.forName("java.lang.invoke.MethodHandle");
+				Object lookup = methodHandlesClass.getMethod("publicLookup").invoke(null);
+				Object handle = lookup.getClass().getMethod("unreflect", Method.class).invoke(lookup, handleMethod);
+				handle = methodHandleClass.getMethod("bindTo", Object.class).invoke(handle, peer);
+				if (methodParam != null)
+				{
+					handle = methodHandlesClass.getMethod("insertArguments", methodHandleClass, Integer.TYPE, Object[].class).invoke(null, handle, 0, new Object[]{methodParam});
+				}
+				Method asInterfaceInstance = Class.forName("java.lang.invoke.MethodHandleProxies").getMethod("asInterfaceInstance", Class.class, methodHandleClass);
+				if (methodType == 0 || methodType == 3)
+				{
+					final IntRectGrabber invoker = (IntRectGrabber) asInterfaceInstance.invoke(null, IntRectGrabber.class, handle);
+					rval.add(new Grabber("PEER_METHOD_HANDLE") {
+						
+						@Override
+						public void grab(Rectangle r, int[] pixels) throws Exception
+						{
+							invoker.grab(r.x, r.y, r.width, r.height, pixels);
+						}
+						
+					});
+				}
+				else
+				{
+					final RectGrabber invoker = (RectGrabber) asInterfaceInstance.invoke(null, RectGrabber.class, handle);
+					rval.add(new Grabber("PEER_METHOD_HANDLE") {
+						
+						@Override
+						public void grab(Rectangle r, int[] pixels) throws Exception
+						{
+							invoker.grab(r, pixels);
+						}
+						
+					});
+				}
+			}
+			catch (Exception e)
+			{
+				if (DEBUG) LLog.w(e);
+			}
+		}
+		
+		rval.add(new Grabber("PEER_GET_RGB_PIXELS") {
+			
+			@Override
+			public void grab(Rectangle r, int[] pixels) throws Exception
+			{
+				int[] tmp = peer.getRGBPixels(r);
+				System.arraycopy(tmp, 0, pixels, 0, r.width * r.height);
+			}
+			
+		});
+		
+		rval.add(new Grabber("ROBOT_CREATE_SCREEN_CAPTURE") {
+			
+			@Override
+			public void grab(Rectangle r, int[] pixels) throws Exception
+			{
+				BufferedImage image = robot.createScreenCapture(r);
+				image.getRGB(0, 0, r.width, r.height, pixels, 0, r.width);
+			}
+			
+		});
+		
+		return rval;
+	}
+	
+	private static Object[] getArgs(int methodType, Object methodParam, Rectangle r, int[] pixels)
+	{
+		Object[] rval;
+		
+		switch(methodType)
+		{
+			case 0:
+				rval = new Object[] { Integer.valueOf(r.x), Integer.valueOf(r.y), Integer.valueOf(r.width), Integer.valueOf(r.height), pixels };
+				break;
+			case 1:
+				rval = new Object[] { new Rectangle(r.x, r.y, r.width, r.height), pixels };
+				break;
+			case 2:
+				rval = new Object[] { methodParam, new Rectangle(r.x, r.y, r.width, r.height), pixels };
+				break;
+			default:
+				rval = new Object[] { methodParam, Integer.valueOf(r.x), Integer.valueOf(r.y), Integer.valueOf(r.width), Integer.valueOf(r.height), pixels };
+				break;
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * Time a full screen grab with every strategy the first time a device is seen
+	 * and keep the fastest. Later instances for the same device reuse that choice.
+	 */
+	private Grabber selectGrabber(ArrayList<Grabber> grabbers)
+	{
+		String selectedName;
+		synchronized(selectedGrabberNames)
+		{
+			selectedName = selectedGrabberNames.get(device);
+		}
+		if (selectedName != null)
+		{
+			for (Grabber g : grabbers)
+			{
+				if (g.name.equals(selectedName))
+				{
+					return g;
+				}
+			}
+		}
+		
+		Rectangle r = getScreenBounds();
+		int[] pixels = new int[r.width * r.height];
+		Grabber rval = null;
+		long bestNS = Long.MAX_VALUE;
+		StringBuilder report = new StringBuilder();
+		
+		for (Grabber g : grabbers)
+		{
+			long elapsedNS;
+			try
+			{
+				g.grab(r, pixels); // warm up
+				long startAt = System.nanoTime();
+				for (int i=0; i<CAPTURE_BENCHMARK_ITERATIONS; i++)
+				{
+					g.grab(r, pixels);
+				}
+				elapsedNS = (System.nanoTime() - startAt) / CAPTURE_BENCHMARK_ITERATIONS;
+			}
+			catch (Throwable t)
+			{
+				report.append(String.format("%s: unavailable (%s)\n", g.name, t.toString()));
+				continue;
+			}
+			report.append(String.format("%s: %.3f ms/frame\n", g.name, ((double) elapsedNS) / 1000000.0));
+			if (elapsedNS < bestNS)
+			{
+				bestNS = elapsedNS;
+				rval = g;
+			}
+		}
+		
+		if (rval == null)
+		{
 			throw new RuntimeException("No supported method for getting pixels");
 		}
+		
+		report.append(String.format("selected: %s", rval.name));
+		Diagnostics.put(String.format("Capture methods (%s, %dx%d)", device.getIDstring(), r.width, r.height), report.toString());
+		if (DEBUG) LLog.i(String.format("Capture method for %s: %s", device.getIDstring(), rval.name));
+		synchronized(selectedGrabberNames)
+		{
+			selectedGrabberNames.put(device, rval.name);
+		}
+		
+		return rval;
+	}
+	
+	/**
+	 * Benchmark the capture methods of every screen device so that
+	 * monitors created later start with the fastest one
+	 */
+	public static void selectCaptureMethods()
+	{
+		for (GraphicsDevice device : getScreenDevices())
+		{
+			try
+			{
+				new DirectRobot(device);
+			}
+			catch (AWTException e)
+			{
+				LLog.e(e, false);
+			}
+		}
+	}
+	
+	public String getCaptureMethodName()
+	{
+		return grabber.name;
 	}
 
 	public static GraphicsDevice getMouseInfo(Point point)
@@ -424,20 +732,30 @@ public final class DirectRobot
 	}
 
 	public static void getRGBPixelSlice(int[] src, int srcWidth, int srcHeight, int x, int y, int width, int height, int[] dst)
+	{
+		getRGBPixelSlice(src, srcWidth, srcHeight, x, y, width, height, dst, 0, width);
+	}
+	
+	/**
+	 * Copy a rectangle out of a full frame into a region of dst
+	 * that starts at dstOffset and whose rows are dstScanSize apart
+	 */
+	public static void getRGBPixelSlice(int[] src, int srcWidth, int srcHeight, int x, int y, int width, int height, int[] dst, int dstOffset, int dstScanSize)
 	{
 		assert_(width > 0);
 		assert_(height > 0);
-		assert_(srcWidth > width);
-		assert_(srcHeight > height);
+		assert_(srcWidth >= x + width);
+		assert_(srcHeight >= y + height);
+		assert_(dstScanSize >= width);
 		
 		int srcPos = y * srcWidth + x;
-		int dstPos = 0;
+		int dstPos = dstOffset;
 		
 		for (int i=0; i<height; i++)
 		{
 			System.arraycopy(src, srcPos, dst, dstPos, width);
 			srcPos += srcWidth;
-			dstPos += width;
+			dstPos += dstScanSize;
 		}
 	}
 	
@@ -447,6 +765,11 @@ public final class DirectRobot
 	}
 	
 	public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels)
+	{
+		return getRGBPixels(x, y, width, height, pixels, 0, width);
+	}
+	
+	public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels, int offset, int scanSize)
 	{
 	    try
 	    {
@@ -471,7 +794,7 @@ public final class DirectRobot
 	    			usedEfficientMethod = true;
 	    		}
 	    		
-	    		getRGBPixelSlice(pixelCache[0], this.width, this.height, x, y, width, height, pixels);
+	    		getRGBPixelSlice(pixelCache[0], this.width, this.height, x, y, width, height, pixels, offset, scanSize);
 	    		
 	    		return usedEfficientMethod;
 	    	}
@@ -493,55 +816,15 @@ public final class DirectRobot
 		{
 			pixelCache[0] = new int[numPixels];
 		}
-		if (getRGBPixelsMethod != null)
+		try
 		{
-			try
-			{
-				methLock.lock();
-				boolean makeAccessible = !getRGBPixelsMethod.isAccessible();
-				synchronized(getRGBPixelsMethod)
-				{
-					if (makeAccessible)
-					{
-						getRGBPixelsMethod.setAccessible(true);
-					}
-					try
-					{
-						switch(getRGBPixelsMethodType)
-						{
-							case 0:
-								getRGBPixelsMethod.invoke(peer, new Object[] { Integer.valueOf(r.x), Integer.valueOf(r.y), Integer.valueOf(width), Integer.valueOf(height), pixelCache[0] });
-								break;
-							case 1:
-								getRGBPixelsMethod.invoke(peer, new Object[] { new Rectangle(r.x, r.y, width, height), pixelCache[0] });
-								break;
-							case 2:
-								getRGBPixelsMethod.invoke(peer, new Object[] { getRGBPixelsMethodParam, new Rectangle(r.x, r.y, width, height), pixelCache[0] });
-								break;
-							default:
-								getRGBPixelsMethod.invoke(peer, new Object[] { getRGBPixelsMethodParam, Integer.valueOf(r.x), Integer.valueOf(r.y), Integer.valueOf(width), Integer.valueOf(height), pixelCache[0] });
-								break;
-						}
-					}
-					finally {
-						if (makeAccessible)
-						{
-							getRGBPixelsMethod.setAccessible(false);
-						}
-					}
-				}
-
-				return true;
-			} catch (IllegalArgumentException e) {
-				LLog.e(e);
-			} catch (IllegalAccessException e) {
-				LLog.e(e);
-			} catch (InvocationTargetException e) {
-				LLog.e(e);
-			}
-			finally {
-				methLock.unlock();
-			}
+			grabber.grab(r, pixelCache[0]);
+			
+			return true;
+		}
+		catch (Exception e)
+		{
+			LLog.e(e, false);
 		}
 		
 		int[] tmp = getRGBPixels(r);
@@ -616,6 +899,8 @@ public final class DirectRobot
         	synchronized(pixelCache)
         	{
 	            _getRGBPixels();
+	            // region reads within the same scan are served from this frame
+	            isDirty = false;
 	            return pixelCache[0];
         	}
         }
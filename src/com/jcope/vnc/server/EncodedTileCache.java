@@ -0,0 +1,297 @@
+package com.jcope.vnc.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+import com.jcope.util.PixelHash;
+import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Server wide cache of encoded pixels (see PixelCodec) keyed by the
+ * PixelHash of the pixels, so that identical content in different
+ * segments (or on different screens) is only encoded once.
+ *
+ * The segment ID is not part of the encoding, it is sent next to it
+ * in a SCREEN_SEGMENT_UPDATE, so a hit only costs compressing that
+ * small envelope. Least recently used entries are evicted once the
+ * encodings held exceed ENCODED_TILE_CACHE_SIZE bytes, and an encoding
+ * that would take more than an eighth of that (such as a whole screen)
+ * is not kept at all.
+ *
+ * Lossy (JPEG) encodings are kept alongside, one per quality, as are
+ * FILTERED ones, one per format, and DOWNSAMPLED ones, one per scale
+ * and format, which clients that view the screen at about the same
+ * scale share. Each is keyed by which encoding it is as well as by the
+ * hash, so only pixels whose hashes collide can share an entry.
+ *
+ * With a size of 0 pixels are serialized as they are, unless they have
+ * few enough colors to be sent as a PALETTE or are sent in a reduced
+ * PIXEL_FORMAT.
+ *
+ */
+
+public class EncodedTileCache
+{
+    private static final LinkedHashMap<Key, byte[]> tiles = new LinkedHashMap<Key, byte[]>(16, 0.75f, Boolean.TRUE);
+    private static long capacity = (Integer) SERVER_PROPERTIES.ENCODED_TILE_CACHE_SIZE.getValue();
+    private static long size = 0;
+    private static long numHits = 0;
+    private static long numMisses = 0;
+    private static long numEvicted = 0;
+    
+    private static class Key
+    {
+        final long hash;
+        final int width;
+        final SEGMENT_ALGORITHM algorithm;
+        final PIXEL_FORMAT format;
+        final int param;
+        
+        /**
+         * @param hash the PixelHash of the pixels
+         * @param width the width of the rows the encoding depends on, 0 if it does not
+         * @param format null if the encoding has none
+         * @param param the quality or the shift of the encoding, 0 if it has neither
+         */
+        Key(long hash, int width, SEGMENT_ALGORITHM algorithm, PIXEL_FORMAT format, int param)
+        {
+            this.hash = hash;
+            this.width = width;
+            this.algorithm = algorithm;
+            this.format = format;
+            this.param = param;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return (int) (hash ^ (hash >>> 32));
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            
+            return hash == other.hash && width == other.width && algorithm == other.algorithm && format == other.format && param == other.param;
+        }
+    }
+    
+    static
+    {
+        Diagnostics.register("Encoded tile cache", new Diagnostics.Provider() {
+            
+            @Override
+            public void report(StringBuilder sb)
+            {
+                EncodedTileCache.report(sb);
+            }
+            
+        });
+    }
+    
+    /**
+     * @param width the pixels are rows of width pixels
+     * @param palette see GraphicsSegment.getPalette()
+     * @param format the format the pixels are sent in
+     * @param isFiltered whether the client takes FILTERED pixels (see PixelCodec.encodeFiltered), a palette is used over it
+     * @return the encoding of the pixels to send in place of them
+     */
+    public static Object serialize(int[] pixels, int width, int[] palette, PIXEL_FORMAT format, boolean isFiltered)
+    {
+        isFiltered = isFiltered && palette == null;
+        if (capacity <= 0)
+        {
+            return encode(pixels, width, palette, format, isFiltered);
+        }
+        
+        // one encoding per format of the same pixels, the filtered ones keyed by shape as they are filtered along rows
+        Key key;
+        if (isFiltered)
+        {
+            key = new Key(PixelHash.hash(pixels, 0, width, pixels.length / width, width), width, SEGMENT_ALGORITHM.FILTERED, format, 0);
+        }
+        else
+        {
+            key = new Key(PixelHash.hashStrip(pixels, 0, pixels.length, 1), 0, (palette == null) ? SEGMENT_ALGORITHM.PIXELS : SEGMENT_ALGORITHM.PALETTE, format, 0);
+        }
+        byte[] rval = get(key);
+        
+        if (rval == null)
+        {
+            if (isFiltered)
+            {
+                rval = PixelCodec.encodeFiltered(pixels, width, format);
+            }
+            else
+            {
+                rval = (palette == null) ? PixelCodec.encode(pixels, format) : PixelCodec.encode(pixels, palette, format);
+            }
+            put(key, rval);
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @param width the pixels are rows of width pixels
+     * @param quality see PixelCodec.encodeLossy(...)
+     * @return the JPEG encoding of the pixels, or null if there is no JPEG writer
+     */
+    public static byte[] serializeLossy(int[] pixels, int width, int quality)
+    {
+        // with the shape hashed as the width is part of the image
+        Key key = new Key(PixelHash.hash(pixels, 0, width, pixels.length / width, width), width, SEGMENT_ALGORITHM.JPEG, null, quality);
+        byte[] rval = get(key);
+        
+        if (rval == null)
+        {
+            rval = PixelCodec.encodeLossy(pixels, width, quality);
+            if (rval != null)
+            {
+                put(key, rval);
+            }
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * @param width the pixels are rows of width pixels
+     * @param shift see PixelCodec.encodeDownsampled(...)
+     * @return the DOWNSAMPLED encoding of the pixels
+     */
+    public static byte[] serializeDownsampled(int[] pixels, int width, int shift, PIXEL_FORMAT format)
+    {
+        // with the shape hashed as the pixels are averaged over it
+        Key key = new Key(PixelHash.hash(pixels, 0, width, pixels.length / width, width), width, SEGMENT_ALGORITHM.DOWNSAMPLED, format, shift);
+        byte[] rval = get(key);
+        
+        if (rval == null)
+        {
+            rval = PixelCodec.encodeDownsampled(pixels, width, shift, format);
+            put(key, rval);
+        }
+        
+        return rval;
+    }
+    
+    private static byte[] get(Key key)
+    {
+        synchronized(tiles)
+        {
+            if (capacity <= 0)
+            {
+                return null;
+            }
+            byte[] rval = tiles.get(key);
+            if (rval == null)
+            {
+                numMisses++;
+            }
+            else
+            {
+                numHits++;
+            }
+            
+            return rval;
+        }
+    }
+        
+    private static void put(Key key, byte[] rval)
+    {
+        synchronized(tiles)
+        {
+            if (rval.length <= capacity >> 3)
+            {
+                byte[] old = tiles.put(key, rval);
+                if (old != null)
+                {
+                    // encoded concurrently by another segment
+                    size -= old.length;
+                }
+                size += rval.length;
+                Iterator<Entry<Key, byte[]>> iterator = tiles.entrySet().iterator();
+                while (size > capacity)
+                {
+                    size -= iterator.next().getValue().length;
+                    iterator.remove();
+                    numEvicted++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return the pixels encoded without a cache, or the pixels themselves if they are sent as they are
+     */
+    private static Object encode(int[] pixels, int width, int[] palette, PIXEL_FORMAT format, boolean isFiltered)
+    {
+        if (palette != null)
+        {
+            return PixelCodec.encode(pixels, palette, format);
+        }
+        if (isFiltered)
+        {
+            return PixelCodec.encodeFiltered(pixels, width, format);
+        }
+        if (format != PIXEL_FORMAT.ARGB8888)
+        {
+            return PixelCodec.encode(pixels, format);
+        }
+        
+        return pixels;
+    }
+    
+    /**
+     * Empty the cache and limit it to capacity bytes from now on, 0 to not encode at all
+     */
+    public static void setCapacity(long capacity)
+    {
+        synchronized(tiles)
+        {
+            EncodedTileCache.capacity = capacity;
+            clear();
+        }
+    }
+    
+    public static long getCapacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Empty the cache and reset its statistics
+     */
+    public static void clear()
+    {
+        synchronized(tiles)
+        {
+            tiles.clear();
+            size = 0;
+            numHits = 0;
+            numMisses = 0;
+            numEvicted = 0;
+        }
+    }
+    
+    public static void report(StringBuilder sb)
+    {
+        synchronized(tiles)
+        {
+            long numLookups = numHits + numMisses;
+            sb.append(String.format("%d tiles held in %d of %d bytes, %d evicted\nlookups: %d hits, %d misses (%.1f%% hit rate)", tiles.size(), size, capacity, numEvicted, numHits, numMisses, (numLookups == 0) ? 0.0 : numHits * 100.0 / numLookups));
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.jcope.vnc.server;
+
+import java.awt.Rectangle;
+
+import com.jcope.util.GraphicsSegment;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+import com.jcope.util.SegmentationInfo;
+import com.jcope.util.SegmentationInfo.SEGMENT_ALGORITHM;
+import com.jcope.util.TileCache;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Picks what a segment is sent to a client as, given the settings the
+ * client selected the screen with and what it holds: DOWNSAMPLED while
+ * it shows the screen smaller than it is, as the key of a tile in its
+ * TileCache, as JPEG while photographic content moves, as a delta to
+ * the pixels it holds (see DeltaBaseCache) or else in full (see
+ * EncodedTileCache).
+ *
+ * A policy is made from the settings of the client as they are when an
+ * update is sent (see ClientHandler.getEncodingPolicy) and serves that
+ * one update.
+ *
+ */
+
+public class SegmentEncodingPolicy
+{
+    // a segment is sent as a delta while at most half of its pixels changed
+    private static final int DELTA_MAX_CHANGED_SHIFT = 1;
+    
+    private final PIXEL_FORMAT format;
+    private final boolean isTileFiltering;
+    private final int jpegQuality;
+    private final int shift;
+    private final TileCache<Boolean> tileCache;
+    private final DeltaBaseCache deltaBases;
+    // the full encoding of a segment built to compare another one against (see keepSerialized)
+    private GraphicsSegment keptSerializedSegment = null;
+    private Object keptSerialized = null;
+    private long keptSerializedAtNS = 0;
+    
+    /**
+     * @param format the format the client is sent pixels in
+     * @param isTileFiltering true iff. the client takes segments of many colors FILTERED
+     * @param jpegQuality the quality photographic segments are sent in, 0 to send every segment lossless
+     * @param shift how many times smaller, as a power of 2, the client shows the screen (see ClientHandler.setScaleFactor)
+     * @param tileCache the mirror of the client's TileCache, null if it keeps none
+     * @param deltaBases the pixels the client holds, null if it takes no deltas
+     */
+    public SegmentEncodingPolicy(PIXEL_FORMAT format, boolean isTileFiltering, int jpegQuality, int shift, TileCache<Boolean> tileCache, DeltaBaseCache deltaBases)
+    {
+        this.format = format;
+        this.isTileFiltering = isTileFiltering;
+        this.jpegQuality = jpegQuality;
+        this.shift = shift;
+        this.tileCache = tileCache;
+        this.deltaBases = deltaBases;
+    }
+    
+    /**
+     * @param segmentID a segment, a region of segments or -1 for the whole screen
+     * @return what to send in a SCREEN_SEGMENT_UPDATE: a byte[] of
+     *         DOWNSAMPLED, JPEG or delta encoded pixels, a Long key of a
+     *         tile the client holds for a SCREEN_SEGMENT_CACHED, or else
+     *         the JitCompressedEvent of the full encoding
+     */
+    public Object encode(final int segmentID, GraphicsSegment graphicsSegment)
+    {
+        boolean isSegment = segmentID >= 0 && SegmentationInfo.getRegionLevel(segmentID) == 0;
+        // regions and segments of clients that take nothing else are only ever sent in full
+        final boolean isEncodedAlone = isSegment && (tileCache != null || jpegQuality > 0 || deltaBases != null);
+        if (shift > 0 && !(isSegment && isTileCached(graphicsSegment)))
+        {
+            // the full encoding, if smaller, is kept for getJCE
+            Object downsampled = getDownsampled(graphicsSegment, true);
+            if (isDownsampled(downsampled))
+            {
+                // neither tile cached, nor a base for deltas, nor refined (see ClientHandler.setScaleFactor)
+                return downsampled;
+            }
+        }
+        
+        return graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                if (isEncodedAlone)
+                {
+                    return encodeSegment(segmentID, receiver, pixels, solidColorPtr);
+                }
+                return getJCE(segmentID, receiver, pixels, solidColorPtr);
+            }
+            
+        });
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the encoding of a lone segment (see encode)
+     */
+    private Object encodeSegment(int segmentID, GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+    {
+        Long key = (tileCache == null) ? null : getTileKey(receiver, pixels, solidColorPtr);
+        if (key != null && tileCache.get(key) != null)
+        {
+            if (deltaBases != null)
+            {
+                deltaBases.put(segmentID, format.quantize(pixels));
+            }
+            return key;
+        }
+        if (jpegQuality > 0 && solidColorPtr[0] == null)
+        {
+            // not keyed: the client does not keep what it cannot reproduce exactly
+            byte[] lossy = getLossy(receiver, pixels);
+            if (lossy != null)
+            {
+                if (deltaBases != null)
+                {
+                    deltaBases.remove(segmentID);
+                }
+                return lossy;
+            }
+        }
+        if (deltaBases != null)
+        {
+            byte[] delta = getDelta(segmentID, receiver, pixels, solidColorPtr);
+            if (delta != null)
+            {
+                return delta;
+            }
+        }
+        if (key != null)
+        {
+            tileCache.put(key, Boolean.TRUE);
+        }
+        JitCompressedEvent jce = getJCE(segmentID, receiver, pixels, solidColorPtr);
+        // the client keys the tile by what it receives, so encode what was keyed
+        jce.getCompressed();
+        if (deltaBases != null)
+        {
+            deltaBases.put(segmentID, format.quantize(pixels));
+        }
+        
+        return jce;
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the full encoding of the pixels, shared by every client of the
+     *         format that is sent the segment as it is
+     */
+    private JitCompressedEvent getJCE(int segmentID, GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+    {
+        Integer solidColor = solidColorPtr[0];
+        Object serialized = takeSerialized(receiver);
+        // encoded only for the first client of the format to be sent the segment as it is
+        if (serialized == null && !receiver.hasJitCompressedEvent(format, isTileFiltering))
+        {
+            serialized = (solidColor == null) ? EncodedTileCache.serialize(pixels, receiver.getWidth(), receiver.getPalette(), format, isTileFiltering) : Integer.valueOf(format.quantize(solidColor));
+        }
+        
+        return receiver.acquireJitCompressedEvent(format, isTileFiltering, segmentID, serialized);
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the key of the pixels in a TileCache, null if they are solid
+     *         as solid segments are smaller than a reference to a cached tile
+     */
+    private Long getTileKey(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+    {
+        return (solidColorPtr[0] == null) ? Long.valueOf(TileCache.key(pixels, 0, receiver.getWidth(), receiver.getHeight(), receiver.getWidth(), format)) : null;
+    }
+    
+    /**
+     * @return true iff. the pixels of the segment are in the client's TileCache
+     */
+    public boolean isTileCached(GraphicsSegment graphicsSegment)
+    {
+        if (tileCache == null)
+        {
+            return Boolean.FALSE;
+        }
+        Long key = (Long) graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                return getTileKey(receiver, pixels, solidColorPtr);
+            }
+            
+        });
+        
+        return key != null && tileCache.contains(key);
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the JPEG encoding of the pixels, null if they are not
+     *         photographic or have stayed put long enough to be sent
+     *         again lossless (see ClientHandler.refineSettledSegments)
+     */
+    private byte[] getLossy(GraphicsSegment receiver, int[] pixels)
+    {
+        if (!receiver.isPhotographic() || System.nanoTime() - receiver.getChangedAtNS() >= ClientHandler.LOSSY_REFINE_DELAY_NS)
+        {
+            return null;
+        }
+        
+        return EncodedTileCache.serializeLossy(pixels, receiver.getWidth(), jpegQuality);
+    }
+    
+    /**
+     * @return true iff. the segment changed little enough since the client
+     *         was last sent it on its own to be sent as a delta
+     */
+    public boolean isDeltaWorthy(final int segmentID, GraphicsSegment graphicsSegment)
+    {
+        if (deltaBases == null)
+        {
+            return Boolean.FALSE;
+        }
+        final int[] base = deltaBases.get(segmentID);
+        if (base == null)
+        {
+            return Boolean.FALSE;
+        }
+        
+        return (Boolean) graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                Rectangle bounds = new Rectangle();
+                int numChanged = PixelCodec.findChanges(pixels, base, receiver.getWidth(), format, bounds);
+                // counted once, see getDelta(...)
+                deltaBases.putChanges(segmentID, base, receiver.getChangedAtNS(), numChanged, bounds);
+                return Boolean.valueOf(numChanged > 0 && numChanged <= pixels.length >> DELTA_MAX_CHANGED_SHIFT);
+            }
+            
+        });
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the segment as a delta to the pixels the client holds (see
+     *         PixelCodec.encodeDelta) or as the part of it that changed (see
+     *         PixelCodec.encodePatch), whichever is smaller, null to send it in full
+     */
+    private byte[] getDelta(int segmentID, GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+    {
+        int[] base = deltaBases.get(segmentID);
+        // nothing beats a solid color
+        if (base == null || base.length != pixels.length || solidColorPtr[0] != null)
+        {
+            return null;
+        }
+        int width = receiver.getWidth();
+        Rectangle bounds = new Rectangle();
+        int numChanged = deltaBases.getChanges(segmentID, base, receiver.getChangedAtNS(), bounds);
+        if (numChanged < 0)
+        {
+            numChanged = PixelCodec.findChanges(pixels, base, width, format, bounds);
+        }
+        if (numChanged == 0)
+        {
+            // the client asked for pixels it should hold, it does not
+            deltaBases.countResync();
+            return null;
+        }
+        if (numChanged > pixels.length >> DELTA_MAX_CHANGED_SHIFT)
+        {
+            return null;
+        }
+        
+        byte[] delta = PixelCodec.encodeDelta(pixels, base, width, format);
+        if (bounds.width * bounds.height < pixels.length)
+        {
+            // a caret or a typed character
+            byte[] patch = PixelCodec.encodePatch(pixels, base, width, bounds, format);
+            if (patch.length < delta.length)
+            {
+                delta = patch;
+            }
+        }
+        // text that moved within the segment is often smaller as a palette
+        Object full = takeSerialized(receiver);
+        if (full == null)
+        {
+            full = EncodedTileCache.serialize(pixels, width, receiver.getPalette(), format, isTileFiltering);
+        }
+        if (full instanceof byte[] && ((byte[]) full).length <= delta.length)
+        {
+            keepSerialized(receiver, full);
+            return null;
+        }
+        deltaBases.put(segmentID, format.quantize(pixels));
+        deltaBases.countDelta(delta);
+        
+        return delta;
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * Keep the full encoding of a segment (see getJCE) that was built to
+     * compare another encoding against, for getJCE to send in place of
+     * encoding it again unless the segment changes first
+     */
+    private void keepSerialized(GraphicsSegment receiver, Object serialized)
+    {
+        keptSerializedSegment = receiver;
+        keptSerialized = serialized;
+        keptSerializedAtNS = receiver.getChangedAtNS();
+    }
+    
+    /**
+     * Must be called from within GraphicsSegment.synchronously(...)
+     *
+     * @return the encoding kept by keepSerialized(...) for the segment as it is, null if there is none
+     */
+    private Object takeSerialized(GraphicsSegment receiver)
+    {
+        Object rval = (receiver == keptSerializedSegment && receiver.getChangedAtNS() == keptSerializedAtNS) ? keptSerialized : null;
+        keptSerializedSegment = null;
+        keptSerialized = null;
+        
+        return rval;
+    }
+    
+    /**
+     * @param graphicsSegment a segment, region or block of segments
+     * @param isKept whether to keep the full encoding for getJCE if it is
+     *               the smaller one (see keepSerialized)
+     * @return the pixels DOWNSAMPLED by shift, or the full encoding of them
+     *         (see getJCE) if that is no larger (as text of few colors
+     *         often is), null if they are solid or the client shows the
+     *         screen at its own size
+     */
+    public Object getDownsampled(GraphicsSegment graphicsSegment, final boolean isKept)
+    {
+        if (shift <= 0)
+        {
+            return null;
+        }
+        
+        return graphicsSegment.synchronously(new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            {
+                if (solidColorPtr[0] != null)
+                {
+                    return null;
+                }
+                int width = receiver.getWidth();
+                byte[] downsampled = EncodedTileCache.serializeDownsampled(pixels, width, shift, format);
+                Object full = EncodedTileCache.serialize(pixels, width, receiver.getPalette(), format, isTileFiltering);
+                if (!(full instanceof byte[]))
+                {
+                    // pixels as they are
+                    return downsampled;
+                }
+                if (((byte[]) full).length > downsampled.length)
+                {
+                    return downsampled;
+                }
+                if (isKept)
+                {
+                    keepSerialized(receiver, full);
+                }
+                
+                return full;
+            }
+            
+        });
+    }
+    
+    /**
+     * @return true iff. encoded (see encode) is DOWNSAMPLED
+     */
+    public static boolean isDownsampled(Object encoded)
+    {
+        return getAlgorithm(encoded) == SEGMENT_ALGORITHM.DOWNSAMPLED;
+    }
+    
+    /**
+     * @return true iff. encoded (see encode) is JPEG
+     */
+    public static boolean isLossy(Object encoded)
+    {
+        return getAlgorithm(encoded) == SEGMENT_ALGORITHM.JPEG;
+    }
+    
+    private static SEGMENT_ALGORITHM getAlgorithm(Object encoded)
+    {
+        return (encoded instanceof byte[]) ? PixelCodec.getAlgorithm((byte[]) encoded) : null;
+    }
+}
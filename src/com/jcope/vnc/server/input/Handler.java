@@ -20,6 +20,8 @@ import com.jcope.vnc.server.input.handle.SelectScreen;
 import com.jcope.vnc.server.input.handle.SendChatMsg;
 import com.jcope.vnc.server.input.handle.SetClipboard;
 import com.jcope.vnc.server.input.handle.SetScreenMonitorPaused;
+import com.jcope.vnc.server.input.handle.GetDiagnostics;
+import com.jcope.vnc.server.input.handle.SetScaleFactor;
 import com.jcope.vnc.shared.StateMachine.CLIENT_EVENT;
 import com.jcope.vnc.shared.input.Handle;
 
@@ -44,7 +46,9 @@ public class Handler extends com.jcope.vnc.shared.input.Handler<ClientHandler, C
         SelectScreen.class,
         SendChatMsg.class,
         SetClipboard.class,
-        SetScreenMonitorPaused.class
+        SetScreenMonitorPaused.class,
+        GetDiagnostics.class,
+        SetScaleFactor.class
     };
     
     static
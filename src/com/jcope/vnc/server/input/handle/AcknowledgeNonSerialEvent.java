@@ -44,9 +44,13 @@ public class AcknowledgeNonSerialEvent extends Handle
             case SET_CLIPBOARD:
             case SCREEN_SEGMENT_CHANGED:
             case END_OF_FRAME:
+            case DIAGNOSTICS:
                 assert_(args.length == 1);
                 break;
             case SCREEN_SEGMENT_UPDATE:
+            case SCREEN_RECT_UPDATE:
+            case SCREEN_RECT_COPY:
+            case SCREEN_SEGMENT_CACHED:
                 assert_(Boolean.FALSE);
                 // there is already a throttle for this
                 break;
@@ -2,14 +2,20 @@ package com.jcope.vnc.server.input.handle;
 
 import static com.jcope.debug.Debug.assert_;
 
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
 import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.GraphicsSegment;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.ClientHandler;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 import com.jcope.vnc.server.input.Handle;
 
 public class GetScreenSegment extends Handle
 {
+    private static final boolean SEND_RECTANGLES = (Boolean) SERVER_PROPERTIES.MONITOR_SEND_RECTANGLES.getValue();
     
     @Override
     public void handle(ClientHandler client, Object[] args)
@@ -31,10 +37,34 @@ public class GetScreenSegment extends Handle
         client.subscribe(flbs);
         
         try {
-            for (int segmentID = flbs.nextSetBit(0); segmentID >= 0; segmentID = flbs.nextSetBit(segmentID + 1))
+            flbs = sendVideoRegions(client, flbs);
+            if (flbs == null)
             {
-                GraphicsSegment graphicsSegment = client.getSegment(segmentID);
-                client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, segmentID, graphicsSegment);
+                return;
+            }
+            flbs = sendCachedSegments(client, flbs);
+            if (flbs == null)
+            {
+                return;
+            }
+            boolean isPreviewed = client.isPreviewWorthy(flbs) && sendPreview(client, flbs);
+            if (SEND_RECTANGLES)
+            {
+                sendRectangles(client, flbs, isPreviewed);
+                return;
+            }
+            // blocks of segments that changed as a whole are sent as one region
+            ArrayList<Integer> regionIDs = new ArrayList<Integer>();
+            client.collectRegions(flbs, regionIDs);
+            if (isPreviewed)
+            {
+                // the client sees something everywhere already, so whatever is under the cursor comes first
+                client.sortRegionsNearCursor(regionIDs);
+            }
+            for (Integer regionID : regionIDs)
+            {
+                GraphicsSegment graphicsSegment = client.getSegment(regionID);
+                client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, regionID, graphicsSegment);
             }
         }
         finally {
@@ -42,4 +72,137 @@ public class GetScreenSegment extends Handle
         }
     }
     
+    /**
+     * Video regions (see ClientHandler.getVideoRegions) that hold changed
+     * segments are sent as a single lossy SCREEN_RECT_UPDATE each, or not at
+     * all while the client is sent VIDEO_MAX_FRAME_RATE frames a second
+     * already, in which case the segments are sent once they settle
+     * 
+     * @return the segments left to send, null if none
+     */
+    private FixedLengthBitSet sendVideoRegions(ClientHandler client, FixedLengthBitSet flbs)
+    {
+        FixedLengthBitSet videoSegments = new FixedLengthBitSet(flbs.length);
+        List<Rectangle> regions = client.getVideoRegions(flbs, videoSegments);
+        if (regions.isEmpty())
+        {
+            return flbs;
+        }
+        
+        FixedLengthBitSet rval = flbs.clone();
+        rval.andNot(videoSegments);
+        
+        if (client.nextVideoFrame())
+        {
+            for (Rectangle region : regions)
+            {
+                int segmentID = client.getSegmentID(region.x, region.y);
+                GraphicsSegment graphicsSegment = client.getVideoBlock(region);
+                if (graphicsSegment == null)
+                {
+                    // screen went away
+                    return null;
+                }
+                client.sendEvent(SERVER_EVENT.SCREEN_RECT_UPDATE, segmentID, region.width, region.height, graphicsSegment);
+            }
+        }
+        else
+        {
+            FixedLengthBitSet skipped = flbs.clone();
+            skipped.andNot(rval);
+            client.skipVideoFrame(skipped);
+        }
+        
+        return rval.isEmpty() ? null : rval;
+    }
+    
+    /**
+     * Segments whose pixels the client has in its TileCache, or that changed
+     * little since the client was last sent them, are sent on their own so
+     * that they go out as SCREEN_SEGMENT_CACHED or as a delta instead of
+     * within a region or rectangle
+     * 
+     * @return the segments left to send, null if none
+     */
+    private FixedLengthBitSet sendCachedSegments(ClientHandler client, FixedLengthBitSet flbs)
+    {
+        if (!client.hasTileCache() && !client.hasDeltaBases())
+        {
+            return flbs;
+        }
+        
+        FixedLengthBitSet rval = null;
+        for (int segmentID=flbs.nextSetBit(0); segmentID>=0; segmentID=flbs.nextSetBit(segmentID+1))
+        {
+            GraphicsSegment graphicsSegment = client.getSegment(segmentID);
+            if (graphicsSegment == null || !(client.isTileCached(graphicsSegment) || client.isDeltaWorthy(segmentID, graphicsSegment)))
+            {
+                continue;
+            }
+            if (rval == null)
+            {
+                rval = flbs.clone();
+            }
+            rval.set(segmentID, Boolean.FALSE);
+            client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, segmentID, graphicsSegment);
+        }
+        
+        return (rval == null) ? flbs : (rval.isEmpty() ? null : rval);
+    }
+    
+    /**
+     * Send a DOWNSAMPLED preview (see ClientHandler.getPreview) of the
+     * segments ahead of them, one per rectangle of segments
+     * 
+     * @return false if the screen went away
+     */
+    private boolean sendPreview(ClientHandler client, FixedLengthBitSet flbs)
+    {
+        ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+        client.collectRectangles(flbs, rects);
+        for (Rectangle rect : rects)
+        {
+            int segmentID = client.getSegmentID(rect.x, rect.y);
+            byte[] preview = client.getPreview(rect);
+            if (segmentID < 0 || preview == null)
+            {
+                // screen went away
+                return Boolean.FALSE;
+            }
+            client.sendEvent(SERVER_EVENT.SCREEN_RECT_UPDATE, segmentID, rect.width, rect.height, preview);
+        }
+        
+        return Boolean.TRUE;
+    }
+    
+    private void sendRectangles(ClientHandler client, FixedLengthBitSet flbs, boolean isPreviewed)
+    {
+        ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+        client.collectRectangles(flbs, rects);
+        if (isPreviewed)
+        {
+            client.sortRectanglesNearCursor(rects);
+        }
+        for (Rectangle rect : rects)
+        {
+            int segmentID = client.getSegmentID(rect.x, rect.y);
+            if (segmentID < 0)
+            {
+                // screen went away
+                break;
+            }
+            if (rect.width == 1 && rect.height == 1)
+            {
+                // a lone segment keeps its cached compressed update
+                GraphicsSegment graphicsSegment = client.getSegment(segmentID);
+                client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_UPDATE, segmentID, graphicsSegment);
+            }
+            else
+            {
+                GraphicsSegment graphicsSegment = client.getBlock(rect);
+                client.sendEvent(SERVER_EVENT.SCREEN_RECT_UPDATE, segmentID, rect.width, rect.height, graphicsSegment);
+            }
+        }
+    }
+    
 }
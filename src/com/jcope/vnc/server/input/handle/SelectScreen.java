@@ -2,33 +2,45 @@ package com.jcope.vnc.server.input.handle;
 
 import static com.jcope.debug.Debug.assert_;
 
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.ClientHandler;
 import com.jcope.vnc.server.input.Handle;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
+import com.jcope.vnc.shared.EncodingOptions;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
 public class SelectScreen extends Handle
 {
+    private static final int MAX_TILE_CACHE_SIZE = (Integer) SERVER_PROPERTIES.MAX_TILE_CACHE_SIZE.getValue();
     
     @Override
     public void handle(ClientHandler client, Object[] args)
     {
         assert_(args != null);
-        assert_(args.length == 4);
+        assert_(args.length == 4 || args.length == 5);
         assert_(args[0] instanceof Integer);
         assert_(args[1] instanceof ACCESS_MODE);
         assert_(args[2] instanceof Long);
         assert_(args[3] == null || args[3] instanceof String);
+        assert_(args.length < 5 || args[4] == null || args[4] instanceof EncodingOptions);
         
         int deviceID = (Integer) args[0];
         ACCESS_MODE accessMode = (ACCESS_MODE) args[1];
         Long scanPeriodMS = (Long) args[2];
         String passwordHash = (String) args[3];
+        // older clients take no encodings beyond pixels as they are
+        EncodingOptions options = (args.length >= 5 && args[4] != null) ? (EncodingOptions) args[4] : EncodingOptions.NONE;
         
         assert_(accessMode != null);
         assert_(accessMode != ACCESS_MODE.ALL);
         assert_(scanPeriodMS > 0);
         
+        client.setTileCacheSize(Math.max(0, Math.min(options.tileCacheSize, MAX_TILE_CACHE_SIZE)));
+        client.setPixelFormat(options.getPixelFormat());
+        client.setJpegQuality(Math.max(0, Math.min(options.jpegQuality, 100)));
+        client.setDeltaEncoding(options.isDeltaEncoding);
+        client.setTileFiltering(options.isTileFiltering);
+        client.setPreviewScale(options.previewScale);
         boolean clientBound = client.selectGraphicsDevice(deviceID, accessMode, scanPeriodMS, passwordHash);
         
         client.sendEvent(SERVER_EVENT.AUTHORIZATION_UPDATE, clientBound);
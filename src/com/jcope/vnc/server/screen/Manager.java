@@ -6,17 +6,25 @@ import static com.jcope.vnc.shared.ScreenSelector.getScreenDevices;
 
 import java.awt.AWTException;
 import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.Semaphore;
 
 import com.jcope.debug.LLog;
+import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.GraphicsSegment;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.ClientHandler;
 import com.jcope.vnc.server.DirectRobot;
 import com.jcope.vnc.server.JitCompressedEvent;
 import com.jcope.vnc.server.VncServer;
+import com.jcope.vnc.server.screen.source.FrameSource;
+import com.jcope.vnc.server.screen.source.FrameSourceFactory;
+import com.jcope.vnc.server.screen.x11.X11Connection;
+import com.jcope.vnc.server.screen.x11.X11DamageTracker;
 import com.jcope.vnc.shared.AccessModes.ACCESS_MODE;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
@@ -175,7 +183,14 @@ public class Manager extends Thread
 		{
 			LLog.e(e);
 		}
-		Monitor monitor = new Monitor(SEGMENT_WIDTH, SEGMENT_HEIGHT, dirbot, registeredClients);
+		FrameSource frameSource = FrameSourceFactory.create(dirbot);
+		Monitor monitor = new Monitor(SEGMENT_WIDTH, SEGMENT_HEIGHT, dirbot, frameSource, registeredClients);
+		if ((Boolean) SERVER_PROPERTIES.SERVER_X11_DAMAGE.getValue())
+		{
+			String display = (String) SERVER_PROPERTIES.SERVER_X11_DISPLAY.getValue();
+			int screenNum = X11Connection.getScreenNum(graphicsDevice.getIDstring());
+			monitor.setDamageTracker(X11DamageTracker.create(display, screenNum));
+		}
 		for (ClientHandler client : registeredClients)
 		{
 			client.bindMonitor(monitor);
@@ -429,6 +444,50 @@ public class Manager extends Thread
 	    return monitor.getSegment(segmentID);
 	}
 	
+	public void collectRegions(DirectRobot dirbot, FixedLengthBitSet changedSegments, List<Integer> dst)
+	{
+	    Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+	    if (monitor == null)
+	    {
+	        return;
+	    }
+	    
+	    monitor.collectRegions(changedSegments, dst);
+	}
+	
+	public void collectRectangles(DirectRobot dirbot, FixedLengthBitSet changedSegments, List<Rectangle> dst)
+	{
+	    Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+	    if (monitor == null)
+	    {
+	        return;
+	    }
+	    
+	    monitor.collectRectangles(changedSegments, dst);
+	}
+	
+	public int getSegmentID(DirectRobot dirbot, int x, int y)
+	{
+	    Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+	    if (monitor == null)
+	    {
+	        return -1;
+	    }
+	    
+	    return monitor.getSegmentID(x, y);
+	}
+	
+	public GraphicsSegment getBlock(DirectRobot dirbot, Rectangle segmentRect)
+	{
+	    Monitor monitor = monitorForGraphicsDevice.get(dirbot.device);
+	    if (monitor == null)
+	    {
+	        return null;
+	    }
+	    
+	    return monitor.getBlock(segmentRect.x, segmentRect.y, segmentRect.width, segmentRect.height);
+	}
+	
 	public void getOrigin(DirectRobot dirbot, int[] pos)
 	{
 	    assert_(pos != null);
@@ -4,19 +4,29 @@ import static com.jcope.debug.Debug.assert_;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 
 import com.jcope.debug.LLog;
 import com.jcope.util.FixedLengthBitSet;
 import com.jcope.util.GraphicsSegment;
+import com.jcope.util.PixelCodec;
+import com.jcope.util.PixelKernels;
 import com.jcope.util.SegmentationInfo;
 import com.jcope.vnc.Server.SERVER_PROPERTIES;
 import com.jcope.vnc.server.ClientHandler;
+import com.jcope.vnc.server.Diagnostics;
 import com.jcope.vnc.server.DirectRobot;
 import com.jcope.vnc.server.StateMachine;
+import com.jcope.vnc.server.screen.source.FrameSource;
+import com.jcope.vnc.server.screen.x11.X11DamageTracker;
 import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
 
 /**
@@ -41,6 +51,11 @@ import com.jcope.vnc.shared.StateMachine.SERVER_EVENT;
  * 
  * Let each segment be assigned an ID from left to right, top down where the first tile is ID 0
  * Let segment ID -1 indicate the collection of segments as a whole (The entire screen)
+ * 
+ * Pixels are pulled from a FrameSource (the live screen, synthetic or
+ * recorded frames) and segments are views of the frame published by the
+ * last scan. Each scan picks the segments to compare, compares them in
+ * place and only copies what changed (see scanNext()).
  *
  */
 
@@ -57,11 +72,33 @@ public class Monitor extends Thread
 	public static final long NO_LISTENER_MS = 5000; // dummy value to allow things to settle into nop state
 	private static final boolean OBEY_SPEED_LIMITS = (Boolean) SERVER_PROPERTIES.OBEY_SPEED_LIMITS.getValue();
     private static final long MIN_REFRESH_MS = (Long) SERVER_PROPERTIES.MIN_MONITOR_SCANNING_PERIOD.getValue();
+    private static final long MAX_IDLE_REFRESH_MS = (Long) SERVER_PROPERTIES.MONITOR_MAX_IDLE_PERIOD.getValue();
+    private static final int FULL_SCAN_INTERVAL = (Integer) SERVER_PROPERTIES.MONITOR_FULL_SCAN_INTERVAL.getValue();
+    private static final int SCAN_THREADS = (Integer) SERVER_PROPERTIES.MONITOR_SCAN_THREADS.getValue();
+    private static final int COLD_SCAN_INTERVAL = (Integer) SERVER_PROPERTIES.MONITOR_COLD_SCAN_INTERVAL.getValue();
+    private static final int PROBE_STRIDE = (Integer) SERVER_PROPERTIES.MONITOR_PROBE_STRIDE.getValue();
+    private static final int PROBE_VERIFY_INTERVAL = (Integer) SERVER_PROPERTIES.MONITOR_PROBE_VERIFY_INTERVAL.getValue();
+    private static final int MAX_REGION_LEVEL = (Integer) SERVER_PROPERTIES.MONITOR_MAX_REGION_LEVEL.getValue();
+    private static final boolean DETECT_MOTION = (Boolean) SERVER_PROPERTIES.MONITOR_DETECT_MOTION.getValue();
+    private static final int VIDEO_MAX_FRAME_RATE = (Integer) SERVER_PROPERTIES.VIDEO_MAX_FRAME_RATE.getValue();
+    private static final List<ScreenMove> NO_MOVES = Collections.unmodifiableList(new ArrayList<ScreenMove>(0));
+    private static final List<Rectangle> NO_VIDEO_REGIONS = Collections.unmodifiableList(new ArrayList<Rectangle>(0));
+    // about 7 changes in a row make a segment video, about 6 scans without one let it go again
+    public static final float VIDEO_ENTER_HEAT = 0.6f;
+    public static final float VIDEO_EXIT_HEAT = 0.25f;
+    // smaller rectangles of changing segments are as cheap to send as tiles
+    public static final int VIDEO_MIN_SEGMENTS = 4;
     int screenX, screenY;
     SegmentationInfo segInfo = new SegmentationInfo();
     private Integer screenWidth = null, screenHeight;
     private ArrayList<ClientHandler> clients;
     private DirectRobot dirbot;
+    private FrameSource frameSource;
+    private X11DamageTracker damageTracker = null;
+    private FixedLengthBitSet damagedSegments;
+    private int scansUntilFullScan = 0;
+    private volatile SegmentHeatmap heatmap;
+    private int coldScanInterval = COLD_SCAN_INTERVAL;
     private GraphicsSegment[] segments;
     private FixedLengthBitSet changedSegments;
     private volatile boolean stopped = Boolean.FALSE;
@@ -72,15 +109,202 @@ public class Monitor extends Thread
     private Semaphore limitLock = new Semaphore(1, true);
     private TreeSet<Long> limitTreeSet = new TreeSet<Long>();
     private volatile long refreshMS;
+    private final ScanScheduler scheduler = new ScanScheduler(MAX_IDLE_REFRESH_MS);
     
     private Semaphore unpausedClientSema = new Semaphore(0, true);
     
-    public Monitor(int segmentWidth, int segmentHeight, DirectRobot dirbot, ArrayList<ClientHandler> clients)
+    // pixels of the last scan, segments are views of this frame
+    private int[] publishedFrame;
+    // destination of partial (masked) scans, same layout as publishedFrame
+    private int[] captureFrame;
+    private int[] scanFrame;
+    // first row of each segment that differs between scanFrame and publishedFrame, -1 if none
+    private int[] firstChangedRows;
+    private volatile long scanCount = 0;
+    
+    private PixelKernels kernels = PixelKernels.getDefault();
+    private int numScanThreads = (SCAN_THREADS > 0) ? SCAN_THREADS : Runtime.getRuntime().availableProcessors();
+    private ScanSlice[] scanSlices;
+    private ScanWorker[] scanWorkers = null;
+    private FixedLengthBitSet scanMask;
+    private boolean scanCaptures;
+    private int probeStride = PROBE_STRIDE;
+    private int probeVerifyInterval = PROBE_VERIFY_INTERVAL;
+    private int probePhase = 0;
+    private int scansUntilVerify = 0;
+    private boolean scanProbing = Boolean.FALSE;
+    private boolean scanVerifying = Boolean.FALSE;
+    private final Semaphore scanDoneSema = new Semaphore(0, true);
+    private boolean detectMotion = DETECT_MOTION;
+    private MotionDetector motionDetector = null;
+    private FixedLengthBitSet explainedSegments;
+    private List<ScreenMove> moves = NO_MOVES;
+    private boolean detectVideo = VIDEO_MAX_FRAME_RATE > 0;
+    private FixedLengthBitSet videoSegments;
+    private volatile List<Rectangle> videoRegions = NO_VIDEO_REGIONS;
+    
+    /**
+     * A band of whole segment rows that is scanned by one thread.
+     * Each slice records its changes in a bit set of its own.
+     */
+    private class ScanSlice implements GraphicsSegment.Synchronously
+    {
+        final int firstSegmentID, sentinelSegmentID;
+        final int firstY, sentinelY;
+        final FixedLengthBitSet changed;
+        final int[] segmentDim = new int[2];
+        boolean hasChanged = Boolean.FALSE;
+        int refreshFromRow;
+        long numVerifiedChanges = 0;
+        long numProbeMisses = 0;
+        
+        ScanSlice(int firstSegmentRow, int sentinelSegmentRow)
+        {
+            firstSegmentID = firstSegmentRow * segInfo.numHorizontalSegments;
+            sentinelSegmentID = sentinelSegmentRow * segInfo.numHorizontalSegments;
+            firstY = firstSegmentRow * segInfo.segmentHeight;
+            sentinelY = Math.min(sentinelSegmentRow * segInfo.segmentHeight, screenHeight);
+            changed = new FixedLengthBitSet(segInfo.numSegments);
+        }
+        
+        @Override
+        public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+        {
+            int[] palette = copyIntRegion(pixels, scanFrame, receiver.getOffset(), receiver.getWidth(), receiver.getHeight(), receiver.getScanSize(), refreshFromRow, solidColorPtr);
+            receiver.setPalette(palette);
+            receiver.setPhotographic(palette == null && solidColorPtr[0] == null && PixelKernels.isPhotographic(pixels, receiver.getOffset(), receiver.getWidth(), receiver.getHeight(), receiver.getScanSize()));
+            receiver.markPixelsStale();
+            receiver.releaseJitCompressedEvent();
+            return null;
+        }
+        
+        void scan(FixedLengthBitSet mask)
+        {
+            GraphicsSegment graphicsSegment;
+            int x, y;
+            
+            boolean inPlace = (mask == null || !scanCaptures);
+            
+            if (inPlace)
+            {
+                Arrays.fill(firstChangedRows, firstSegmentID, sentinelSegmentID, -1);
+                findChangedRows(firstY, sentinelY, mask);
+            }
+            
+            for (int i=(mask == null) ? firstSegmentID : mask.nextSetBit(firstSegmentID); i>=0 && i<sentinelSegmentID; i=(mask == null) ? i+1 : mask.nextSetBit(i+1))
+            {
+                graphicsSegment = segments[i];
+                if (inPlace)
+                {
+                    refreshFromRow = firstChangedRows[i];
+                    if (refreshFromRow > 0 && scanProbing)
+                    {
+                        // the probe only compared some of the rows, compare all of them
+                        refreshFromRow = kernels.findChangedRow(publishedFrame, scanFrame, graphicsSegment.getOffset(), graphicsSegment.getWidth(), graphicsSegment.getHeight(), screenWidth);
+                    }
+                }
+                else
+                {
+                    getSegmentPos(i, segmentDim);
+                    x = segmentDim[0];
+                    y = segmentDim[1];
+                    getSegmentDim(i, segmentDim);
+                    frameSource.getRGBPixels(x, y, segmentDim[0], segmentDim[1], captureFrame, graphicsSegment.getOffset(), screenWidth);
+                    refreshFromRow = kernels.findChangedRow(publishedFrame, captureFrame, graphicsSegment.getOffset(), segmentDim[0], segmentDim[1], screenWidth);
+                }
+                if (refreshFromRow < 0)
+                {
+                    continue;
+                }
+                if (scanVerifying)
+                {
+                    numVerifiedChanges++;
+                    if (!probeHits(graphicsSegment))
+                    {
+                        numProbeMisses++;
+                    }
+                }
+                graphicsSegment.synchronouslyInPlace(this);
+                hasChanged = Boolean.TRUE;
+                changed.set(i, Boolean.TRUE);
+            }
+        }
+    }
+    
+    /**
+     * Scans one slice every time the monitor scans, for as long as the monitor runs
+     */
+    private class ScanWorker extends Thread
+    {
+        private final ScanSlice slice;
+        private final Semaphore startSema = new Semaphore(0, true);
+        private volatile boolean workerStopped = Boolean.FALSE;
+        
+        ScanWorker(ScanSlice slice, int idx)
+        {
+            super(String.format("%s (scan worker %d)", Monitor.this.getName(), idx));
+            this.slice = slice;
+            setDaemon(true);
+        }
+        
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    startSema.acquire();
+                }
+                catch (InterruptedException e)
+                {
+                    LLog.e(e);
+                }
+                if (workerStopped)
+                {
+                    break;
+                }
+                try
+                {
+                    slice.scan(scanMask);
+                }
+                catch (Throwable t)
+                {
+                    LLog.e(t, false);
+                }
+                finally {
+                    scanDoneSema.release();
+                }
+            }
+        }
+        
+        void startScan()
+        {
+            startSema.release();
+        }
+        
+        void kill()
+        {
+            workerStopped = Boolean.TRUE;
+            startSema.release();
+        }
+    }
+    
+    /**
+     * @param segmentWidth
+     * @param segmentHeight
+     * @param dirbot the robot bound to the screen device, may be null when there is
+     *               no real device behind the frame source (no cursor tracking)
+     * @param frameSource
+     * @param clients
+     */
+    public Monitor(int segmentWidth, int segmentHeight, DirectRobot dirbot, FrameSource frameSource, ArrayList<ClientHandler> clients)
     {
-        super(String.format("Monitor: %s", dirbot.toString()));
+        super(String.format("Monitor: %s", frameSource.toString()));
         segInfo.segmentWidth = segmentWidth;
         segInfo.segmentHeight = segmentHeight;
+        segInfo.setMaxRegionLevel(Math.max(0, Math.min(MAX_REGION_LEVEL, SegmentationInfo.MAX_REGION_LEVEL)));
         this.dirbot = dirbot;
+        this.frameSource = frameSource;
         this.clients = clients;
         syncBounds();
     }
@@ -99,9 +323,26 @@ public class Monitor extends Thread
             segInfo.loadConfig(screenWidth, screenHeight, segInfo.segmentWidth, segInfo.segmentHeight);
             segments = new GraphicsSegment[segInfo.numSegments];
             changedSegments = new FixedLengthBitSet(segInfo.numSegments);
+            damagedSegments = new FixedLengthBitSet(segInfo.numSegments);
+            scansUntilFullScan = 0;
+            heatmap = new SegmentHeatmap(segInfo.numSegments, segInfo.numHorizontalSegments, coldScanInterval, FULL_SCAN_INTERVAL);
+            publishedFrame = new int[screenWidth * screenHeight];
+            captureFrame = null;
+            firstChangedRows = new int[segInfo.numSegments];
+            explainedSegments = new FixedLengthBitSet(segInfo.numSegments);
+            motionDetector = detectMotion ? new MotionDetector(segInfo, screenWidth, screenHeight) : null;
+            moves = NO_MOVES;
+            videoSegments = new FixedLengthBitSet(segInfo.numSegments);
+            videoRegions = NO_VIDEO_REGIONS;
+            stopScanWorkers();
+            createScanSlices();
+            int[] pos = new int[2];
+            int[] dim = new int[2];
             for (int i=0; i<segments.length; i++)
             {
-                segments[i] = new GraphicsSegment(getSegmentPixelCount(i));
+                getSegmentPos(i, pos);
+                getSegmentDim(i, dim);
+                segments[i] = new GraphicsSegment(publishedFrame, pos[1] * screenWidth + pos[0], dim[0], dim[1], screenWidth);
             }
             if (lastWidth != null)
             {
@@ -111,8 +352,16 @@ public class Monitor extends Thread
         }
     }
     
-    private void syncMouse()
+    /**
+     * @return true iff. the mouse moved
+     */
+    private boolean syncMouse()
     {
+        boolean rval = Boolean.FALSE;
+        if (dirbot == null)
+        {
+            return rval;
+        }
         Boolean mouseWasOnMyScreen = mouseOnMyScreen;
         int lastX = mouseLocation.x, lastY = mouseLocation.y;
         mouseOnMyScreen = (DirectRobot.getMouseInfo(mouseLocation) == dirbot.device);
@@ -120,13 +369,484 @@ public class Monitor extends Thread
         {
             if (mouseWasOnMyScreen == null || lastX != mouseLocation.x || lastY != mouseLocation.y)
             {
+                rval = Boolean.TRUE;
                 StateMachine.handleServerEvent(clients, SERVER_EVENT.CURSOR_MOVE, Integer.valueOf(mouseLocation.x), Integer.valueOf(mouseLocation.y));
             }
         }
         else if (mouseWasOnMyScreen != null && mouseWasOnMyScreen)
         {
+            rval = Boolean.TRUE;
             StateMachine.handleServerEvent(clients, SERVER_EVENT.CURSOR_GONE);
         }
+        return rval;
+    }
+    
+    /**
+     * Must be called before the monitor is started
+     * 
+     * Only the segments the tracker reports as drawn to are then captured
+     * and compared, with a full scan every MONITOR_FULL_SCAN_INTERVAL scans
+     * as a safety net.
+     * 
+     * @param damageTracker source of the areas drawn to between scans, null to always scan everything
+     */
+    public void setDamageTracker(X11DamageTracker damageTracker)
+    {
+        this.damageTracker = damageTracker;
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     * 
+     * Each thread owns a band of segment rows and its own set of changed segments.
+     * 
+     * @param numScanThreads number of threads to split every scan across, 0 for one per available processor
+     */
+    public void setScanThreads(int numScanThreads)
+    {
+        this.numScanThreads = (numScanThreads > 0) ? numScanThreads : Runtime.getRuntime().availableProcessors();
+        stopScanWorkers();
+        createScanSlices();
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     */
+    public void setKernels(PixelKernels kernels)
+    {
+        this.kernels = kernels;
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     * 
+     * Without a damage tracker the SegmentHeatmap picks the segments to
+     * scan: those that changed recently on every scan, the rest on every
+     * coldScanInterval-th scan and everything on every
+     * MONITOR_FULL_SCAN_INTERVAL-th scan.
+     * 
+     * @param coldScanInterval scan segments that rarely change every this many scans, 1 to scan every segment every time
+     */
+    public void setColdScanInterval(int coldScanInterval)
+    {
+        this.coldScanInterval = coldScanInterval;
+        heatmap = new SegmentHeatmap(segInfo.numSegments, segInfo.numHorizontalSegments, coldScanInterval, FULL_SCAN_INTERVAL);
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     * 
+     * A probing scan starts at a different scanline each time and compares
+     * a segment in full once one of its probed scanlines differs.
+     * 
+     * @param probeStride compare every probeStride-th scanline per scan, 1 or less to compare every scanline
+     * @param probeVerifyInterval compare every scanline every this many scans
+     */
+    public void setProbe(int probeStride, int probeVerifyInterval)
+    {
+        this.probeStride = probeStride;
+        this.probeVerifyInterval = probeVerifyInterval;
+        scansUntilVerify = 0;
+    }
+    
+    /**
+     * @return the number of changed segments seen by verification scans
+     */
+    public long getNumVerifiedChanges()
+    {
+        long rval = 0;
+        for (ScanSlice slice : scanSlices)
+        {
+            rval += slice.numVerifiedChanges;
+        }
+        return rval;
+    }
+    
+    /**
+     * @return the number of changed segments seen by verification
+     *         scans that the probe would not have detected
+     */
+    public long getNumProbeMisses()
+    {
+        long rval = 0;
+        for (ScanSlice slice : scanSlices)
+        {
+            rval += slice.numProbeMisses;
+        }
+        return rval;
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     * 
+     * Rectangles of the previous frame that reappear scrolled or dragged are
+     * sent to clients as copies (SCREEN_RECT_COPY) and only the changed
+     * segments the copies do not explain are sent (see withoutMoves(...)).
+     * 
+     * @param detectMotion true to look for scrolled or dragged rectangles after every scan
+     */
+    public void setMotionDetection(boolean detectMotion)
+    {
+        this.detectMotion = detectMotion;
+        motionDetector = (detectMotion && screenWidth != null) ? new MotionDetector(segInfo, screenWidth, screenHeight) : null;
+        moves = NO_MOVES;
+    }
+    
+    /**
+     * @return the motion detector or null if motion detection is off
+     */
+    public MotionDetector getMotionDetector()
+    {
+        return motionDetector;
+    }
+    
+    /**
+     * Must be called before the monitor is started (or scanned)
+     * 
+     * Rectangles of photographic segments that keep changing (a playing
+     * video) are published as video regions (see getVideoRegions()), which
+     * clients that take JPEG are sent as one lossy SCREEN_RECT_UPDATE per
+     * frame, at most VIDEO_MAX_FRAME_RATE frames a second.
+     * 
+     * @param detectVideo true to look for video regions after every scan
+     */
+    public void setVideoDetection(boolean detectVideo)
+    {
+        this.detectVideo = detectVideo;
+        videoSegments.fill(Boolean.FALSE);
+        videoRegions = NO_VIDEO_REGIONS;
+    }
+    
+    public SegmentHeatmap getHeatmap()
+    {
+        return heatmap;
+    }
+    
+    public int getScanThreads()
+    {
+        return scanSlices.length;
+    }
+    
+    private void createScanSlices()
+    {
+        int numSlices = Math.max(1, Math.min(numScanThreads, segInfo.numVerticalSegments));
+        scanSlices = new ScanSlice[numSlices];
+        for (int i=0; i<numSlices; i++)
+        {
+            scanSlices[i] = new ScanSlice((i * segInfo.numVerticalSegments) / numSlices, ((i + 1) * segInfo.numVerticalSegments) / numSlices);
+        }
+    }
+    
+    private void stopScanWorkers()
+    {
+        ScanWorker[] workers = scanWorkers;
+        if (workers == null)
+        {
+            return;
+        }
+        scanWorkers = null;
+        for (ScanWorker worker : workers)
+        {
+            worker.kill();
+        }
+    }
+    
+    /**
+     * @return the segments to scan next or null for all of them
+     */
+    private FixedLengthBitSet nextScanMask()
+    {
+        if (damageTracker == null)
+        {
+            return heatmap.nextMask();
+        }
+        
+        damagedSegments.fill(Boolean.FALSE);
+        try
+        {
+            damageTracker.drain(segInfo, damagedSegments);
+        }
+        catch (IOException e)
+        {
+            LLog.w(String.format("Lost %s, scanning every segment from now on", damageTracker.toString()));
+            LLog.e(e, false);
+            damageTracker.dispose();
+            damageTracker = null;
+            return heatmap.nextMask();
+        }
+        
+        if (scansUntilFullScan <= 0)
+        {
+            scansUntilFullScan = FULL_SCAN_INTERVAL;
+            return null;
+        }
+        scansUntilFullScan--;
+        
+        return damagedSegments;
+    }
+    
+    /**
+     * Pull one frame from the frame source and refresh the segments that are
+     * due: those reported as damaged or else those the heatmap picks.
+     * 
+     * @return the set of segments that changed since the last scan, or null if none did
+     */
+    public FixedLengthBitSet scanNext()
+    {
+        FixedLengthBitSet mask = nextScanMask();
+        // damaged segments are worth capturing one by one, the heatmap only saves comparisons
+        boolean capture = (mask != null && mask == damagedSegments);
+        FixedLengthBitSet rval;
+        
+        if (probeStride > 1 && !capture)
+        {
+            if (scansUntilVerify <= 0)
+            {
+                scansUntilVerify = probeVerifyInterval;
+                mask = null;
+                scanVerifying = Boolean.TRUE;
+            }
+            else
+            {
+                scansUntilVerify--;
+                probePhase = (probePhase + 1) % probeStride;
+                scanProbing = Boolean.TRUE;
+            }
+        }
+        try
+        {
+            rval = scan(mask, capture);
+        }
+        finally {
+            scanProbing = Boolean.FALSE;
+            scanVerifying = Boolean.FALSE;
+        }
+        
+        heatmap.update(mask, rval);
+        if (detectVideo)
+        {
+            updateVideoRegions();
+        }
+        
+        return rval;
+    }
+    
+    /**
+     * Pull one frame from the frame source and refresh every segment with it.
+     * 
+     * @return the set of segments that changed since the last scan, or null if none did
+     */
+    public FixedLengthBitSet scan()
+    {
+        return scan(null);
+    }
+    
+    /**
+     * Pull one frame from the frame source and refresh the given segments with it.
+     * 
+     * @param mask the segments to refresh, null for all of them
+     * @return the set of segments that changed since the last scan, or null if none did
+     */
+    public FixedLengthBitSet scan(FixedLengthBitSet mask)
+    {
+        return scan(mask, mask != null);
+    }
+    
+    /**
+     * Pull one frame from the frame source and refresh the given segments with it.
+     * 
+     * A capturing scan only reads the masked segments into captureFrame, any
+     * other scan compares the masked segments of the frame store of the source
+     * directly. Either way the comparison runs in place against publishedFrame
+     * and only the rows from the first difference onwards are copied over.
+     * 
+     * @param mask the segments to refresh, null for all of them
+     * @param capture true to read the masked segments from the source one by one (ignored without a mask)
+     * @return the set of segments that changed since the last scan, or null if none did
+     */
+    public FixedLengthBitSet scan(FixedLengthBitSet mask, boolean capture)
+    {
+        boolean changed = Boolean.FALSE;
+        FixedLengthBitSet rval = null;
+        int numWorkers = scanSlices.length - 1;
+        
+        frameSource.markRGBCacheDirty();
+        
+        scanCaptures = (mask != null && capture);
+        if (!scanCaptures)
+        {
+            scanFrame = frameSource.getRGBPixels();
+            assert_(scanFrame.length == publishedFrame.length);
+        }
+        else
+        {
+            if (captureFrame == null)
+            {
+                captureFrame = new int[publishedFrame.length];
+            }
+            scanFrame = captureFrame;
+        }
+        
+        // the first slice is scanned by this thread, the rest by the workers
+        if (numWorkers > 0)
+        {
+            if (scanWorkers == null)
+            {
+                scanWorkers = new ScanWorker[numWorkers];
+                for (int i=0; i<numWorkers; i++)
+                {
+                    scanWorkers[i] = new ScanWorker(scanSlices[i+1], i+1);
+                    scanWorkers[i].start();
+                }
+            }
+            scanMask = mask;
+            for (ScanWorker worker : scanWorkers)
+            {
+                worker.startScan();
+            }
+        }
+        try
+        {
+            scanSlices[0].scan(mask);
+        }
+        finally {
+            if (numWorkers > 0)
+            {
+                try
+                {
+                    scanDoneSema.acquire(numWorkers);
+                }
+                catch (InterruptedException e)
+                {
+                    LLog.e(e);
+                }
+                scanMask = null;
+            }
+            scanFrame = null;
+        }
+        
+        for (ScanSlice slice : scanSlices)
+        {
+            if (slice.hasChanged)
+            {
+                changed = Boolean.TRUE;
+                changedSegments.or(slice.changed);
+                slice.changed.fill(Boolean.FALSE);
+                slice.hasChanged = Boolean.FALSE;
+            }
+        }
+        
+        if (changed)
+        {
+            rval = changedSegments.clone();
+            changedSegments.fill(Boolean.FALSE);
+        }
+        
+        moves = NO_MOVES;
+        if (motionDetector != null)
+        {
+            ArrayList<ScreenMove> found = new ArrayList<ScreenMove>();
+            explainedSegments.fill(Boolean.FALSE);
+            motionDetector.detect(publishedFrame, rval, found, explainedSegments);
+            if (found.size() > 0)
+            {
+                moves = found;
+            }
+        }
+        
+        scanCount++;
+        
+        return rval;
+    }
+    
+    /**
+     * Publish the rectangles of segments hot enough to be sent as video
+     * (see VIDEO_ENTER_HEAT and VIDEO_EXIT_HEAT)
+     */
+    private void updateVideoRegions()
+    {
+        SegmentHeatmap l_heatmap = heatmap;
+        FixedLengthBitSet hot = null;
+        
+        for (int segmentID=0; segmentID<segInfo.numSegments; segmentID++)
+        {
+            float heat = l_heatmap.getHeat(segmentID);
+            // text that keeps scrolling is hot too, but not photographic
+            if ((heat >= VIDEO_ENTER_HEAT && segments[segmentID].isPhotographic()) || (heat >= VIDEO_EXIT_HEAT && videoSegments.get(segmentID)))
+            {
+                if (hot == null)
+                {
+                    hot = new FixedLengthBitSet(segInfo.numSegments);
+                }
+                hot.set(segmentID, Boolean.TRUE);
+            }
+        }
+        
+        videoSegments.fill(Boolean.FALSE);
+        if (hot == null)
+        {
+            videoRegions = NO_VIDEO_REGIONS;
+            return;
+        }
+        
+        ArrayList<Rectangle> rects = new ArrayList<Rectangle>();
+        segInfo.collectRectangles(hot, rects);
+        Iterator<Rectangle> iterator = rects.iterator();
+        while (iterator.hasNext())
+        {
+            Rectangle rect = iterator.next();
+            if (rect.width * rect.height < VIDEO_MIN_SEGMENTS)
+            {
+                iterator.remove();
+                continue;
+            }
+            for (int j=rect.y; j<rect.y+rect.height; j++)
+            {
+                for (int i=rect.x; i<rect.x+rect.width; i++)
+                {
+                    videoSegments.set(segInfo.getSegmentID(i, j), Boolean.TRUE);
+                }
+            }
+        }
+        videoRegions = rects.isEmpty() ? NO_VIDEO_REGIONS : Collections.unmodifiableList(rects);
+    }
+    
+    /**
+     * @return the rectangles of segments (in segment units) that the last scan found to be video
+     */
+    public List<Rectangle> getVideoRegions()
+    {
+        return videoRegions;
+    }
+    
+    /**
+     * @return the moves found by the last scan, in the order in which they must be applied
+     */
+    public List<ScreenMove> getMoves()
+    {
+        return moves;
+    }
+    
+    /**
+     * @param changed the segments that changed in the last scan
+     * @return changed without the segments that the moves of the last scan explain, null if that leaves none
+     */
+    public FixedLengthBitSet withoutMoves(FixedLengthBitSet changed)
+    {
+        if (changed == null || moves.size() == 0)
+        {
+            return changed;
+        }
+        
+        FixedLengthBitSet rval = changed.clone();
+        rval.andNot(explainedSegments);
+        
+        return rval.isEmpty() ? null : rval;
+    }
+    
+    public long getScanCount()
+    {
+        return scanCount;
     }
     
     public void run()
@@ -134,33 +854,37 @@ public class Monitor extends Thread
         // detect change in a segment of the configured screen
         // notify all listeners of the changed segment
         
-        GraphicsSegment graphicsSegment;
-        boolean changed;
-        final boolean discrete_change[] = new boolean[1];
-        
-        final int[] buffer = new int[segInfo.maxSegmentNumPixels];
-        int[] segmentDim = new int[2];
-        int x, y;
-        long startAt, timeConsumed;
+        FixedLengthBitSet changed, unexplained;
+        List<ScreenMove> scanMoves;
+        boolean active;
         ArrayList<ClientHandler> newClients = new ArrayList<ClientHandler>();
+        String diagnosticsSection = String.format("Screen scanning (%s)", frameSource.toString());
         
-        startAt = 0;
-        
-        GraphicsSegment.Synchronously refresh = new GraphicsSegment.Synchronously() {
-
+        Diagnostics.register(diagnosticsSection, new Diagnostics.Provider() {
+            
             @Override
-            public Object run(GraphicsSegment receiver, int[] pixels, Integer[] solidColorPtr)
+            public void report(StringBuilder sb)
             {
-                boolean changed = copyIntArray(pixels, buffer, pixels.length, solidColorPtr);
-                if (changed)
+                heatmap.report(sb);
+                if (probeStride > 1)
                 {
-                	receiver.releaseJitCompressedEvent();
+                    long numVerifiedChanges = getNumVerifiedChanges();
+                    long numProbeMisses = getNumProbeMisses();
+                    sb.append(String.format("\nprobe: every %d scanline(s), verified every %d scans, missed %d of %d verified changes (%.1f%%)", probeStride, probeVerifyInterval, numProbeMisses, numVerifiedChanges, (numVerifiedChanges == 0) ? 0.0 : numProbeMisses * 100.0 / numVerifiedChanges));
+                }
+                MotionDetector l_motionDetector = motionDetector;
+                if (l_motionDetector != null)
+                {
+                    sb.append(String.format("\nmotion: %d moves explained %d changed segments", l_motionDetector.getNumMoves(), l_motionDetector.getNumExplainedSegments()));
+                }
+                List<Rectangle> l_videoRegions = videoRegions;
+                for (Rectangle rect : l_videoRegions)
+                {
+                    sb.append(String.format("\nvideo: %d x %d segments at (%d, %d)", rect.width, rect.height, rect.x, rect.y));
                 }
-                discrete_change[0] = changed;
-                return null;
             }
             
-        };
+        });
         
         try
         {
@@ -176,30 +900,18 @@ public class Monitor extends Thread
 	            	{
 	            		break;
 	            	}
-	            	if (OBEY_SPEED_LIMITS)
-	            	{
-	            		startAt = System.currentTimeMillis();
-	            	}
+	                active = syncMouse();
 	                
-	                syncMouse();
+	                changed = scanNext();
+	                active = active || (changed != null);
+	                scanMoves = moves;
+	                unexplained = withoutMoves(changed);
 	                
-	                changed = Boolean.FALSE;
-	                
-	                dirbot.markRGBCacheDirty();
-	                
-	                for (int i=0; i<=segInfo.maxSegmentID; i++)
+	                for (ClientHandler client : clients)
 	                {
-	                    graphicsSegment = segments[i];
-	                    getSegmentPos(i, segmentDim);
-	                    x = segmentDim[0];
-	                    y = segmentDim[1];
-	                    getSegmentDim(i, segmentDim);
-	                    dirbot.getRGBPixels(x, y, segmentDim[0], segmentDim[1], buffer);
-	                    graphicsSegment.synchronously(refresh);
-	                    if (discrete_change[0])
+	                    if (client.getIsNewFlag())
 	                    {
-	                        changed = Boolean.TRUE;
-	                        changedSegments.set(i, Boolean.TRUE);
+	                        newClients.add(client);
 	                    }
 	                }
 	                
@@ -207,27 +919,25 @@ public class Monitor extends Thread
 	                {
 	                    if (client.getIsNewFlag())
 	                    {
-	                        newClients.add(client);
+	                        continue;
 	                    }
-	                }
-	                
-	                if (changed)
-	                {
-	                    FixedLengthBitSet tmp = changedSegments.clone();
-	                    for (ClientHandler client : clients)
+	                    ScreenListener l = client.getScreenListener(dirbot);
+	                    for (ScreenMove move : scanMoves)
 	                    {
-	                        if (client.getIsNewFlag())
-	                        {
-	                            continue;
-	                        }
-	                        ScreenListener l = client.getScreenListener(dirbot);
-	                        l.onScreenChange(tmp);
+	                        l.onScreenMove(move);
+	                    }
+	                    if (unexplained != null)
+	                    {
+	                        l.onScreenChange(unexplained);
 	                    }
-	                    changedSegments.fill(Boolean.FALSE);
+	                    // slower clients are notified at their own pace
+	                    l.onScanComplete();
+	                    active = active || l.hasPending();
 	                }
 	                
 	                if (newClients.size() > 0)
 	                {
+	                    active = Boolean.TRUE;
 	                    FixedLengthBitSet tmp = new FixedLengthBitSet(changedSegments.length, Boolean.TRUE);
 	                    for (ClientHandler client : newClients)
 	                    {
@@ -240,20 +950,15 @@ public class Monitor extends Thread
 	                
 	                if (OBEY_SPEED_LIMITS)
 	                {
-		                timeConsumed = System.currentTimeMillis() - startAt;
-		                
-		                long l_refreshMS = refreshMS;
-		                
-		                if (timeConsumed < l_refreshMS)
+		                // cold segments are only scanned every few scans, do not leave them unscanned for longer than an idle period
+		                scheduler.schedule(active, refreshMS, (damageTracker == null) ? heatmap.getColdScanInterval() : 1);
+		                try
+		                {
+		                    scheduler.sleep();
+		                }
+		                catch (InterruptedException e)
 		                {
-		                    try
-		                    {
-		                        sleep(l_refreshMS - timeConsumed);
-		                    }
-		                    catch (InterruptedException e)
-		                    {
-		                        LLog.e(e);
-		                    }
+		                    LLog.e(e);
 		                }
 	                }
             	}
@@ -264,6 +969,8 @@ public class Monitor extends Thread
         }
         finally {
             stopped = Boolean.TRUE;
+            Diagnostics.unregister(diagnosticsSection);
+            stopScanWorkers();
             for (GraphicsSegment segment : segments)
             {
             	try
@@ -275,6 +982,18 @@ public class Monitor extends Thread
             		LLog.e(e, false);
             	}
             }
+            if (damageTracker != null)
+            {
+                damageTracker.dispose();
+            }
+            try
+            {
+                frameSource.dispose();
+            }
+            catch (Exception e)
+            {
+                LLog.e(e, false);
+            }
             joined = Boolean.TRUE;
         }
     }
@@ -283,148 +1002,142 @@ public class Monitor extends Thread
     {
         Rectangle bounds = getScreenBounds();
         client.sendEvent(SERVER_EVENT.SCREEN_RESIZED, bounds.width, bounds.height);
-        client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_SIZE_UPDATE, segInfo.segmentWidth, segInfo.segmentHeight);
+        client.sendEvent(SERVER_EVENT.SCREEN_SEGMENT_SIZE_UPDATE, segInfo.segmentWidth, segInfo.segmentHeight, segInfo.maxRegionLevel);
         if (mouseOnMyScreen != null && mouseOnMyScreen)
         {
             client.sendEvent(SERVER_EVENT.CURSOR_MOVE, Integer.valueOf(mouseLocation.x), Integer.valueOf(mouseLocation.y));
         }
     }
     
-    private boolean isOneColor(int[] ints, int idx, int sentinelIdx)
+    /**
+     * Set firstChangedRows for the scanlines [firstY, sentinelY) by comparing whole
+     * scanlines of scanFrame and publishedFrame, only a scanline that differs is
+     * compared segment by segment.
+     * 
+     * With a mask only the masked segments are compared, each run of adjacent
+     * masked segments in a row of segments as one span per scanline.
+     * [firstY, sentinelY) must then be whole rows of segments.
+     */
+    private void findChangedRows(int firstY, int sentinelY, FixedLengthBitSet mask)
     {
-    	if (idx + 1 == sentinelIdx)
-    	{
-    		return true;
-    	}
-    	int color = ints[idx];
-    	idx++;
-    	while (idx < sentinelIdx)
+        if (mask != null)
+        {
+            findChangedRowsMasked(firstY, sentinelY, mask);
+            return;
+        }
+    	int width = screenWidth;
+    	int segmentWidth = segInfo.segmentWidth;
+    	int yStep = scanProbing ? probeStride : 1;
+    	int startY = firstProbeY(firstY);
+    	int rowOffset = startY * width;
+    	for (int y=startY; y<sentinelY; y+=yStep, rowOffset+=yStep*width)
     	{
-    		if (ints[idx++] == color)
+    		if (kernels.mismatch(publishedFrame, rowOffset, scanFrame, rowOffset, width) < 0)
     		{
     			continue;
     		}
-    		return false;
+    		int segmentRow = y / segInfo.segmentHeight;
+    		int rowInSegment = y - segmentRow * segInfo.segmentHeight;
+    		int segmentID = segmentRow * segInfo.numHorizontalSegments;
+    		for (int x=0; x<width; x+=segmentWidth, segmentID++)
+    		{
+    			if (firstChangedRows[segmentID] < 0 && kernels.mismatch(publishedFrame, rowOffset + x, scanFrame, rowOffset + x, Math.min(segmentWidth, width - x)) >= 0)
+    			{
+    				firstChangedRows[segmentID] = rowInSegment;
+    			}
+    		}
     	}
-    	return true;
+    }
+    
+    private void findChangedRowsMasked(int firstY, int sentinelY, FixedLengthBitSet mask)
+    {
+        int width = screenWidth;
+        int segmentWidth = segInfo.segmentWidth;
+        int segmentHeight = segInfo.segmentHeight;
+        int yStep = scanProbing ? probeStride : 1;
+        for (int segmentY=firstY; segmentY<sentinelY; segmentY+=segmentHeight)
+        {
+            int startY = firstProbeY(segmentY);
+            int firstSegmentID = (segmentY / segmentHeight) * segInfo.numHorizontalSegments;
+            int sentinelSegmentID = firstSegmentID + segInfo.numHorizontalSegments;
+            int sentinelRowY = Math.min(segmentY + segmentHeight, sentinelY);
+            for (int runStart=mask.nextSetBit(firstSegmentID); runStart>=0 && runStart<sentinelSegmentID; runStart=mask.nextSetBit(runStart))
+            {
+                int runEnd = Math.min(mask.nextClearBit(runStart), sentinelSegmentID);
+                int runX = (runStart - firstSegmentID) * segmentWidth;
+                int runWidth = Math.min((runEnd - firstSegmentID) * segmentWidth, width) - runX;
+                for (int y=startY, rowOffset=startY*width+runX; y<sentinelRowY; y+=yStep, rowOffset+=yStep*width)
+                {
+                    if (kernels.mismatch(publishedFrame, rowOffset, scanFrame, rowOffset, runWidth) < 0)
+                    {
+                        continue;
+                    }
+                    for (int segmentID=runStart, x=0; segmentID<runEnd; segmentID++, x+=segmentWidth)
+                    {
+                        if (firstChangedRows[segmentID] < 0 && kernels.mismatch(publishedFrame, rowOffset + x, scanFrame, rowOffset + x, Math.min(segmentWidth, runWidth - x)) >= 0)
+                        {
+                            firstChangedRows[segmentID] = y - segmentY;
+                        }
+                    }
+                }
+                runStart = runEnd;
+            }
+        }
     }
     
     /**
-     * Eratta: src array content MAY CHANGE as a result of this function!
-     * It is faster to fill a buffer with a SOLID color and compare arrays
-     * using a syscall than it is to iterate over the array and compare
-     * individual elements with a sample color.
-     * 
-     * Note that this can only occur when the src and dst buffers are length
-     * aligned and the length parameter is aligned with them as well.
+     * @return the first scanline at or below y that is compared by the current scan
+     */
+    private int firstProbeY(int y)
+    {
+        return scanProbing ? (y + (probePhase - (y % probeStride) + probeStride) % probeStride) : y;
+    }
+    
+    /**
+     * @return true iff. the scanlines the next probe compares differ within the segment
+     */
+    private boolean probeHits(GraphicsSegment segment)
+    {
+        int segmentY = segment.getOffset() / screenWidth;
+        int sentinelY = segmentY + segment.getHeight();
+        int phase = (probePhase + 1) % probeStride;
+        for (int y=segmentY + (phase - (segmentY % probeStride) + probeStride) % probeStride; y<sentinelY; y+=probeStride)
+        {
+            int rowOffset = segment.getOffset() + (y - segmentY) * screenWidth;
+            if (kernels.mismatch(publishedFrame, rowOffset, scanFrame, rowOffset, segment.getWidth()) >= 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Copy a segment from src into dst (same offset and scan size in both
+     * frames) starting at fromRow. src is never modified.
      * 
-     * @param dst
-     * @param src
-     * @param length
-     * @param cachedSolidColor
-     * @return true iff. something differs
+     * @param cachedSolidColor updated to the color of the segment if it is one solid color, otherwise null
+     * @return the colors of a segment that is not one solid color but has at most PixelCodec.MAX_PALETTE_SIZE, otherwise null
      */
-    private boolean copyIntArray(int[] dst, int[] src, int length, Integer[] cachedSolidColor)
+    private int[] copyIntRegion(int[] dst, int[] src, int offset, int width, int height, int scanSize, int fromRow, Integer[] cachedSolidColor)
     {
-    	if (length <= 0)
+    	PixelKernels.copyRows(dst, src, offset, width, height, scanSize, fromRow);
+    	if (cachedSolidColor != null && cachedSolidColor.length > 0)
     	{
-    		if (length == 0)
+    		cachedSolidColor[0] = kernels.isOneColor(dst, offset, width, height, scanSize) ? dst[offset] : null;
+    		if (cachedSolidColor[0] == null)
     		{
-    			return false;
+    		    // while the segment is still in cache, most give up within the first row
+    		    int[] palette = new int[PixelCodec.MAX_PALETTE_SIZE];
+    		    int numColors = PixelKernels.collectPalette(dst, offset, width, height, scanSize, palette);
+    		    if (numColors > 0)
+    		    {
+    		        return Arrays.copyOf(palette, numColors);
+    		    }
     		}
-    		throw new IllegalArgumentException();
     	}
-        
-        if (cachedSolidColor != null && cachedSolidColor.length > 0)
-        {
-        	// handle solid color concerns
-        	if (dst.length == src.length && length == src.length)
-        	{
-        		boolean isDiff = !Arrays.equals(src, dst);
-        		if (isDiff)
-        		{
-        			System.arraycopy(src, 0, dst, 0, src.length);
-        		}
-        		Arrays.fill(src, dst[0]);
-        		cachedSolidColor[0] = Arrays.equals(src, dst) ? dst[0] : null;
-        		return isDiff;
-        	}
-        	int i;
-        	if (cachedSolidColor[0] != null)
-        	{
-        		// was a solid color in a former life
-        		i = 0;
-        		for (; i<length; i++)
-        		{
-            		if (dst[i] == src[i])
-            		{
-            			continue;
-            		}
-            		System.arraycopy(src, i, dst, i, length-i);
-        			cachedSolidColor[0] = (i == 0 && isOneColor(dst, 0, length)) ? dst[0] : null;
-        			return true;
-        		}
-        		return false;
-        	}
-        	// was never a solid color in a former life
-        	if (src[0] != dst[0])
-        	{
-        		// only looking for solid colors now
-        		System.arraycopy(src, 0, dst, 0, length);
-        		cachedSolidColor[0] = isOneColor(dst, 0, length) ? dst[0] : null;
-        		return true;
-        	}
-        	int solidColor = src[0];
-        	i = 1;
-        	for (; i<length; i++)
-        	{
-        		if (src[i] != dst[i])
-        		{
-        			//only looking for solid color now
-        			System.arraycopy(src, i, dst, i, length-i);
-        			cachedSolidColor[0] = isOneColor(dst, i-1, length) ? dst[0] : null;
-        			return true;
-        		}
-        		if (src[i] != solidColor)
-        		{
-        			//only looking for diff now
-        			cachedSolidColor[0] = null;
-        			i++;
-        			while (i < length)
-        			{
-        				if (src[i] == dst[i])
-        				{
-        					i++;
-        					continue;
-        				}
-        				System.arraycopy(src, i, dst, i, length-i);
-    					return true;
-        			}
-        			return false;
-        		}
-        	}
-        	return false;
-        }
-    	// solid colors are not to be addressed
-    	if (dst.length == src.length && length == src.length)
-    	{
-    		if (Arrays.equals(src, dst))
-    		{
-    			return false;
-    		}
-    		System.arraycopy(src, 0, dst, 0, src.length);
-			return true;
-    	}
-		for (int i=0; i<length; i++)
-		{
-			if (dst[i] == src[i])
-			{
-				continue;
-			}
-			System.arraycopy(src, i, dst, i, length-i);
-			return true;
-		}
-		return false;
+    	
+    	return null;
     }
     
     public int getSegmentID(int x, int y)
@@ -444,6 +1157,42 @@ public class Monitor extends Thread
         segInfo.getPos(segmentID, absPos);
     }
     
+    /**
+     * Set the bit of every segment that the given rectangle (in screen coordinates) touches
+     */
+    public void markSegments(Rectangle rect, FixedLengthBitSet dst)
+    {
+        segInfo.markSegments(rect.x, rect.y, rect.width, rect.height, dst);
+    }
+    
+    /**
+     * Set the bit of every segment of the block of numHorizontal by numVertical segments from segmentID
+     */
+    public void markSegments(int segmentID, int numHorizontal, int numVertical, FixedLengthBitSet dst)
+    {
+        Rectangle bounds = new Rectangle();
+        segInfo.getBounds(segmentID, numHorizontal, numVertical, bounds);
+        markSegments(bounds, dst);
+    }
+    
+    /**
+     * @param bounds receives the bounds (in screen coordinates) of the block of numHorizontal by numVertical segments from segmentID
+     */
+    public void getBounds(int segmentID, int numHorizontal, int numVertical, Rectangle bounds)
+    {
+        segInfo.getBounds(segmentID, numHorizontal, numVertical, bounds);
+    }
+    
+    /**
+     * Set the bit of every segment of a region (see SegmentationInfo.getRegionID)
+     */
+    public void markRegion(int regionID, FixedLengthBitSet dst)
+    {
+        Rectangle bounds = new Rectangle();
+        segInfo.getRegionBounds(regionID, bounds);
+        markSegments(bounds, dst);
+    }
+    
     public void getSegmentIdxPos(int segmentID, int[] pos)
     {
         segInfo.getIdxPos(segmentID, pos);
@@ -473,7 +1222,7 @@ public class Monitor extends Thread
     
     public Rectangle getScreenBounds()
     {
-        return dirbot.getScreenBounds();
+        return frameSource.getScreenBounds();
     }
     
     public int getSegmentCount()
@@ -502,15 +1251,197 @@ public class Monitor extends Thread
         signalStop();
     }
     
+    /**
+     * @param segmentID a segment ID, a region ID (see SegmentationInfo) or -1 for the whole screen
+     */
     public GraphicsSegment getSegment(int segmentID)
     {
     	if (segmentID == -1)
     	{
-    		return new GraphicsSegment(dirbot.getRGBPixels()); 
+    		// rows of the screen's width, FILTERED encodings depend on it
+    		return new GraphicsSegment(frameSource.getRGBPixels(), screenWidth, null);
+    	}
+    	if (SegmentationInfo.getRegionLevel(segmentID) > 0)
+    	{
+    	    return getRegion(segmentID);
     	}
     	return segments[segmentID];
     }
-
+    
+    private GraphicsSegment getRegion(int regionID)
+    {
+        int side = 1 << SegmentationInfo.getRegionLevel(regionID);
+        int[] idxPos = new int[2];
+        
+        segInfo.getIdxPos(SegmentationInfo.getRegionSegmentID(regionID), idxPos);
+        
+        return getBlock(idxPos[0], idxPos[1], side, side);
+    }
+    
+    /**
+     * Copies a block of segments one segment at a time, so that each segment
+     * is consistent with what the last scan published for it.
+     * 
+     * @param x index of the left column of segments
+     * @param y index of the top row of segments
+     * @param numHorizontal width of the block in segments (clipped to the screen)
+     * @param numVertical height of the block in segments (clipped to the screen)
+     * @return a segment of its own holding a copy of the block
+     */
+    public GraphicsSegment getBlock(int x, int y, int numHorizontal, int numVertical)
+    {
+        final Rectangle bounds = new Rectangle();
+        segInfo.getBounds(segInfo.getSegmentID(x, y), numHorizontal, numVertical, bounds);
+        final int[] pixels = new int[bounds.width * bounds.height];
+        final Integer[] solidColor = new Integer[]{null};
+        final boolean[] isSolid = new boolean[]{Boolean.TRUE};
+        
+        GraphicsSegment.Synchronously copyToRegion = new GraphicsSegment.Synchronously() {
+            
+            @Override
+            public Object run(GraphicsSegment receiver, int[] frame, Integer[] solidColorPtr)
+            {
+                int offset = receiver.getOffset();
+                int dstIdx = (offset / screenWidth - bounds.y) * bounds.width + (offset % screenWidth - bounds.x);
+                for (int row=0; row<receiver.getHeight(); row++, offset+=receiver.getScanSize(), dstIdx+=bounds.width)
+                {
+                    System.arraycopy(frame, offset, pixels, dstIdx, receiver.getWidth());
+                }
+                if (isSolid[0])
+                {
+                    Integer segmentColor = solidColorPtr[0];
+                    if (segmentColor == null || (solidColor[0] != null && !solidColor[0].equals(segmentColor)))
+                    {
+                        isSolid[0] = Boolean.FALSE;
+                    }
+                    else
+                    {
+                        solidColor[0] = segmentColor;
+                    }
+                }
+                return null;
+            }
+            
+        };
+        
+        for (int j=y, sentinelJ=Math.min(y + numVertical, segInfo.numVerticalSegments); j<sentinelJ; j++)
+        {
+            for (int i=x, sentinelI=Math.min(x + numHorizontal, segInfo.numHorizontalSegments); i<sentinelI; i++)
+            {
+                segments[segInfo.getSegmentID(i, j)].synchronouslyInPlace(copyToRegion);
+            }
+        }
+        
+        return new GraphicsSegment(pixels, bounds.width, isSolid[0] ? solidColor[0] : null);
+    }
+    
+    /**
+     * A block of up to 2^MONITOR_MAX_REGION_LEVEL by 2^MONITOR_MAX_REGION_LEVEL
+     * segments that changed as a whole is covered by one region
+     * 
+     * @param changedSegments
+     * @param dst receives the IDs of the regions that cover changedSegments (see SegmentationInfo.collectRegions)
+     */
+    public void collectRegions(FixedLengthBitSet changedSegments, List<Integer> dst)
+    {
+        segInfo.collectRegions(changedSegments, dst);
+    }
+    
+    /**
+     * Disjoint rectangles, sent as one SCREEN_RECT_UPDATE each with
+     * MONITOR_SEND_RECTANGLES set
+     * 
+     * @param changedSegments
+     * @param dst receives rectangles of segments that cover changedSegments (see SegmentationInfo.collectRectangles)
+     */
+    public void collectRectangles(FixedLengthBitSet changedSegments, List<Rectangle> dst)
+    {
+        segInfo.collectRectangles(changedSegments, dst);
+    }
+    
+    /**
+     * Order regions (see SegmentationInfo.getRegionID) nearest to the mouse
+     * first, if it is on this screen
+     */
+    public void sortRegionsNearMouse(List<Integer> regionIDs)
+    {
+        final Point mouseSegment = getMouseSegment();
+        if (mouseSegment == null)
+        {
+            return;
+        }
+        Collections.sort(regionIDs, new Comparator<Integer>() {
+            
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                return getDistance(getRegionRect(a), mouseSegment) - getDistance(getRegionRect(b), mouseSegment);
+            }
+            
+        });
+    }
+    
+    /**
+     * Order rectangles of segments (in segment units, see collectRectangles)
+     * nearest to the mouse first, if it is on this screen
+     */
+    public void sortRectanglesNearMouse(List<Rectangle> segmentRects)
+    {
+        final Point mouseSegment = getMouseSegment();
+        if (mouseSegment == null)
+        {
+            return;
+        }
+        Collections.sort(segmentRects, new Comparator<Rectangle>() {
+            
+            @Override
+            public int compare(Rectangle a, Rectangle b)
+            {
+                return getDistance(a, mouseSegment) - getDistance(b, mouseSegment);
+            }
+            
+        });
+    }
+    
+    /**
+     * @return the column and row of the segment the mouse is over, null if it is not on this screen
+     */
+    private Point getMouseSegment()
+    {
+        // as last synced, a torn read only reorders what is sent
+        Boolean l_mouseOnMyScreen = mouseOnMyScreen;
+        int x = mouseLocation.x, y = mouseLocation.y;
+        if (l_mouseOnMyScreen == null || !l_mouseOnMyScreen)
+        {
+            return null;
+        }
+        
+        return new Point(Math.max(0, Math.min(x / segInfo.segmentWidth, segInfo.numHorizontalSegments - 1)), Math.max(0, Math.min(y / segInfo.segmentHeight, segInfo.numVerticalSegments - 1)));
+    }
+    
+    /**
+     * @return the region in segment units
+     */
+    private Rectangle getRegionRect(int regionID)
+    {
+        int side = 1 << SegmentationInfo.getRegionLevel(regionID);
+        int[] idxPos = new int[2];
+        segInfo.getIdxPos(SegmentationInfo.getRegionSegmentID(regionID), idxPos);
+        
+        return new Rectangle(idxPos[0], idxPos[1], side, side);
+    }
+    
+    /**
+     * @return the number of segments between the rectangle and the segment, 0 if it holds it
+     */
+    private static int getDistance(Rectangle segmentRect, Point segment)
+    {
+        int dx = Math.max(0, Math.max(segmentRect.x - segment.x, segment.x - (segmentRect.x + segmentRect.width - 1)));
+        int dy = Math.max(0, Math.max(segmentRect.y - segment.y, segment.y - (segmentRect.y + segmentRect.height - 1)));
+        
+        return Math.max(dx, dy);
+    }
+    
     public void getOrigin(int[] pos)
     {
         assert_(pos != null);
@@ -519,7 +1450,7 @@ public class Monitor extends Thread
         pos[0] = screenX;
         pos[1] = screenY;
     }
-
+    
 	public void throttle(boolean addPeriod, Long periodMS)
 	{
 		assert_(!addPeriod || periodMS != null);
@@ -564,7 +1495,7 @@ public class Monitor extends Thread
 			limitLock.release();
 		}
 	}
-
+	
 	public void setPaused(boolean paused) {
 		if (!paused)
 		{
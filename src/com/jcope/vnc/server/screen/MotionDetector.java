@@ -0,0 +1,479 @@
+package com.jcope.vnc.server.screen;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.PixelHash;
+import com.jcope.util.SegmentationInfo;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Finds rectangles of the previous frame that reappear shifted vertically
+ * or horizontally in the current one, as when a window is scrolled or
+ * dragged, so that clients can copy them instead of being sent them.
+ *
+ * Every column of segments keeps a hash of each of its scanlines (a strip
+ * one segment wide) and every row of segments a hash of each of its pixel
+ * columns (a strip one segment high), for both the previous and the
+ * current frame. Only the strips of changed segments are rehashed.
+ *
+ * Within a run of changed segments of a column, each strip that differs
+ * from its neighbour votes for the shift that maps it onto the strip with
+ * the same hash in the previous frame. The winning shift is kept where the
+ * strips match one to one, the changed segments that lie entirely within
+ * such a match are gathered by shift and coalesced into rectangles of
+ * segments (see SegmentationInfo.collectRectangles), each of which becomes
+ * a move. Rows of segments are searched the same way for horizontal
+ * shifts, among the changes that are not explained by a vertical one.
+ *
+ * The pixels of the previous frame are not kept, so a move is only as
+ * good as its hashes; a client verifies the result of every copy against
+ * the hashes of the segments it is meant to explain.
+ *
+ */
+
+public class MotionDetector
+{
+    private final SegmentationInfo segInfo;
+    private final int width, height;
+    private final Axis vertical, horizontal;
+    private boolean initialized = Boolean.FALSE;
+    
+    // open addressing index from strip hash to position, cleared by bumping stamp
+    private long[] indexKeys;
+    private int[] indexValues;
+    private int[] indexStamps;
+    private int indexMask;
+    private int stamp = 0;
+    
+    private int[] votes;
+    
+    private long numMoves = 0;
+    private long numExplainedSegments = 0;
+    
+    /**
+     * A run of strips of one lane (a column or row of segments) that
+     * matches the previous frame shifted by shift
+     */
+    private static class Band
+    {
+        final int lane, start, end, shift;
+        
+        Band(int lane, int start, int end, int shift)
+        {
+            this.lane = lane;
+            this.start = start;
+            this.end = end;
+            this.shift = shift;
+        }
+    }
+    
+    /**
+     * Columns of segments (isVertical, shifts along y) or rows of
+     * segments (shifts along x), both addressed as lanes of strips
+     */
+    private class Axis
+    {
+        final boolean isVertical;
+        final int numLanes, laneLength, segmentLength, numAlong, step;
+        final long[] cur, prev;
+        
+        Axis(boolean isVertical)
+        {
+            this.isVertical = isVertical;
+            numLanes = isVertical ? segInfo.numHorizontalSegments : segInfo.numVerticalSegments;
+            laneLength = isVertical ? height : width;
+            segmentLength = isVertical ? segInfo.segmentHeight : segInfo.segmentWidth;
+            numAlong = isVertical ? segInfo.numVerticalSegments : segInfo.numHorizontalSegments;
+            step = isVertical ? 1 : width;
+            cur = new long[numLanes * laneLength];
+            prev = new long[numLanes * laneLength];
+        }
+        
+        int segmentID(int lane, int j)
+        {
+            return isVertical ? (j * segInfo.numHorizontalSegments + lane) : (lane * segInfo.numHorizontalSegments + j);
+        }
+        
+        int stripOffset(int lane, int pos)
+        {
+            return isVertical ? (pos * width + lane * segInfo.segmentWidth) : (lane * segInfo.segmentHeight * width + pos);
+        }
+        
+        int stripLength(int lane)
+        {
+            return isVertical ? Math.min(segInfo.segmentWidth, width - lane * segInfo.segmentWidth) : Math.min(segInfo.segmentHeight, height - lane * segInfo.segmentHeight);
+        }
+        
+        void rehash(int[] frame, int lane, int fromPos, int toPos)
+        {
+            int length = stripLength(lane);
+            for (int pos=fromPos, idx=lane*laneLength+fromPos; pos<toPos; pos++, idx++)
+            {
+                cur[idx] = PixelHash.hashStrip(frame, stripOffset(lane, pos), length, step);
+            }
+        }
+        
+        void rehashAll(int[] frame)
+        {
+            for (int lane=0; lane<numLanes; lane++)
+            {
+                rehash(frame, lane, 0, laneLength);
+            }
+            System.arraycopy(cur, 0, prev, 0, cur.length);
+        }
+        
+        int laneOf(int segmentID)
+        {
+            return isVertical ? (segmentID % segInfo.numHorizontalSegments) : (segmentID / segInfo.numHorizontalSegments);
+        }
+        
+        int alongOf(int segmentID)
+        {
+            return isVertical ? (segmentID / segInfo.numHorizontalSegments) : (segmentID % segInfo.numHorizontalSegments);
+        }
+        
+        void rehash(int[] frame, int segmentID)
+        {
+            int j = alongOf(segmentID);
+            rehash(frame, laneOf(segmentID), j * segmentLength, Math.min((j + 1) * segmentLength, laneLength));
+        }
+        
+        void sync(int segmentID)
+        {
+            int j = alongOf(segmentID);
+            int from = laneOf(segmentID) * laneLength + j * segmentLength;
+            int to = laneOf(segmentID) * laneLength + Math.min((j + 1) * segmentLength, laneLength);
+            System.arraycopy(cur, from, prev, from, to - from);
+        }
+        
+        /**
+         * @return true iff. [start, end) holds at least one whole segment
+         */
+        boolean holdsSegment(int start, int end)
+        {
+            int j = (start + segmentLength - 1) / segmentLength;
+            return j < numAlong && Math.min((j + 1) * segmentLength, laneLength) <= end;
+        }
+        
+        void findBands(FixedLengthBitSet changed, List<Band> dst)
+        {
+            int minVotes = Math.max(2, segmentLength / 4);
+            for (int lane=0; lane<numLanes; lane++)
+            {
+                boolean indexed = Boolean.FALSE;
+                int base = lane * laneLength;
+                for (int j=0; j<numAlong; j++)
+                {
+                    if (!changed.get(segmentID(lane, j)))
+                    {
+                        continue;
+                    }
+                    int runEnd = j + 1;
+                    while (runEnd < numAlong && changed.get(segmentID(lane, runEnd)))
+                    {
+                        runEnd++;
+                    }
+                    int start = j * segmentLength;
+                    int end = Math.min(runEnd * segmentLength, laneLength);
+                    j = runEnd;
+                    if (!indexed)
+                    {
+                        indexLane(prev, base, laneLength);
+                        indexed = Boolean.TRUE;
+                    }
+                    
+                    // vote
+                    int bestShift = 0;
+                    int bestVotes = 0;
+                    for (int pos=start; pos<end; pos++)
+                    {
+                        long h = cur[base + pos];
+                        if (pos > 0 && cur[base + pos - 1] == h)
+                        {
+                            // repeats the strip before it, tells nothing
+                            continue;
+                        }
+                        int from = lookup(h);
+                        if (from < 0 || from == pos)
+                        {
+                            continue;
+                        }
+                        int shift = pos - from;
+                        int n = ++votes[shift + laneLength];
+                        if (n > bestVotes)
+                        {
+                            bestVotes = n;
+                            bestShift = shift;
+                        }
+                    }
+                    // reset the votes that were cast
+                    for (int pos=start; pos<end; pos++)
+                    {
+                        int from = lookup(cur[base + pos]);
+                        if (from >= 0)
+                        {
+                            votes[pos - from + laneLength] = 0;
+                        }
+                    }
+                    if (bestVotes < minVotes)
+                    {
+                        continue;
+                    }
+                    
+                    // keep the runs of strips that match under the winning shift
+                    int matchStart = -1;
+                    for (int pos=start; pos<=end; pos++)
+                    {
+                        int from = pos - bestShift;
+                        boolean matches = (pos < end && from >= 0 && from < laneLength && cur[base + pos] == prev[base + from]);
+                        if (matches && matchStart < 0)
+                        {
+                            matchStart = pos;
+                        }
+                        else if (!matches && matchStart >= 0)
+                        {
+                            if (holdsSegment(matchStart, pos))
+                            {
+                                dst.add(new Band(lane, matchStart, pos, bestShift));
+                            }
+                            matchStart = -1;
+                        }
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Gather the segments that the bands explain by shift and turn them into moves
+         */
+        void findMoves(int[] frame, FixedLengthBitSet changed, FixedLengthBitSet explained, List<ScreenMove> dst)
+        {
+            ArrayList<Band> bands = new ArrayList<Band>();
+            findBands(changed, bands);
+            if (bands.isEmpty())
+            {
+                return;
+            }
+            
+            // segments that lie entirely within a band, per shift in the order first found
+            LinkedHashMap<Integer, FixedLengthBitSet> segmentsByShift = new LinkedHashMap<Integer, FixedLengthBitSet>();
+            for (Band band : bands)
+            {
+                FixedLengthBitSet segments = segmentsByShift.get(band.shift);
+                for (int j=(band.start + segmentLength - 1) / segmentLength; j<numAlong && Math.min((j + 1) * segmentLength, laneLength) <= band.end; j++)
+                {
+                    int segmentID = segmentID(band.lane, j);
+                    if (!changed.get(segmentID) || explained.get(segmentID))
+                    {
+                        continue;
+                    }
+                    if (segments == null)
+                    {
+                        segments = new FixedLengthBitSet(segInfo.numSegments);
+                        segmentsByShift.put(band.shift, segments);
+                    }
+                    segments.set(segmentID, Boolean.TRUE);
+                }
+            }
+            
+            ArrayList<Rectangle> rectangles = new ArrayList<Rectangle>();
+            for (Map.Entry<Integer, FixedLengthBitSet> entry : segmentsByShift.entrySet())
+            {
+                int shift = entry.getKey();
+                rectangles.clear();
+                segInfo.collectRectangles(entry.getValue(), rectangles);
+                // rectangles come top to bottom, a copy must not read what an earlier one of the same shift wrote
+                if (shift > 0)
+                {
+                    Collections.reverse(rectangles);
+                }
+                for (Rectangle rectangle : rectangles)
+                {
+                    addMove(frame, rectangle, shift, explained, dst);
+                }
+            }
+        }
+        
+        /**
+         * @param rectangle segments explained by shift, in segment units
+         */
+        private void addMove(int[] frame, Rectangle rectangle, int shift, FixedLengthBitSet explained, List<ScreenMove> dst)
+        {
+            Rectangle src = new Rectangle();
+            segInfo.getBounds(rectangle.y * segInfo.numHorizontalSegments + rectangle.x, rectangle.width, rectangle.height, src);
+            src.translate(isVertical ? 0 : -shift, isVertical ? -shift : 0);
+            
+            // copies are applied one after the other, so none may read what an earlier one wrote
+            for (ScreenMove move : dst)
+            {
+                if (src.intersects(move.getDst()))
+                {
+                    return;
+                }
+            }
+            
+            int numSegmentIDs = rectangle.width * rectangle.height;
+            int[] segmentIDs = new int[numSegmentIDs];
+            long[] segmentHashes = new long[numSegmentIDs];
+            int[] pos = new int[2];
+            int[] dim = new int[2];
+            int i = 0;
+            for (int y=rectangle.y; y<rectangle.y+rectangle.height; y++)
+            {
+                for (int x=rectangle.x; x<rectangle.x+rectangle.width; x++)
+                {
+                    int segmentID = y * segInfo.numHorizontalSegments + x;
+                    segInfo.getPos(segmentID, pos);
+                    segInfo.getDim(segmentID, dim);
+                    segmentIDs[i] = segmentID;
+                    segmentHashes[i] = PixelHash.hash(frame, pos[1] * width + pos[0], dim[0], dim[1], width);
+                    explained.set(segmentID, Boolean.TRUE);
+                    i++;
+                }
+            }
+            
+            dst.add(new ScreenMove(src, isVertical ? 0 : shift, isVertical ? shift : 0, segInfo.numSegments, segmentIDs, segmentHashes));
+            numMoves++;
+            numExplainedSegments += numSegmentIDs;
+        }
+    }
+    
+    /**
+     * @param segInfo segmentation of the frames, must not change afterwards
+     * @param width
+     * @param height
+     */
+    public MotionDetector(SegmentationInfo segInfo, int width, int height)
+    {
+        this.segInfo = segInfo;
+        this.width = width;
+        this.height = height;
+        vertical = new Axis(Boolean.TRUE);
+        horizontal = new Axis(Boolean.FALSE);
+        int capacity = Integer.highestOneBit(Math.max(width, height) * 2) * 2;
+        indexKeys = new long[capacity];
+        indexValues = new int[capacity];
+        indexStamps = new int[capacity];
+        indexMask = capacity - 1;
+        votes = new int[Math.max(width, height) * 2 + 1];
+    }
+    
+    /**
+     * Account for a scan of frame and find the moves that explain its changes
+     *
+     * The first call only hashes the frame.
+     *
+     * @param frame the frame as of the scan
+     * @param changed the segments that changed in the scan, null if none did
+     * @param dst receives the moves in the order in which they must be applied
+     * @param explained receives the segments the moves explain
+     */
+    public void detect(int[] frame, FixedLengthBitSet changed, List<ScreenMove> dst, FixedLengthBitSet explained)
+    {
+        if (!initialized)
+        {
+            vertical.rehashAll(frame);
+            horizontal.rehashAll(frame);
+            initialized = Boolean.TRUE;
+            return;
+        }
+        if (changed == null)
+        {
+            return;
+        }
+        
+        for (int i=changed.nextSetBit(0); i>=0; i=changed.nextSetBit(i+1))
+        {
+            vertical.rehash(frame, i);
+            horizontal.rehash(frame, i);
+        }
+        
+        vertical.findMoves(frame, changed, explained, dst);
+        if (dst.size() > 0)
+        {
+            FixedLengthBitSet remaining = changed.clone();
+            remaining.andNot(explained);
+            horizontal.findMoves(frame, remaining, explained, dst);
+        }
+        else
+        {
+            horizontal.findMoves(frame, changed, explained, dst);
+        }
+        
+        for (int i=changed.nextSetBit(0); i>=0; i=changed.nextSetBit(i+1))
+        {
+            vertical.sync(i);
+            horizontal.sync(i);
+        }
+    }
+    
+    public long getNumMoves()
+    {
+        return numMoves;
+    }
+    
+    public long getNumExplainedSegments()
+    {
+        return numExplainedSegments;
+    }
+    
+    private void indexLane(long[] hashes, int base, int length)
+    {
+        stamp++;
+        if (stamp == 0)
+        {
+            Arrays.fill(indexStamps, 0);
+            stamp = 1;
+        }
+        for (int pos=0; pos<length; pos++)
+        {
+            long h = hashes[base + pos];
+            if (pos > 0 && hashes[base + pos - 1] == h)
+            {
+                continue;
+            }
+            int slot = ((int) h) & indexMask;
+            while (indexStamps[slot] == stamp && indexKeys[slot] != h)
+            {
+                slot = (slot + 1) & indexMask;
+            }
+            if (indexStamps[slot] == stamp)
+            {
+                // seen before, ambiguous
+                indexValues[slot] = -1;
+            }
+            else
+            {
+                indexStamps[slot] = stamp;
+                indexKeys[slot] = h;
+                indexValues[slot] = pos;
+            }
+        }
+    }
+    
+    /**
+     * @return the only position of the indexed lane with hash h, -1 if there is none or more than one
+     */
+    private int lookup(long h)
+    {
+        int slot = ((int) h) & indexMask;
+        while (indexStamps[slot] == stamp)
+        {
+            if (indexKeys[slot] == h)
+            {
+                return indexValues[slot];
+            }
+            slot = (slot + 1) & indexMask;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,130 @@
+package com.jcope.vnc.server.screen;
+
+import java.util.LinkedList;
+
+import com.jcope.util.FixedLengthBitSet;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * A ScreenListener with a delivery clock of its own.
+ *
+ * A Monitor scans at the rate of its fastest client. Changes reported to
+ * this listener are accumulated and handed to deliver(...) at most once
+ * per getPeriodMS(), so a slow client receives the union of everything
+ * that changed since its last delivery instead of every single scan.
+ *
+ * Moves are queued in order and handed to deliverMove(...) ahead of the
+ * changes. Past MAX_PENDING_MOVES the oldest move is dropped and the
+ * segments it explained are added to the changes instead.
+ *
+ */
+
+public abstract class PacedScreenListener extends ScreenListener
+{
+    private static final long NS_PER_MS = 1000000L;
+    public static final int MAX_PENDING_MOVES = 64;
+    
+    private FixedLengthBitSet pending = null;
+    private final LinkedList<ScreenMove> pendingMoves = new LinkedList<ScreenMove>();
+    private long deadlineNS = 0;
+    private boolean hasDeadline = Boolean.FALSE;
+    
+    /**
+     * @return the shortest time between two deliveries or null for no limit
+     */
+    abstract protected Long getPeriodMS();
+    
+    /**
+     * @param changedSegments every segment that changed since the last delivery,
+     *                        owned by the callee from here on
+     */
+    abstract protected void deliver(FixedLengthBitSet changedSegments);
+    
+    /**
+     * @param move a move to pass on, called before deliver(...) of the same delivery
+     */
+    abstract protected void deliverMove(ScreenMove move);
+    
+    @Override
+    public void onScreenChange(FixedLengthBitSet changedSegments)
+    {
+        if (pending == null || pending.length != changedSegments.length)
+        {
+            pending = changedSegments.clone();
+        }
+        else
+        {
+            pending.or(changedSegments);
+        }
+        deliverIfDue();
+    }
+    
+    @Override
+    public void onScreenMove(ScreenMove move)
+    {
+        pendingMoves.addLast(move);
+        if (pendingMoves.size() > MAX_PENDING_MOVES)
+        {
+            ScreenMove dropped = pendingMoves.removeFirst();
+            if (pending == null || pending.length != dropped.numSegments)
+            {
+                pending = new FixedLengthBitSet(dropped.numSegments);
+            }
+            for (int segmentID : dropped.segmentIDs)
+            {
+                pending.set(segmentID, Boolean.TRUE);
+            }
+        }
+    }
+    
+    @Override
+    public void onScanComplete()
+    {
+        deliverIfDue();
+    }
+    
+    @Override
+    public boolean hasPending()
+    {
+        return pending != null || !pendingMoves.isEmpty();
+    }
+    
+    private void deliverIfDue()
+    {
+        if (!hasPending())
+        {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        if (hasDeadline && deadlineNS - now > 0)
+        {
+            return;
+        }
+        
+        Long periodMS = getPeriodMS();
+        long periodNS = (periodMS == null) ? 0 : periodMS * NS_PER_MS;
+        
+        deadlineNS = hasDeadline ? (deadlineNS + periodNS) : (now + periodNS);
+        if (deadlineNS - now < 0)
+        {
+            // do not burst to catch up after an idle stretch
+            deadlineNS = now + periodNS;
+        }
+        hasDeadline = Boolean.TRUE;
+        
+        while (!pendingMoves.isEmpty())
+        {
+            deliverMove(pendingMoves.removeFirst());
+        }
+        FixedLengthBitSet changedSegments = pending;
+        pending = null;
+        if (changedSegments != null)
+        {
+            deliver(changedSegments);
+        }
+    }
+}
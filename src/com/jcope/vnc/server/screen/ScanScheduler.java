@@ -0,0 +1,105 @@
+package com.jcope.vnc.server.screen;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Decides when a Monitor scans next.
+ *
+ * While the screen changes, scans are spaced by the shortest period the
+ * clients allow. Every scan that finds nothing doubles the period, up to
+ * maxIdlePeriodMS, and the first scan that finds a change snaps it back.
+ * When it takes several scans to cover the whole screen (see
+ * SegmentHeatmap) the idle period is divided among them, so that every
+ * segment is still looked at within maxIdlePeriodMS.
+ *
+ * Deadlines are System.nanoTime() based and advance by the period from
+ * the previous deadline rather than from when a scan finished, so the
+ * time spent scanning does not stretch the period. A scan that overruns
+ * its deadline is not made up for.
+ *
+ */
+
+public class ScanScheduler
+{
+    private static final long NS_PER_MS = 1000000L;
+    
+    private final long maxIdlePeriodNS;
+    private long periodNS = 0;
+    private long deadlineNS = 0;
+    private boolean hasDeadline = Boolean.FALSE;
+    
+    /**
+     * @param maxIdlePeriodMS longest period to back off to while nothing changes
+     */
+    public ScanScheduler(long maxIdlePeriodMS)
+    {
+        maxIdlePeriodNS = maxIdlePeriodMS * NS_PER_MS;
+    }
+    
+    /**
+     * Set the deadline of the next scan
+     *
+     * @param active true iff. the last scan found a change (or there is some other reason to hurry)
+     * @param minPeriodMS the shortest period the clients allow
+     * @return the period until the next scan in milliseconds
+     */
+    public long schedule(boolean active, long minPeriodMS)
+    {
+        return schedule(active, minPeriodMS, 1);
+    }
+    
+    /**
+     * Set the deadline of the next scan
+     *
+     * @param active true iff. the last scan found a change (or there is some other reason to hurry)
+     * @param minPeriodMS the shortest period the clients allow
+     * @param numScansToCover how many scans it takes to scan every segment at least once
+     * @return the period until the next scan in milliseconds
+     */
+    public long schedule(boolean active, long minPeriodMS, int numScansToCover)
+    {
+        long minPeriodNS = minPeriodMS * NS_PER_MS;
+        long maxPeriodNS = maxIdlePeriodNS / Math.max(1, numScansToCover);
+        
+        if (active || periodNS < minPeriodNS)
+        {
+            periodNS = minPeriodNS;
+        }
+        else
+        {
+            periodNS = Math.min(Math.max(periodNS * 2, NS_PER_MS), Math.max(maxPeriodNS, minPeriodNS));
+        }
+        
+        long now = System.nanoTime();
+        
+        // count from the last deadline unless it has not been reached yet
+        deadlineNS = (hasDeadline && deadlineNS - now <= 0) ? (deadlineNS + periodNS) : (now + periodNS);
+        if (deadlineNS - now < 0)
+        {
+            // fell behind, start counting again from now
+            deadlineNS = now;
+        }
+        hasDeadline = Boolean.TRUE;
+        
+        return periodNS / NS_PER_MS;
+    }
+    
+    /**
+     * Sleep until the deadline set by the last call to schedule
+     */
+    public void sleep() throws InterruptedException
+    {
+        long remainingNS = deadlineNS - System.nanoTime();
+        
+        if (remainingNS > 0)
+        {
+            Thread.sleep(remainingNS / NS_PER_MS, (int) (remainingNS % NS_PER_MS));
+        }
+    }
+    
+    public long getPeriodMS()
+    {
+        return periodNS / NS_PER_MS;
+    }
+}
@@ -5,4 +5,29 @@ import com.jcope.util.FixedLengthBitSet;
 public abstract class ScreenListener
 {
 	abstract public void onScreenChange(FixedLengthBitSet changedSegments);
+	
+	/**
+	 * Called before onScreenChange for every rectangle that moved in a scan,
+	 * in the order in which the moves must be applied
+	 */
+	public void onScreenMove(ScreenMove move)
+	{
+		// Nothing to do by default
+	}
+	
+	/**
+	 * Called once per scan of the monitor, after onScreenChange if anything changed
+	 */
+	public void onScanComplete()
+	{
+		// Nothing to do by default
+	}
+	
+	/**
+	 * @return true iff. changes were accepted that have not been passed on yet
+	 */
+	public boolean hasPending()
+	{
+		return false;
+	}
 }
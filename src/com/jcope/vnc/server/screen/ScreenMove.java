@@ -0,0 +1,49 @@
+package com.jcope.vnc.server.screen;
+
+import java.awt.Rectangle;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * A rectangle of the previous frame that reappears in the current frame
+ * shifted by (dx, dy), as found by a MotionDetector.
+ *
+ * segmentIDs are the changed segments that lie entirely within the
+ * destination, i.e. that are fully explained by the move, and
+ * segmentHashes their PixelHash in the current frame so that a client can
+ * check that the copy left it with the right pixels.
+ *
+ */
+
+public class ScreenMove
+{
+    public final Rectangle src;
+    public final int dx, dy;
+    public final int numSegments;
+    public final int[] segmentIDs;
+    public final long[] segmentHashes;
+    
+    /**
+     * @param src
+     * @param dx
+     * @param dy
+     * @param numSegments number of segments of the screen
+     * @param segmentIDs
+     * @param segmentHashes
+     */
+    public ScreenMove(Rectangle src, int dx, int dy, int numSegments, int[] segmentIDs, long[] segmentHashes)
+    {
+        this.src = src;
+        this.dx = dx;
+        this.dy = dy;
+        this.numSegments = numSegments;
+        this.segmentIDs = segmentIDs;
+        this.segmentHashes = segmentHashes;
+    }
+    
+    public Rectangle getDst()
+    {
+        return new Rectangle(src.x + dx, src.y + dy, src.width, src.height);
+    }
+}
@@ -0,0 +1,149 @@
+package com.jcope.vnc.server.screen;
+
+import com.jcope.util.FixedLengthBitSet;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Exponentially decayed change frequency of every segment of a screen,
+ * used to decide which segments a Monitor scans next.
+ *
+ * Every time a segment is scanned its heat decays by DECAY and is raised
+ * by (1 - DECAY) if it changed, so the heat of a segment approximates the
+ * fraction of its recent scans that found a change. Segments that are
+ * not scanned keep their heat.
+ *
+ * Hot segments (heat >= HOT_THRESHOLD) are scanned every time, cold ones
+ * every coldScanInterval scans staggered by row of segments so that each
+ * scan covers about the same share of them in long horizontal runs, and
+ * every fullScanInterval scans everything is scanned regardless.
+ *
+ */
+
+public class SegmentHeatmap
+{
+    public static final float DECAY = 0.875f;
+    // a segment stays hot for about 30 scans after a single change
+    public static final float HOT_THRESHOLD = 1.0f / 512.0f;
+    
+    private static final String SHADES = " .:-=+*#%@";
+    
+    private final int numSegments;
+    private final int numHorizontalSegments;
+    private final int coldScanInterval;
+    private final int fullScanInterval;
+    private final float[] heat;
+    private final FixedLengthBitSet mask;
+    private int coldPhase = 0;
+    private int scansUntilFullScan = 0;
+    private long numScans = 0;
+    private long numSegmentsScanned = 0;
+    
+    /**
+     * @param numSegments
+     * @param numHorizontalSegments segments per row
+     * @param coldScanInterval scan cold segments every this many scans, 1 or less to always scan everything
+     * @param fullScanInterval scan everything every this many scans
+     */
+    public SegmentHeatmap(int numSegments, int numHorizontalSegments, int coldScanInterval, int fullScanInterval)
+    {
+        this.numSegments = numSegments;
+        this.numHorizontalSegments = numHorizontalSegments;
+        this.coldScanInterval = Math.max(1, coldScanInterval);
+        this.fullScanInterval = Math.max(1, fullScanInterval);
+        heat = new float[numSegments];
+        mask = new FixedLengthBitSet(numSegments);
+    }
+    
+    /**
+     * The result is only valid until the next call
+     *
+     * @return the segments to scan next or null for all of them
+     */
+    public synchronized FixedLengthBitSet nextMask()
+    {
+        if (coldScanInterval <= 1 || scansUntilFullScan <= 0)
+        {
+            scansUntilFullScan = fullScanInterval;
+            return null;
+        }
+        scansUntilFullScan--;
+        
+        coldPhase = (coldPhase + 1) % coldScanInterval;
+        for (int i=0; i<numSegments; i++)
+        {
+            mask.set(i, heat[i] >= HOT_THRESHOLD || ((i / numHorizontalSegments) % coldScanInterval) == coldPhase);
+        }
+        
+        return mask;
+    }
+    
+    /**
+     * Account for a scan
+     *
+     * @param scanned the segments that were scanned, null for all of them
+     * @param changed the segments that changed, null for none
+     */
+    public synchronized void update(FixedLengthBitSet scanned, FixedLengthBitSet changed)
+    {
+        for (int i=(scanned == null) ? 0 : scanned.nextSetBit(0); i>=0 && i<numSegments; i=(scanned == null) ? i+1 : scanned.nextSetBit(i+1))
+        {
+            heat[i] *= DECAY;
+            if (changed != null && changed.get(i))
+            {
+                heat[i] += 1.0f - DECAY;
+            }
+            numSegmentsScanned++;
+        }
+        numScans++;
+    }
+    
+    /**
+     * @return how many scans it takes at most to scan every segment once
+     */
+    public int getColdScanInterval()
+    {
+        return coldScanInterval;
+    }
+    
+    public synchronized float getHeat(int segmentID)
+    {
+        return heat[segmentID];
+    }
+    
+    /**
+     * @return the average share of the segments covered by a scan so far
+     */
+    public synchronized double getScannedFraction()
+    {
+        return (numScans == 0) ? 1.0 : ((double) numSegmentsScanned) / numScans / numSegments;
+    }
+    
+    /**
+     * Append the heatmap as one character per segment, from ' ' (cold) to '@' (changes on every scan)
+     */
+    public synchronized void report(StringBuilder sb)
+    {
+        int numHot = 0;
+        
+        for (int i=0; i<numSegments; i++)
+        {
+            if (i > 0 && (i % numHorizontalSegments) == 0)
+            {
+                sb.append('\n');
+            }
+            if (heat[i] >= HOT_THRESHOLD)
+            {
+                numHot++;
+                sb.append(SHADES.charAt(1 + Math.min(SHADES.length() - 2, (int) (heat[i] * (SHADES.length() - 1)))));
+            }
+            else
+            {
+                sb.append(SHADES.charAt(0));
+            }
+        }
+        sb.append('\n');
+        sb.append(String.format("hot segments: %d of %d, scanned per scan: %.1f%% (%d scans)", numHot, numSegments, getScannedFraction() * 100.0, numScans));
+    }
+}
@@ -0,0 +1,87 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.Rectangle;
+
+import com.jcope.vnc.server.DirectRobot;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Base class for sources that produce an entire frame at a time in software.
+ * 
+ * The frame is (re)produced on the first read following markRGBCacheDirty
+ * so that every read within a single scan observes the same frame.
+ *
+ */
+
+public abstract class CachedFrameSource implements FrameSource
+{
+    protected final int width, height;
+    private final int[] frame;
+    private volatile boolean isDirty = true;
+    private long frameNum = -1;
+    
+    protected CachedFrameSource(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        frame = new int[width * height];
+    }
+    
+    /**
+     * @param frameNum zero based count of the frames produced by this source
+     * @param frame width * height pixels to be filled in
+     */
+    protected abstract void renderFrame(long frameNum, int[] frame);
+    
+    private void syncFrame()
+    {
+        if (isDirty)
+        {
+            isDirty = false;
+            frameNum++;
+            renderFrame(frameNum, frame);
+        }
+    }
+    
+    @Override
+    public Rectangle getScreenBounds()
+    {
+        return new Rectangle(0, 0, width, height);
+    }
+    
+    @Override
+    public void markRGBCacheDirty()
+    {
+        isDirty = true;
+    }
+    
+    @Override
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels, int offset, int scanSize)
+    {
+        synchronized(frame)
+        {
+            syncFrame();
+            DirectRobot.getRGBPixelSlice(frame, this.width, this.height, x, y, width, height, pixels, offset, scanSize);
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public int[] getRGBPixels()
+    {
+        synchronized(frame)
+        {
+            syncFrame();
+            return frame;
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        // Nothing to release
+    }
+}
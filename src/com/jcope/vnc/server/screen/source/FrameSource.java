@@ -0,0 +1,55 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.Rectangle;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Supplier of screen pixels for a Monitor.
+ * 
+ * A Monitor marks the source dirty once per scan and then pulls
+ * rectangles out of it, so a source is free to grab the whole frame
+ * lazily on the first read after being marked dirty and serve the
+ * remaining reads of that scan from its own cache.
+ * 
+ * Pixels are 0xAARRGGBB with the alpha channel set.
+ *
+ */
+
+public interface FrameSource
+{
+    public static enum FRAME_SOURCE
+    {
+        ROBOT,
+        SYNTHETIC_IDLE_DESKTOP,
+        SYNTHETIC_SCROLLING_TEXT,
+        SYNTHETIC_VIDEO_NOISE,
+        REPLAY,
+        XVFB_MMAP
+    };
+    
+    public Rectangle getScreenBounds();
+    
+    public void markRGBCacheDirty();
+    
+    /**
+     * Read a rectangle of the frame into a region of pixels
+     * 
+     * @param pixels destination of the rectangle
+     * @param offset index of the top left pixel of the rectangle in pixels
+     * @param scanSize distance between rows of the rectangle in pixels
+     * @return true iff. the pixels were acquired without falling back to a slow path
+     */
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels, int offset, int scanSize);
+    
+    /**
+     * The result may be the frame store of the source itself, so it
+     * is only valid until the next call and must not be modified.
+     * 
+     * @return the entire frame
+     */
+    public int[] getRGBPixels();
+    
+    public void dispose();
+}
@@ -0,0 +1,99 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+
+import com.jcope.debug.LLog;
+import com.jcope.vnc.Server.SERVER_PROPERTIES;
+import com.jcope.vnc.server.DirectRobot;
+import com.jcope.vnc.server.screen.source.FrameSource.FRAME_SOURCE;
+import com.jcope.vnc.server.screen.x11.X11Connection;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Creates the frame source configured by SERVER_FRAME_SOURCE
+ * (and SERVER_FRAME_SOURCE_PATH) for a screen device.
+ * 
+ * SERVER_FRAME_SOURCE_PATH is the directory of recorded frames for REPLAY
+ * and the Xvfb -fbdir directory (or screen file) for XVFB_MMAP.
+ *
+ */
+
+public class FrameSourceFactory
+{
+    public static final int DEFAULT_SYNTHETIC_WIDTH = 1920;
+    public static final int DEFAULT_SYNTHETIC_HEIGHT = 1080;
+    
+    public static FrameSource create(DirectRobot dirbot)
+    {
+        FRAME_SOURCE type = (FRAME_SOURCE) SERVER_PROPERTIES.SERVER_FRAME_SOURCE.getValue();
+        String path = (String) SERVER_PROPERTIES.SERVER_FRAME_SOURCE_PATH.getValue();
+        
+        return create(type, dirbot, path);
+    }
+    
+    public static FrameSource create(FRAME_SOURCE type, DirectRobot dirbot, String path)
+    {
+        FrameSource rval = null;
+        
+        switch (type)
+        {
+            case ROBOT:
+                rval = new RobotFrameSource(dirbot);
+                break;
+            case SYNTHETIC_IDLE_DESKTOP:
+            case SYNTHETIC_SCROLLING_TEXT:
+            case SYNTHETIC_VIDEO_NOISE:
+                int width = DEFAULT_SYNTHETIC_WIDTH;
+                int height = DEFAULT_SYNTHETIC_HEIGHT;
+                if (dirbot != null)
+                {
+                    // match the screen being replaced so clients see the expected geometry
+                    Rectangle bounds = dirbot.getScreenBounds();
+                    width = bounds.width;
+                    height = bounds.height;
+                }
+                rval = new SyntheticFrameSource(type, width, height);
+                break;
+            case REPLAY:
+                try
+                {
+                    rval = new ReplayFrameSource(new File(path));
+                }
+                catch (IOException e)
+                {
+                    LLog.e(e, false);
+                }
+                break;
+            case XVFB_MMAP:
+                Point origin = new Point(0, 0);
+                int screenNum = 0;
+                if (dirbot != null)
+                {
+                    origin = dirbot.getScreenBounds().getLocation();
+                    screenNum = X11Connection.getScreenNum(dirbot.device.getIDstring());
+                }
+                try
+                {
+                    rval = new XvfbFrameSource(new File(path), screenNum, origin);
+                }
+                catch (IOException e)
+                {
+                    LLog.e(e, false);
+                }
+                break;
+        }
+        
+        if (rval == null && dirbot != null)
+        {
+            LLog.w(String.format("Unable to create %s frame source, falling back to %s", type.name(), FRAME_SOURCE.ROBOT.name()));
+            rval = new RobotFrameSource(dirbot);
+        }
+        
+        return rval;
+    }
+}
@@ -0,0 +1,130 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import com.jcope.debug.LLog;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Plays back a directory of recorded frames (any format ImageIO can read)
+ * in file name order, one frame per scan, looping at the end.
+ * 
+ * Frames are decoded as they are needed so that long recordings
+ * do not have to fit in memory.
+ * 
+ * See record(...) for producing such a directory.
+ *
+ */
+
+public class ReplayFrameSource extends CachedFrameSource
+{
+    public static final String FRAME_NAME_FORMAT = "frame%06d.png";
+    
+    private final File dir;
+    private final File[] frameFiles;
+    
+    public ReplayFrameSource(File dir) throws IOException
+    {
+        this(dir, listFrames(dir));
+    }
+    
+    private ReplayFrameSource(File dir, File[] frameFiles) throws IOException
+    {
+        this(dir, frameFiles, ImageIO.read(frameFiles[0]));
+    }
+    
+    private ReplayFrameSource(File dir, File[] frameFiles, BufferedImage firstFrame) throws IOException
+    {
+        super(firstFrame.getWidth(), firstFrame.getHeight());
+        this.dir = dir;
+        this.frameFiles = frameFiles;
+    }
+    
+    public String toString()
+    {
+        return String.format("%s: %s", FRAME_SOURCE.REPLAY.name(), dir.getAbsolutePath());
+    }
+    
+    private static File[] listFrames(File dir) throws IOException
+    {
+        File[] rval = dir.listFiles(new FileFilter() {
+            
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isFile() && !file.isHidden();
+            }
+            
+        });
+        
+        if (rval == null || rval.length == 0)
+        {
+            throw new IOException(String.format("No recorded frames in \"%s\"", dir.getAbsolutePath()));
+        }
+        
+        Arrays.sort(rval);
+        
+        return rval;
+    }
+    
+    @Override
+    protected void renderFrame(long frameNum, int[] frame)
+    {
+        File file = frameFiles[(int) (frameNum % frameFiles.length)];
+        BufferedImage image = null;
+        try
+        {
+            image = ImageIO.read(file);
+        }
+        catch (IOException e)
+        {
+            LLog.e(e, false);
+        }
+        if (image == null)
+        {
+            LLog.w(String.format("Unreadable recorded frame: %s", file.getAbsolutePath()));
+            return;
+        }
+        int w = Math.min(width, image.getWidth());
+        int h = Math.min(height, image.getHeight());
+        image.getRGB(0, 0, w, h, frame, 0, width);
+    }
+    
+    /**
+     * Record numFrames frames of src into dir, reading a new frame every periodMS
+     */
+    public static void record(FrameSource src, File dir, int numFrames, long periodMS) throws IOException, InterruptedException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException(String.format("Unable to create \"%s\"", dir.getAbsolutePath()));
+        }
+        
+        for (int i=0; i<numFrames; i++)
+        {
+            long startAt = System.currentTimeMillis();
+            
+            src.markRGBCacheDirty();
+            int[] pixels = src.getRGBPixels();
+            int w = src.getScreenBounds().width;
+            int h = pixels.length / w;
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, w, h, pixels, 0, w);
+            ImageIO.write(image, "png", new File(dir, String.format(FRAME_NAME_FORMAT, i)));
+            
+            long timeConsumed = System.currentTimeMillis() - startAt;
+            if (timeConsumed < periodMS)
+            {
+                Thread.sleep(periodMS - timeConsumed);
+            }
+        }
+    }
+}
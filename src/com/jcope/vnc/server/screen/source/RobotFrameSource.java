@@ -0,0 +1,59 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.Rectangle;
+
+import com.jcope.vnc.server.DirectRobot;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Frame source backed by the peer of an AWT Robot (see DirectRobot).
+ *
+ */
+
+public class RobotFrameSource implements FrameSource
+{
+    private final DirectRobot dirbot;
+    
+    public RobotFrameSource(DirectRobot dirbot)
+    {
+        this.dirbot = dirbot;
+    }
+    
+    public String toString()
+    {
+        return String.format("%s: %s", FRAME_SOURCE.ROBOT.name(), dirbot.device.getIDstring());
+    }
+    
+    @Override
+    public Rectangle getScreenBounds()
+    {
+        return dirbot.getScreenBounds();
+    }
+    
+    @Override
+    public void markRGBCacheDirty()
+    {
+        dirbot.markRGBCacheDirty();
+    }
+    
+    @Override
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels, int offset, int scanSize)
+    {
+        return dirbot.getRGBPixels(x, y, width, height, pixels, offset, scanSize);
+    }
+    
+    @Override
+    public int[] getRGBPixels()
+    {
+        return dirbot.getRGBPixels();
+    }
+    
+    @Override
+    public void dispose()
+    {
+        // The robot is shared with the input event player
+        // and so it is released along with the DirectRobot instance
+    }
+}
@@ -0,0 +1,284 @@
+package com.jcope.vnc.server.screen.source;
+
+import static com.jcope.debug.Debug.assert_;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 
+ * @author Joseph Copenhaver
+ * 
+ * Deterministic software generated screen content for exercising the
+ * capture, diff and encode pipeline on machines without a display.
+ * 
+ * Frame N of a given pattern and size is always the same set of pixels,
+ * regardless of how it was read or what machine produced it.
+ * 
+ * SYNTHETIC_IDLE_DESKTOP:
+ *     A static desktop with a blinking caret and a clock that ticks
+ *     every CLOCK_PERIOD frames
+ * SYNTHETIC_SCROLLING_TEXT:
+ *     A terminal window that scrolls by one line of text every frame
+ * SYNTHETIC_VIDEO_NOISE:
+ *     A video window that repaints every one of its pixels every frame
+ *
+ */
+
+public class SyntheticFrameSource extends CachedFrameSource
+{
+    private static final long SEED = 0x5EEDL;
+    private static final int GLYPH_WIDTH = 8;
+    private static final int GLYPH_HEIGHT = 16;
+    private static final int NUM_GLYPHS = 95;
+    private static final int CARET_PERIOD = 16;
+    private static final int CLOCK_PERIOD = 64;
+    private static final int TITLE_BAR_HEIGHT = 24;
+    private static final int TEXT_COLOR = 0xffc0c0c0;
+    private static final int TERMINAL_COLOR = 0xff000000;
+    private static final int WINDOW_COLOR = 0xffffffff;
+    private static final int TITLE_BAR_COLOR = 0xff3060a0;
+    
+    private static final int[][] glyphs = new int[NUM_GLYPHS][];
+    
+    static
+    {
+        // blank glyph for the space character
+        glyphs[0] = new int[GLYPH_HEIGHT];
+        Random r = new Random(SEED);
+        for (int i=1; i<NUM_GLYPHS; i++)
+        {
+            int[] glyph = new int[GLYPH_HEIGHT];
+            // leave a blank border like a real font would
+            for (int row=3; row<GLYPH_HEIGHT-3; row++)
+            {
+                glyph[row] = r.nextInt(0x100) & 0x7e;
+            }
+            glyphs[i] = glyph;
+        }
+    }
+    
+    private final FRAME_SOURCE pattern;
+    private final int[] desktop;
+    // x, y, width, height of the animated window
+    private final int wx, wy, ww, wh;
+    
+    public SyntheticFrameSource(FRAME_SOURCE pattern, int width, int height)
+    {
+        super(width, height);
+        assert_(width > 0 && height > 0);
+        switch (pattern)
+        {
+            case SYNTHETIC_IDLE_DESKTOP:
+                wx = width / 8;
+                wy = height / 8;
+                ww = width / 2;
+                wh = height / 2;
+                break;
+            case SYNTHETIC_SCROLLING_TEXT:
+                wx = width / 16;
+                wy = height / 16;
+                ww = (width * 7) / 8;
+                wh = (height * 7) / 8;
+                break;
+            case SYNTHETIC_VIDEO_NOISE:
+                wx = width / 4;
+                wy = height / 4;
+                ww = width / 2;
+                wh = height / 2;
+                break;
+            default:
+                throw new IllegalArgumentException(pattern.name());
+        }
+        this.pattern = pattern;
+        desktop = new int[width * height];
+        renderDesktop();
+    }
+    
+    public String toString()
+    {
+        return String.format("%s: %dx%d", pattern.name(), width, height);
+    }
+    
+    private void renderDesktop()
+    {
+        // diagonal gradient wallpaper
+        int idx = 0;
+        int span = width + height;
+        for (int y=0; y<height; y++)
+        {
+            for (int x=0; x<width; x++)
+            {
+                int c = ((x + y) * 0xff) / span;
+                desktop[idx++] = 0xff000000 | ((c >> 2) << 16) | ((c >> 1) << 8) | c;
+            }
+        }
+        
+        // a window with a title bar
+        fill(desktop, wx, wy, ww, TITLE_BAR_HEIGHT, TITLE_BAR_COLOR);
+        fill(desktop, wx, wy + TITLE_BAR_HEIGHT, ww, wh - TITLE_BAR_HEIGHT,
+                pattern == FRAME_SOURCE.SYNTHETIC_SCROLLING_TEXT ? TERMINAL_COLOR : WINDOW_COLOR);
+        
+        if (pattern == FRAME_SOURCE.SYNTHETIC_IDLE_DESKTOP)
+        {
+            // static document text
+            int cols = (ww - GLYPH_WIDTH) / GLYPH_WIDTH;
+            int rows = (wh - TITLE_BAR_HEIGHT) / GLYPH_HEIGHT - 1;
+            for (int row=0; row<rows; row++)
+            {
+                for (int col=0; col<cols; col++)
+                {
+                    drawGlyph(desktop, wx + GLYPH_WIDTH/2 + col * GLYPH_WIDTH, wy + TITLE_BAR_HEIGHT + row * GLYPH_HEIGHT,
+                            charAt(row, col, cols), 0xff000000);
+                }
+            }
+        }
+    }
+    
+    @Override
+    protected void renderFrame(long frameNum, int[] frame)
+    {
+        System.arraycopy(desktop, 0, frame, 0, frame.length);
+        switch (pattern)
+        {
+            case SYNTHETIC_IDLE_DESKTOP:
+                renderIdle(frameNum, frame);
+                break;
+            case SYNTHETIC_SCROLLING_TEXT:
+                renderScrollingText(frameNum, frame);
+                break;
+            case SYNTHETIC_VIDEO_NOISE:
+                renderVideoNoise(frameNum, frame);
+                break;
+            default:
+                break;
+        }
+    }
+    
+    private void renderIdle(long frameNum, int[] frame)
+    {
+        // blinking caret at the end of the document
+        if (((frameNum / CARET_PERIOD) & 1) == 0)
+        {
+            fill(frame, wx + GLYPH_WIDTH/2, wy + wh - GLYPH_HEIGHT, 2, GLYPH_HEIGHT - 2, 0xff000000);
+        }
+        
+        // clock in the bottom right corner of the screen
+        long tick = frameNum / CLOCK_PERIOD;
+        int cx = width - 6 * GLYPH_WIDTH;
+        int cy = height - GLYPH_HEIGHT - 4;
+        if (cx >= 0 && cy >= 0)
+        {
+            fill(frame, cx, cy, 5 * GLYPH_WIDTH, GLYPH_HEIGHT, 0xff202020);
+            for (int i=4; i>=0; i--)
+            {
+                drawGlyph(frame, cx + i * GLYPH_WIDTH, cy, 16 + (int) (tick % 10), TEXT_COLOR);
+                tick /= 10;
+            }
+        }
+    }
+    
+    private void renderScrollingText(long frameNum, int[] frame)
+    {
+        int cols = ww / GLYPH_WIDTH;
+        int rows = (wh - TITLE_BAR_HEIGHT) / GLYPH_HEIGHT;
+        int top = wy + TITLE_BAR_HEIGHT;
+        for (int row=0; row<rows; row++)
+        {
+            long line = frameNum + row;
+            for (int col=0; col<cols; col++)
+            {
+                int c = charAt(line, col, cols);
+                if (c != 0)
+                {
+                    drawGlyph(frame, wx + col * GLYPH_WIDTH, top + row * GLYPH_HEIGHT, c, TEXT_COLOR);
+                }
+            }
+        }
+    }
+    
+    private void renderVideoNoise(long frameNum, int[] frame)
+    {
+        // xorshift noise on top of a slowly panning gradient
+        long s = (frameNum + 1) * 0x9E3779B97F4A7C15L;
+        int shift = (int) (frameNum & 0xff);
+        int top = wy + TITLE_BAR_HEIGHT;
+        int bottom = wy + wh;
+        int right = wx + ww;
+        for (int y=top; y<bottom; y++)
+        {
+            int idx = y * width + wx;
+            for (int x=wx; x<right; x++)
+            {
+                s ^= (s << 13);
+                s ^= (s >>> 7);
+                s ^= (s << 17);
+                int base = (x + y + shift) & 0xff;
+                int noise = (int) (s & 0x3f);
+                int r = Math.min(0xff, base + noise);
+                int g = Math.min(0xff, (base >> 1) + noise);
+                int b = Math.min(0xff, (0xff - base) + noise);
+                frame[idx++] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+    
+    /**
+     * @return a glyph index, 0 is blank
+     */
+    private static int charAt(long line, int col, int cols)
+    {
+        long h = (line + 1) * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 29);
+        int lineLength = (int) ((h & 0x7fffffffL) % (cols + 1));
+        if (col >= lineLength)
+        {
+            return 0;
+        }
+        h = (h + col) * 0xBF58476D1CE4E5B9L;
+        h ^= (h >>> 31);
+        int c = (int) ((h & 0x7fffffffL) % (NUM_GLYPHS + 8));
+        // sprinkle in some spaces between words
+        return (c >= NUM_GLYPHS) ? 0 : c;
+    }
+    
+    private void drawGlyph(int[] dst, int x, int y, int c, int color)
+    {
+        if (x < 0 || y < 0 || x + GLYPH_WIDTH > width || y + GLYPH_HEIGHT > height)
+        {
+            return;
+        }
+        int[] glyph = glyphs[c];
+        int idx = y * width + x;
+        for (int row=0; row<GLYPH_HEIGHT; row++)
+        {
+            int bits = glyph[row];
+            if (bits != 0)
+            {
+                for (int col=0; col<GLYPH_WIDTH; col++)
+                {
+                    if ((bits & (0x80 >> col)) != 0)
+                    {
+                        dst[idx + col] = color;
+                    }
+                }
+            }
+            idx += width;
+        }
+    }
+    
+    private void fill(int[] dst, int x, int y, int w, int h, int color)
+    {
+        int right = Math.min(width, x + w);
+        int bottom = Math.min(height, y + h);
+        if (x < 0 || y < 0 || right <= x)
+        {
+            return;
+        }
+        for (int row=y; row<bottom; row++)
+        {
+            int idx = row * width;
+            Arrays.fill(dst, idx + x, idx + right, color);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.jcope.vnc.server.screen.source;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Frame source that reads the framebuffer of an Xvfb screen in place.
+ *
+ * When started with "-fbdir <dir>" Xvfb keeps each screen in an XWD formatted
+ * file named Xvfb_screen<N> that it maps as its framebuffer. Mapping the same
+ * file here means that reading a segment is a plain memory copy: there is no
+ * X round trip and no full-frame copy per scan.
+ *
+ * Only 32 bits per pixel TrueColor screens (Xvfb -screen N WxHx24) are supported.
+ *
+ */
+
+public class XvfbFrameSource implements FrameSource
+{
+    public static final String SCREEN_FILE_FORMAT = "Xvfb_screen%d";
+    
+    private static final int XWD_HEADER_SIZE = 100;
+    private static final int XWD_COLOR_SIZE = 12;
+    private static final int XWD_FILE_VERSION = 7;
+    private static final int Z_PIXMAP = 2;
+    private static final int LSB_FIRST = 0;
+    private static final int ALPHA_MASK = 0xff000000;
+    
+    private final File file;
+    private final Rectangle bounds;
+    private final int scanInts;
+    private RandomAccessFile raf;
+    private MappedByteBuffer mappedBuffer;
+    private IntBuffer pixelBuffer;
+    private int[] frame = null;
+    
+    /**
+     * @param file the XWD file of the screen, or the -fbdir directory
+     * @param screenNum the Xvfb screen number, used when file is a directory
+     * @param origin location of the screen in the virtual device coordinate system
+     * @throws IOException
+     */
+    public XvfbFrameSource(File file, int screenNum, Point origin) throws IOException
+    {
+        if (file.isDirectory())
+        {
+            file = new File(file, String.format(SCREEN_FILE_FORMAT, screenNum));
+        }
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            
+            // XWD headers are always most significant byte first
+            mappedBuffer.order(ByteOrder.BIG_ENDIAN);
+            if (mappedBuffer.capacity() < XWD_HEADER_SIZE)
+            {
+                throw new IOException(String.format("\"%s\" is too small to be an XWD file", file.getAbsolutePath()));
+            }
+            int headerSize = mappedBuffer.getInt(0);
+            int fileVersion = mappedBuffer.getInt(4);
+            int pixmapFormat = mappedBuffer.getInt(8);
+            int pixmapWidth = mappedBuffer.getInt(16);
+            int pixmapHeight = mappedBuffer.getInt(20);
+            int byteOrder = mappedBuffer.getInt(28);
+            int bitsPerPixel = mappedBuffer.getInt(44);
+            int bytesPerLine = mappedBuffer.getInt(48);
+            int ncolors = mappedBuffer.getInt(76);
+            
+            if (fileVersion != XWD_FILE_VERSION || pixmapFormat != Z_PIXMAP)
+            {
+                throw new IOException(String.format("\"%s\" is not a ZPixmap XWD file", file.getAbsolutePath()));
+            }
+            if (bitsPerPixel != 32)
+            {
+                throw new IOException(String.format("Unsupported Xvfb screen depth: %d bits per pixel (expected 32)", bitsPerPixel));
+            }
+            
+            int pixelOffset = headerSize + ncolors * XWD_COLOR_SIZE;
+            if (((long) pixelOffset) + ((long) bytesPerLine) * pixmapHeight > mappedBuffer.capacity())
+            {
+                throw new IOException(String.format("\"%s\" is truncated", file.getAbsolutePath()));
+            }
+            
+            mappedBuffer.position(pixelOffset);
+            ByteBuffer pixelBytes = mappedBuffer.slice();
+            pixelBytes.order((byteOrder == LSB_FIRST) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            pixelBuffer = pixelBytes.asIntBuffer();
+            scanInts = bytesPerLine / 4;
+            bounds = new Rectangle(origin.x, origin.y, pixmapWidth, pixmapHeight);
+        }
+        catch (IOException e)
+        {
+            dispose();
+            throw e;
+        }
+    }
+    
+    public String toString()
+    {
+        return String.format("%s: %s", FRAME_SOURCE.XVFB_MMAP.name(), file.getAbsolutePath());
+    }
+    
+    @Override
+    public Rectangle getScreenBounds()
+    {
+        return new Rectangle(bounds);
+    }
+    
+    @Override
+    public void markRGBCacheDirty()
+    {
+        // The mapping always reflects the current framebuffer
+    }
+    
+    @Override
+    public boolean getRGBPixels(int x, int y, int width, int height, int[] pixels, int offset, int scanSize)
+    {
+        // position is per buffer, so give each caller its own view of the mapping
+        IntBuffer src = pixelBuffer.duplicate();
+        int srcIdx = y * scanInts + x;
+        int dstIdx = offset;
+        
+        for (int row=0; row<height; row++)
+        {
+            src.position(srcIdx);
+            src.get(pixels, dstIdx, width);
+            for (int i=dstIdx, sentinelIdx=dstIdx+width; i<sentinelIdx; i++)
+            {
+                pixels[i] |= ALPHA_MASK;
+            }
+            srcIdx += scanInts;
+            dstIdx += scanSize;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public synchronized int[] getRGBPixels()
+    {
+        if (frame == null)
+        {
+            frame = new int[bounds.width * bounds.height];
+        }
+        
+        getRGBPixels(0, 0, bounds.width, bounds.height, frame, 0, bounds.width);
+        
+        return frame;
+    }
+    
+    @Override
+    public void dispose()
+    {
+        pixelBuffer = null;
+        mappedBuffer = null;
+        frame = null;
+        if (raf != null)
+        {
+            try
+            {
+                raf.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing left to release
+            }
+            raf = null;
+        }
+    }
+}
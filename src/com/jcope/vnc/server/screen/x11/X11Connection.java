@@ -0,0 +1,533 @@
+package com.jcope.vnc.server.screen.x11;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Minimal X11 wire protocol client.
+ *
+ * Only what is needed to talk to protocol extensions is implemented:
+ * connection setup (with MIT-MAGIC-COOKIE-1 authorization), QueryExtension,
+ * raw requests and synchronously waiting on replies while handing any
+ * events that arrive in the meantime to a callback.
+ *
+ * Local displays are reached over /tmp/.X11-unix/X<N> when the running
+ * JVM supports unix domain sockets (Java 16+), otherwise over TCP port 6000+N.
+ *
+ * All traffic is little endian (the byte order is chosen by the client).
+ *
+ */
+
+public class X11Connection implements Closeable
+{
+    public static interface EventHandler
+    {
+        public void onEvent(ByteBuffer event);
+    }
+    
+    public static class X11Error extends IOException
+    {
+        /**
+         * Generated serialVersionUID
+         */
+        private static final long serialVersionUID = 3719186214522389807L;
+        
+        public final int code, sequence, majorOpcode, minorOpcode;
+        
+        public X11Error(int code, int sequence, int majorOpcode, int minorOpcode)
+        {
+            super(String.format("X11 error %d on request %d.%d (sequence %d)", code, majorOpcode, minorOpcode, sequence));
+            this.code = code;
+            this.sequence = sequence;
+            this.majorOpcode = majorOpcode;
+            this.minorOpcode = minorOpcode;
+        }
+    }
+    
+    public static final int X_TCP_PORT = 6000;
+    public static final String X_UNIX_SOCKET_FORMAT = "/tmp/.X11-unix/X%d";
+    public static final String MIT_MAGIC_COOKIE = "MIT-MAGIC-COOKIE-1";
+    
+    private static final int FAMILY_LOCAL = 256;
+    private static final int FAMILY_WILD = 65535;
+    
+    private static final int X_QUERY_EXTENSION = 98;
+    private static final int X_GET_INPUT_FOCUS = 43;
+    
+    private static final int PACKET_SIZE = 32;
+    private static final int TYPE_ERROR = 0;
+    private static final int TYPE_REPLY = 1;
+    
+    public final String display;
+    public final int displayNum;
+    private final Closeable connection;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private int sequence = 0;
+    
+    private int resourceIDBase, resourceIDMask, nextResourceID = 1;
+    private int[] roots, rootWidths, rootHeights;
+    
+    private X11Connection(String display, int displayNum, Closeable connection, InputStream in, OutputStream out) throws IOException
+    {
+        this.display = display;
+        this.displayNum = displayNum;
+        this.connection = connection;
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(out);
+        
+        try
+        {
+            setup();
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * @param display in the usual "[host]:displayNum[.screenNum]" form, null or "" for $DISPLAY
+     * @return an open connection
+     * @throws IOException
+     */
+    public static X11Connection open(String display) throws IOException
+    {
+        if (display == null || display.length() == 0)
+        {
+            display = System.getenv("DISPLAY");
+            if (display == null)
+            {
+                throw new IOException("No X display specified and DISPLAY is not set");
+            }
+        }
+        
+        int colonIdx = display.lastIndexOf(':');
+        if (colonIdx < 0)
+        {
+            throw new IOException(String.format("Invalid X display: \"%s\"", display));
+        }
+        String host = display.substring(0, colonIdx);
+        int displayNum;
+        try
+        {
+            String num = display.substring(colonIdx + 1);
+            int dotIdx = num.indexOf('.');
+            displayNum = Integer.parseInt((dotIdx < 0) ? num : num.substring(0, dotIdx));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(String.format("Invalid X display: \"%s\"", display));
+        }
+        
+        if (host.length() == 0 || host.equals("unix"))
+        {
+            SocketChannel channel = openUnixSocket(String.format(X_UNIX_SOCKET_FORMAT, displayNum));
+            if (channel != null)
+            {
+                return new X11Connection(display, displayNum, channel, Channels.newInputStream(channel), Channels.newOutputStream(channel));
+            }
+            host = "localhost";
+        }
+        
+        final Socket socket = new Socket(host, X_TCP_PORT + displayNum);
+        socket.setTcpNoDelay(true);
+        Closeable connection = new Closeable() {
+            
+            @Override
+            public void close() throws IOException
+            {
+                socket.close();
+            }
+            
+        };
+        
+        return new X11Connection(display, displayNum, connection, socket.getInputStream(), socket.getOutputStream());
+    }
+    
+    /**
+     * Unix domain sockets are only available from Java 16 onwards, so look them up reflectively.
+     *
+     * @return null if the socket can not be opened
+     */
+    private static SocketChannel openUnixSocket(String path)
+    {
+        if (!new File(path).exists())
+        {
+            return null;
+        }
+        
+        SocketChannel rval = null;
+        
+        try
+        {
+            Class<?> protocolFamilyClass = Class.forName("java.net.ProtocolFamily");
+            Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            Object unix = null;
+            for (Object constant : Class.forName("java.net.StandardProtocolFamily").getEnumConstants())
+            {
+                if (constant.toString().equals("UNIX"))
+                {
+                    unix = constant;
+                    break;
+                }
+            }
+            SocketAddress address = (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+            rval = (SocketChannel) SocketChannel.class.getMethod("open", protocolFamilyClass).invoke(null, unix);
+            rval.connect(address);
+        }
+        catch (Exception e)
+        {
+            if (rval != null)
+            {
+                try
+                {
+                    rval.close();
+                }
+                catch (IOException e2)
+                {
+                    // Nothing left to release
+                }
+            }
+            rval = null;
+        }
+        
+        return rval;
+    }
+    
+    private static String readCounted(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, "ISO-8859-1");
+    }
+    
+    /**
+     * @return {name, data} of the MIT-MAGIC-COOKIE-1 for this display in the
+     *         Xauthority file, or {"", ""} if there is none
+     */
+    private byte[][] findAuthorization()
+    {
+        byte[][] rval = new byte[][]{new byte[0], new byte[0]};
+        String path = System.getenv("XAUTHORITY");
+        File file = (path == null || path.length() == 0) ? new File(System.getProperty("user.home"), ".Xauthority") : new File(path);
+        
+        if (!file.isFile())
+        {
+            return rval;
+        }
+        
+        String hostname = null;
+        try
+        {
+            hostname = InetAddress.getLocalHost().getHostName();
+        }
+        catch (IOException e)
+        {
+            hostname = null;
+        }
+        String number = Integer.toString(displayNum);
+        int bestRank = 0;
+        
+        try
+        {
+            DataInputStream authIn = new DataInputStream(new FileInputStream(file));
+            try
+            {
+                while (authIn.available() > 0)
+                {
+                    int family = authIn.readUnsignedShort();
+                    String address = readCounted(authIn);
+                    String entryNumber = readCounted(authIn);
+                    String name = readCounted(authIn);
+                    byte[] data = new byte[authIn.readUnsignedShort()];
+                    authIn.readFully(data);
+                    
+                    if (!name.equals(MIT_MAGIC_COOKIE) || !(entryNumber.equals(number) || entryNumber.length() == 0))
+                    {
+                        continue;
+                    }
+                    
+                    // prefer an exact local match, then a wildcard, then anything for this display
+                    int rank = 1;
+                    if (family == FAMILY_WILD)
+                    {
+                        rank = 2;
+                    }
+                    else if (family == FAMILY_LOCAL && address.equals(hostname))
+                    {
+                        rank = 3;
+                    }
+                    if (rank > bestRank)
+                    {
+                        bestRank = rank;
+                        rval[0] = name.getBytes("ISO-8859-1");
+                        rval[1] = data;
+                    }
+                }
+            }
+            finally {
+                authIn.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // an unreadable authority file is the same as not having one
+        }
+        
+        return rval;
+    }
+    
+    private static int pad(int n)
+    {
+        return (4 - (n & 3)) & 3;
+    }
+    
+    private void setup() throws IOException
+    {
+        byte[][] auth = findAuthorization();
+        ByteBuffer req = ByteBuffer.allocate(12 + auth[0].length + pad(auth[0].length) + auth[1].length + pad(auth[1].length));
+        req.order(ByteOrder.LITTLE_ENDIAN);
+        req.put((byte) 'l');
+        req.put((byte) 0);
+        req.putShort((short) 11);
+        req.putShort((short) 0);
+        req.putShort((short) auth[0].length);
+        req.putShort((short) auth[1].length);
+        req.putShort((short) 0);
+        req.put(auth[0]);
+        req.position(req.position() + pad(auth[0].length));
+        req.put(auth[1]);
+        out.write(req.array());
+        out.flush();
+        
+        byte[] head = new byte[8];
+        in.readFully(head);
+        ByteBuffer headBuf = ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN);
+        int status = head[0];
+        byte[] body = new byte[(headBuf.getShort(6) & 0xffff) * 4];
+        in.readFully(body);
+        
+        if (status != 1)
+        {
+            int reasonLength = (status == 0) ? (head[1] & 0xff) : body.length;
+            String reason = new String(body, 0, Math.min(reasonLength, body.length), "ISO-8859-1").trim();
+            throw new IOException(String.format("X server %s refused the connection: %s", display, reason));
+        }
+        
+        ByteBuffer setup = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        resourceIDBase = setup.getInt(4);
+        resourceIDMask = setup.getInt(8);
+        int vendorLength = setup.getShort(16) & 0xffff;
+        int numScreens = setup.get(20) & 0xff;
+        int numFormats = setup.get(21) & 0xff;
+        
+        int idx = 32 + vendorLength + pad(vendorLength) + numFormats * 8;
+        roots = new int[numScreens];
+        rootWidths = new int[numScreens];
+        rootHeights = new int[numScreens];
+        for (int i=0; i<numScreens; i++)
+        {
+            roots[i] = setup.getInt(idx);
+            rootWidths[i] = setup.getShort(idx + 20) & 0xffff;
+            rootHeights[i] = setup.getShort(idx + 22) & 0xffff;
+            int numDepths = setup.get(idx + 39) & 0xff;
+            idx += 40;
+            for (int j=0; j<numDepths; j++)
+            {
+                int numVisuals = setup.getShort(idx + 2) & 0xffff;
+                idx += 8 + numVisuals * 24;
+            }
+        }
+    }
+    
+    public int getNumScreens()
+    {
+        return roots.length;
+    }
+    
+    public int getRoot(int screenNum)
+    {
+        return roots[screenNum];
+    }
+    
+    public int getRootWidth(int screenNum)
+    {
+        return rootWidths[screenNum];
+    }
+    
+    public int getRootHeight(int screenNum)
+    {
+        return rootHeights[screenNum];
+    }
+    
+    public synchronized int allocResourceID()
+    {
+        int rval = resourceIDBase | (nextResourceID & resourceIDMask);
+        nextResourceID++;
+        return rval;
+    }
+    
+    /**
+     * @param majorOpcode
+     * @param data the second byte of the request (the minor opcode of an extension request)
+     * @param numWords total length of the request in 4 byte units
+     * @return a buffer with the request header written and positioned on the first body byte
+     */
+    public static ByteBuffer newRequest(int majorOpcode, int data, int numWords)
+    {
+        ByteBuffer rval = ByteBuffer.allocate(numWords * 4);
+        rval.order(ByteOrder.LITTLE_ENDIAN);
+        rval.put((byte) majorOpcode);
+        rval.put((byte) data);
+        rval.putShort((short) numWords);
+        
+        return rval;
+    }
+    
+    /**
+     * Queue a request, nothing is sent until flush() or awaitReply(...)
+     *
+     * @return the (16 bit) sequence number of the request
+     */
+    public synchronized int send(ByteBuffer request) throws IOException
+    {
+        out.write(request.array(), 0, request.capacity());
+        sequence = (sequence + 1) & 0xffff;
+        return sequence;
+    }
+    
+    public synchronized void flush() throws IOException
+    {
+        out.flush();
+    }
+    
+    /**
+     * Flush and then read until the reply to the request with the given sequence
+     * number arrives. Events read along the way are passed to eventHandler.
+     *
+     * @return the whole reply (32 bytes plus any additional data)
+     * @throws X11Error if any request results in an error
+     */
+    public synchronized ByteBuffer awaitReply(int replySequence, EventHandler eventHandler) throws IOException
+    {
+        out.flush();
+        while (true)
+        {
+            in.readFully(packet);
+            ByteBuffer buf = ByteBuffer.wrap(packet).order(ByteOrder.LITTLE_ENDIAN);
+            int type = packet[0] & 0x7f;
+            int packetSequence = buf.getShort(2) & 0xffff;
+            
+            if (type == TYPE_ERROR)
+            {
+                throw new X11Error(packet[1] & 0xff, packetSequence, packet[10] & 0xff, buf.getShort(8) & 0xffff);
+            }
+            else if (type == TYPE_REPLY)
+            {
+                int extraLength = buf.getInt(4) * 4;
+                ByteBuffer reply = ByteBuffer.allocate(PACKET_SIZE + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+                reply.put(packet);
+                in.readFully(reply.array(), PACKET_SIZE, extraLength);
+                reply.rewind();
+                if (packetSequence == replySequence)
+                {
+                    return reply;
+                }
+                // reply to a request nobody waited on
+            }
+            else if (eventHandler != null)
+            {
+                eventHandler.onEvent(ByteBuffer.wrap(Arrays.copyOf(packet, PACKET_SIZE)).order(ByteOrder.LITTLE_ENDIAN));
+            }
+        }
+    }
+    
+    /**
+     * Round trip to the server: once this returns every event caused by
+     * previously sent requests has been passed to eventHandler.
+     */
+    public void sync(EventHandler eventHandler) throws IOException
+    {
+        awaitReply(send(newRequest(X_GET_INPUT_FOCUS, 0, 1)), eventHandler);
+    }
+    
+    /**
+     * @return {majorOpcode, firstEvent, firstError} or null if the extension is not present
+     */
+    public int[] queryExtension(String name) throws IOException
+    {
+        byte[] nameBytes = name.getBytes("ISO-8859-1");
+        ByteBuffer req = newRequest(X_QUERY_EXTENSION, 0, 2 + (nameBytes.length + pad(nameBytes.length)) / 4);
+        req.putShort((short) nameBytes.length);
+        req.putShort((short) 0);
+        req.put(nameBytes);
+        ByteBuffer reply = awaitReply(send(req), null);
+        
+        if (reply.get(8) == 0)
+        {
+            return null;
+        }
+        
+        return new int[]{reply.get(9) & 0xff, reply.get(10) & 0xff, reply.get(11) & 0xff};
+    }
+    
+    @Override
+    public void close()
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing left to release
+        }
+    }
+    
+    /**
+     * @param idString as given by GraphicsDevice.getIDstring(), e.g. ":1.0"
+     * @return the X screen number in the ID or 0 if there is none
+     */
+    public static int getScreenNum(String idString)
+    {
+        int rval = 0;
+        
+        if (idString != null)
+        {
+            int idx = idString.lastIndexOf('.');
+            if (idx >= 0)
+            {
+                try
+                {
+                    rval = Integer.parseInt(idString.substring(idx + 1));
+                }
+                catch (NumberFormatException e)
+                {
+                    rval = 0;
+                }
+            }
+        }
+        
+        return rval;
+    }
+}
@@ -0,0 +1,200 @@
+package com.jcope.vnc.server.screen.x11;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.jcope.debug.LLog;
+import com.jcope.util.FixedLengthBitSet;
+import com.jcope.util.SegmentationInfo;
+
+/**
+ *
+ * @author Joseph Copenhaver
+ *
+ * Tracks the damaged (redrawn) regions of an X screen using the
+ * DAMAGE extension so that a Monitor only has to capture and compare
+ * the segments that the X server says were drawn to.
+ *
+ * Damage is collected synchronously: drain(...) clears the damage
+ * accumulated by the server and then round trips so that every
+ * DamageNotify generated up to that point has been read. Anything drawn
+ * after the round trip is reported by the next drain, so capturing the
+ * drained segments afterwards never misses an update.
+ *
+ */
+
+public class X11DamageTracker
+{
+    public static final String XFIXES_NAME = "XFIXES";
+    public static final String DAMAGE_NAME = "DAMAGE";
+    
+    private static final int XFIXES_MAJOR_VERSION = 2;
+    private static final int XFIXES_MINOR_VERSION = 0;
+    private static final int DAMAGE_MAJOR_VERSION = 1;
+    private static final int DAMAGE_MINOR_VERSION = 1;
+    
+    private static final int X_QUERY_VERSION = 0;
+    private static final int X_DAMAGE_CREATE = 1;
+    private static final int X_DAMAGE_DESTROY = 2;
+    private static final int X_DAMAGE_SUBTRACT = 3;
+    
+    private static final int DAMAGE_NOTIFY = 0;
+    private static final int REPORT_DELTA_RECTANGLES = 1;
+    
+    private final X11Connection conn;
+    private final int screenNum;
+    private final int damageOpcode;
+    private final int damageNotifyCode;
+    private final int damage;
+    
+    private SegmentationInfo drainSegInfo;
+    private FixedLengthBitSet drainDst;
+    private volatile long numRects = 0;
+    
+    private final X11Connection.EventHandler onEvent = new X11Connection.EventHandler() {
+        
+        @Override
+        public void onEvent(ByteBuffer event)
+        {
+            if ((event.get(0) & 0x7f) != damageNotifyCode)
+            {
+                return;
+            }
+            int x = event.getShort(16);
+            int y = event.getShort(18);
+            int width = event.getShort(20) & 0xffff;
+            int height = event.getShort(22) & 0xffff;
+            drainSegInfo.markSegments(x, y, width, height, drainDst);
+            numRects++;
+        }
+        
+    };
+    
+    private X11DamageTracker(X11Connection conn, int screenNum) throws IOException
+    {
+        this.conn = conn;
+        this.screenNum = screenNum;
+        
+        if (screenNum < 0 || screenNum >= conn.getNumScreens())
+        {
+            throw new IOException(String.format("X display %s has no screen %d", conn.display, screenNum));
+        }
+        
+        // DAMAGE regions are XFIXES regions, so the client must announce XFIXES support first
+        int[] xfixes = conn.queryExtension(XFIXES_NAME);
+        if (xfixes == null)
+        {
+            throw new IOException(String.format("X display %s does not support %s", conn.display, XFIXES_NAME));
+        }
+        queryVersion(xfixes[0], XFIXES_MAJOR_VERSION, XFIXES_MINOR_VERSION);
+        
+        int[] damageExt = conn.queryExtension(DAMAGE_NAME);
+        if (damageExt == null)
+        {
+            throw new IOException(String.format("X display %s does not support %s", conn.display, DAMAGE_NAME));
+        }
+        damageOpcode = damageExt[0];
+        damageNotifyCode = damageExt[1] + DAMAGE_NOTIFY;
+        queryVersion(damageOpcode, DAMAGE_MAJOR_VERSION, DAMAGE_MINOR_VERSION);
+        
+        damage = conn.allocResourceID();
+        ByteBuffer req = X11Connection.newRequest(damageOpcode, X_DAMAGE_CREATE, 4);
+        req.putInt(damage);
+        req.putInt(conn.getRoot(screenNum));
+        req.put((byte) REPORT_DELTA_RECTANGLES);
+        conn.send(req);
+        conn.sync(null);
+    }
+    
+    /**
+     * @param display X display name, null or "" for $DISPLAY
+     * @param screenNum
+     * @return a tracker for the root window of the screen or null if DAMAGE is not available
+     */
+    public static X11DamageTracker create(String display, int screenNum)
+    {
+        X11DamageTracker rval = null;
+        X11Connection conn = null;
+        
+        try
+        {
+            conn = X11Connection.open(display);
+            rval = new X11DamageTracker(conn, screenNum);
+        }
+        catch (IOException e)
+        {
+            LLog.w(String.format("X11 damage tracking is unavailable: %s", e.getMessage()));
+            if (conn != null)
+            {
+                conn.close();
+            }
+        }
+        
+        return rval;
+    }
+    
+    private int[] queryVersion(int opcode, int major, int minor) throws IOException
+    {
+        ByteBuffer req = X11Connection.newRequest(opcode, X_QUERY_VERSION, 3);
+        req.putInt(major);
+        req.putInt(minor);
+        ByteBuffer reply = conn.awaitReply(conn.send(req), null);
+        
+        return new int[]{reply.getInt(8), reply.getInt(12)};
+    }
+    
+    public String toString()
+    {
+        return String.format("%s: %s.%d", DAMAGE_NAME, conn.display, screenNum);
+    }
+    
+    /**
+     * Mark every segment that has been drawn to since the last drain in dst
+     *
+     * @param segInfo segmentation of the screen being tracked
+     * @param dst
+     * @throws IOException if the connection to the X server is lost
+     */
+    public synchronized void drain(SegmentationInfo segInfo, FixedLengthBitSet dst) throws IOException
+    {
+        ByteBuffer req = X11Connection.newRequest(damageOpcode, X_DAMAGE_SUBTRACT, 4);
+        req.putInt(damage);
+        req.putInt(0); // repair: None (everything)
+        req.putInt(0); // parts: None
+        conn.send(req);
+        drainSegInfo = segInfo;
+        drainDst = dst;
+        try
+        {
+            conn.sync(onEvent);
+        }
+        finally {
+            drainSegInfo = null;
+            drainDst = null;
+        }
+    }
+    
+    /**
+     * @return the number of damaged rectangles reported so far
+     */
+    public long getNumRects()
+    {
+        return numRects;
+    }
+    
+    public synchronized void dispose()
+    {
+        try
+        {
+            ByteBuffer req = X11Connection.newRequest(damageOpcode, X_DAMAGE_DESTROY, 2);
+            req.putInt(damage);
+            conn.send(req);
+            conn.flush();
+        }
+        catch (IOException e)
+        {
+            // the connection is going away regardless
+        }
+        conn.close();
+    }
+}
@@ -0,0 +1,46 @@
+package com.jcope.vnc.shared;
+
+import java.io.Serializable;
+
+import com.jcope.util.PixelCodec.PIXEL_FORMAT;
+
+/**
+ * The encodings a client takes screen updates in, sent as a whole with
+ * SELECT_SCREEN. An option a client does not know of reads as 0, false
+ * or null on the server, which leaves it off, so clients and servers of
+ * different versions agree on the options they share.
+ */
+public class EncodingOptions implements Serializable
+{
+    // Generated: serialVersionUID
+    private static final long serialVersionUID = 4629133017368125742L;
+    
+    // what a client that sends no options takes
+    public static final EncodingOptions NONE = new EncodingOptions(0, PIXEL_FORMAT.ARGB8888, 0, Boolean.FALSE, Boolean.FALSE, 0);
+    
+    // tiles the client keeps in its TileCache, 0 for none
+    public final int tileCacheSize;
+    // the format the client is sent pixels in, null for ARGB8888
+    public final PIXEL_FORMAT pixelFormat;
+    // the quality photographic segments are sent in, 0 for lossless
+    public final int jpegQuality;
+    public final boolean isDeltaEncoding;
+    public final boolean isTileFiltering;
+    // how many times smaller large updates are previewed, 0 or 1 for no previews
+    public final int previewScale;
+    
+    public EncodingOptions(int tileCacheSize, PIXEL_FORMAT pixelFormat, int jpegQuality, boolean isDeltaEncoding, boolean isTileFiltering, int previewScale)
+    {
+        this.tileCacheSize = tileCacheSize;
+        this.pixelFormat = pixelFormat;
+        this.jpegQuality = jpegQuality;
+        this.isDeltaEncoding = isDeltaEncoding;
+        this.isTileFiltering = isTileFiltering;
+        this.previewScale = previewScale;
+    }
+    
+    public PIXEL_FORMAT getPixelFormat()
+    {
+        return (pixelFormat == null) ? PIXEL_FORMAT.ARGB8888 : pixelFormat;
+    }
+}
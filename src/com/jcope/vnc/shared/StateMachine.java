@@ -29,7 +29,9 @@ public class StateMachine
         GET_CLIPBOARD,
         CLIPBOARD_CHANGED,
         SET_CLIPBOARD,
-        SET_SCREEN_MONITOR_PAUSED
+        SET_SCREEN_MONITOR_PAUSED,
+        GET_DIAGNOSTICS,
+        SET_SCALE_FACTOR
         
         ;
     };
@@ -71,7 +73,11 @@ public class StateMachine
         CLIPBOARD_CHANGED, // notifies client that server clipboard contents have changed
         SET_CLIPBOARD, // sends clipboard contents to clients that have synchronization enabled
         
-        END_OF_FRAME
+        END_OF_FRAME,
+        DIAGNOSTICS, // Response to client event GET_DIAGNOSTICS
+        SCREEN_RECT_UPDATE, // Response to client event GET_SCREEN_SEGMENT, a rectangle of segments
+        SCREEN_RECT_COPY, // A rectangle of the screen moved, sent ahead of SCREEN_SEGMENT_CHANGED
+        SCREEN_SEGMENT_CACHED // Response to client event GET_SCREEN_SEGMENT, a segment found in the client's TileCache
         
         ;
         
@@ -100,6 +106,10 @@ public class StateMachine
                 case GET_CLIPBOARD:
                 case SET_CLIPBOARD:
                 case END_OF_FRAME:
+                case DIAGNOSTICS:
+                case SCREEN_RECT_UPDATE:
+                case SCREEN_RECT_COPY:
+                case SCREEN_SEGMENT_CACHED:
                     rval = Boolean.FALSE;
                     break;
                 
@@ -148,6 +158,10 @@ public class StateMachine
                 case CLIENT_ALIAS_UPDATE:
                 case READ_INPUT_EVENTS:
                 case SET_CLIPBOARD:
+                case DIAGNOSTICS:
+                case SCREEN_RECT_UPDATE:
+                case SCREEN_RECT_COPY:
+                case SCREEN_SEGMENT_CACHED:
                     rval = Boolean.TRUE;
                     break;
                 